@@ -0,0 +1,8 @@
+#!/bin/sh
+# Compila el mòdul de benchmarks i els executa tots amb JMH.
+# Els arguments es passen a JMH (p. ex.: bench/run.sh PackUtils, o -p size=1000).
+# Els resultats es guarden a bench/target/jmh-result.json.
+set -e
+cd "$(dirname "$0")"
+mvn -B -q package
+java -jar target/benchmarks.jar -rf json -rff target/jmh-result.json "$@"
@@ -0,0 +1,100 @@
+/*
+ * Autors:
+ * -Xiaolong Ji
+ * -Aticor
+ */
+package readbooks.bench;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import readbooks.BookInfo;
+import readbooks.BookRecord;
+import readbooks.RecordFormat;
+
+/**
+ * Empaquetament i desempaquetament d'un BookInfo en cada format de registre.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BookInfoBenchmark {
+
+    @Param({"1", "2"})
+    public int version;
+
+    private RecordFormat format;
+    private BookInfo book;
+    private byte[] record;
+    private ByteBuffer direct;
+    private final BookRecord view = new BookRecord();
+
+    @Setup
+    public void setup() {
+        format = version == 1 ? RecordFormat.V1 : RecordFormat.V2;
+        book = new BookInfo ("El temor de un hombre sabio", "Patrick Rothfuss",
+                             "Crónica del asesino de reyes", (short) 1246,
+                             true, true, "2017-11-23", "2018-01-20");
+        record = new byte[format.size()];
+        format.encode (book, record, 0);
+        direct = ByteBuffer.allocateDirect (format.size());
+        format.encode (book, direct, 0);
+    }
+
+    /** Empaquetament original, que crea un array nou (només format V1). */
+    @Benchmark
+    public byte[] toBytes() {
+        return book.toBytes();
+    }
+
+    /** Desempaquetament original (només format V1). */
+    @Benchmark
+    public BookInfo fromBytes() {
+        return BookInfo.fromBytes (book.toBytes());
+    }
+
+    @Benchmark
+    public byte[] encode() {
+        format.encode (book, record, 0);
+        return record;
+    }
+
+    @Benchmark
+    public BookInfo decode() {
+        return format.decode (record, 0);
+    }
+
+    /** Empaquetament dins d'un ByteBuffer directe (fora del heap). */
+    @Benchmark
+    public ByteBuffer encodeDirect() {
+        format.encode (book, direct, 0);
+        return direct;
+    }
+
+    @Benchmark
+    public BookInfo decodeDirect() {
+        return format.decode (direct, 0);
+    }
+
+    /** Lectura d'un sol camp amb la vista, sense desempaquetar el registre. */
+    @Benchmark
+    public boolean viewTitleEquals() {
+        return view.wrap (format, record, 0).titleEqualsIgnoreCase ("el temor de un hombre sabio");
+    }
+
+}
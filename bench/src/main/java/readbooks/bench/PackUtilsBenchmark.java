@@ -0,0 +1,88 @@
+/*
+ * Autors:
+ * -Xiaolong Ji
+ * -Aticor
+ */
+package readbooks.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import readbooks.PackUtils;
+
+/**
+ * Empaquetament i desempaquetament de cada tipus de PackUtils.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PackUtilsBenchmark {
+
+    private static final int MAX_LENGTH = 32;
+
+    private final byte[] buffer = new byte[2 * MAX_LENGTH];
+    private final char[] chars = new char[MAX_LENGTH];
+    private String title = "El temor de un hombre sabio";
+    private byte b = 42;
+    private short s = 1246;
+    private int i = 0x12345678;
+    private long l = 0x123456789ABCDEFL;
+    private float f = 3.14f;
+    private double d = 2.71828;
+    private char c = 'é';
+
+    @Benchmark public void packByte()    { PackUtils.packByte (b, buffer, 0); }
+    @Benchmark public byte unpackByte()  { return PackUtils.unpackByte (buffer, 0); }
+
+    @Benchmark public void packShort()   { PackUtils.packShort (s, buffer, 0); }
+    @Benchmark public short unpackShort() { return PackUtils.unpackShort (buffer, 0); }
+
+    @Benchmark public void packInt()     { PackUtils.packInt (i, buffer, 0); }
+    @Benchmark public int unpackInt()    { return PackUtils.unpackInt (buffer, 0); }
+
+    @Benchmark public void packLong()    { PackUtils.packLong (l, buffer, 0); }
+    @Benchmark public long unpackLong()  { return PackUtils.unpackLong (buffer, 0); }
+
+    @Benchmark public void packFloat()   { PackUtils.packFloat (f, buffer, 0); }
+    @Benchmark public float unpackFloat() { return PackUtils.unpackFloat (buffer, 0); }
+
+    @Benchmark public void packDouble()  { PackUtils.packDouble (d, buffer, 0); }
+    @Benchmark public double unpackDouble() { return PackUtils.unpackDouble (buffer, 0); }
+
+    @Benchmark public void packBoolean() { PackUtils.packBoolean (true, buffer, 0); }
+    @Benchmark public boolean unpackBoolean() { return PackUtils.unpackBoolean (buffer, 0); }
+
+    @Benchmark public void packChar()    { PackUtils.packChar (c, buffer, 0); }
+    @Benchmark public char unpackChar()  { return PackUtils.unpackChar (buffer, 0); }
+
+    @Benchmark
+    public byte[] packString() {
+        PackUtils.packString (title, MAX_LENGTH, buffer, 0);
+        return buffer;
+    }
+
+    @Benchmark
+    public String packAndUnpackString() {
+        PackUtils.packString (title, MAX_LENGTH, buffer, 0);
+        return PackUtils.unpackString (MAX_LENGTH, buffer, 0);
+    }
+
+    @Benchmark
+    public int packAndUnpackChars() {
+        PackUtils.packString (title, MAX_LENGTH, buffer, 0);
+        return PackUtils.unpackChars (MAX_LENGTH, buffer, 0, chars, 0);
+    }
+
+}
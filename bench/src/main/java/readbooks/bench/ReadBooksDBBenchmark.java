@@ -0,0 +1,242 @@
+/*
+ * Autors:
+ * -Xiaolong Ji
+ * -Aticor
+ */
+package readbooks.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import readbooks.BookInfo;
+import readbooks.BookPredicates;
+import readbooks.BookRecord;
+import readbooks.BookStatistics;
+import readbooks.ExternalSort;
+import readbooks.Grouping;
+import readbooks.ReadBooksDB;
+import readbooks.RecordFormat;
+import readbooks.StorageMode;
+import readbooks.TableScan;
+
+/**
+ * Operacions de ReadBooksDB sobre bases de dades de diferents mides.
+ * <br>
+ * Cada base de dades es genera una sola vegada a target/bench-data (títols
+ * "Book 0", "Book 1", ...) i, per a cada prova, se'n fa una còpia de treball
+ * perquè les operacions que modifiquen dades no afectin les altres proves.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ReadBooksDBBenchmark {
+
+    private static final File DATA_DIR = new File ("target/bench-data");
+
+    /** Fitxers que acompanyen el de dades (índexs). */
+    private static final String[] SIDE_FILES = {".idx", ".trigram.idx", ".author.idx", ".series.idx"};
+
+    private static final Function<BookRecord, Short> PAGES = BookRecord::getPages;
+
+    private static final Set<RecordFormat.Field> PAGES_FIELD = EnumSet.of (RecordFormat.Field.PAGES);
+
+    @Param({"1000", "100000", "1000000", "10000000"})
+    public int size;
+
+    @Param({"FILE", "MAPPED", "MEMORY"})
+    public StorageMode mode;
+
+    private ReadBooksDB booksDB;
+    private TableScan scan;
+    private File workFile;
+    private int next;
+    private final BookRecord record = new BookRecord();
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        File data = dataFile (size);
+        workFile = new File (DATA_DIR, "work-" + size + ".dat");
+        Files.copy (data.toPath(), workFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        for (String side : SIDE_FILES) {
+            Files.copy (new File (data.getPath() + side).toPath(),
+                        new File (workFile.getPath() + side).toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        booksDB = new ReadBooksDB (workFile.getPath(), mode);
+        scan = new TableScan (booksDB);
+        next = size;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        //Esborra les columnes, si alguna prova les ha activat.
+        booksDB.setColumnsEnabled (false);
+        booksDB.close();
+        workFile.delete();
+        new File (workFile.getPath() + ".wal").delete();
+        for (String side : SIDE_FILES) {
+            new File (workFile.getPath() + side).delete();
+        }
+    }
+
+    /**
+     * Genera (si encara no existeix) una base de dades amb n llibres.
+     */
+    private static File dataFile (int n) throws IOException {
+        File file = new File (DATA_DIR, "books-" + n + ".dat");
+        boolean complete = file.exists();
+        for (String side : SIDE_FILES) {
+            complete &= new File (file.getPath() + side).exists();
+        }
+        if (complete) {
+            return file;
+        }
+        DATA_DIR.mkdirs();
+        ReadBooksDB db = new ReadBooksDB (file.getPath());
+        db.reset();
+        List<BookInfo> books = new ArrayList<BookInfo>();
+        for (int i = 0; i < n; i++) {
+            books.add (book (i));
+            if (books.size() == 100000) {
+                db.appendBookInfos (books);
+                books.clear();
+            }
+        }
+        db.appendBookInfos (books);
+        db.close();
+        return file;
+    }
+
+    private static BookInfo book (int i) {
+        return new BookInfo ("Book " + i, "Author " + (i % 1000), "Series " + (i % 100),
+                             (short) (100 + i % 1500), i % 2 == 0, i % 4 == 0,
+                             i % 2 == 0 ? "2020-01-01" : "", i % 4 == 0 ? "2020-02-01" : "");
+    }
+
+    private int randomBook() {
+        return ThreadLocalRandom.current().nextInt (size);
+    }
+
+    @Benchmark
+    public int append() throws IOException {
+        booksDB.appendBookInfo (book (next++));
+        return booksDB.getNumBooks();
+    }
+
+    @Benchmark
+    public BookInfo randomRead() throws IOException {
+        return booksDB.readBookInfo (randomBook());
+    }
+
+    /** Recorregut de tots els registres amb la vista, sumant les pàgines. */
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public long fullScan() throws IOException {
+        long pages = 0;
+        int n = booksDB.getNumBooks();
+        for (int i = 0; i < n; i++) {
+            pages += booksDB.readRecord (i, record).getPages();
+        }
+        return pages;
+    }
+
+    /** Consulta amb condició (acabats i amb més de 800 pàgines) en paral·lel. */
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public int parallelScan() throws IOException {
+        return scan.count (BookPredicates.finished().and (BookPredicates.pagesGreaterThan (800)));
+    }
+
+    /** Pàgines llegides per any, en una sola passada en paral·lel. */
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public int statistics() throws IOException {
+        return BookStatistics.compute (scan, Grouping.FINISH_YEAR).size();
+    }
+
+    /** Recorregut de tots els registres amb un Stream seqüencial per blocs. */
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public long streamScan() {
+        return booksDB.stream (PAGES, false).mapToLong (Short::longValue).sum();
+    }
+
+    /**
+     * Activa les columnes de la base de dades de treball (les proves que
+     * reben aquest estat les fan servir).
+     */
+    @State(Scope.Benchmark)
+    public static class Columns {
+        @Setup(Level.Trial)
+        public void setup (ReadBooksDBBenchmark bench) throws IOException {
+            bench.booksDB.setColumnsEnabled (true);
+        }
+    }
+
+    /** Com streamScan, però llegint només la columna de les pàgines. */
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public long columnScan (Columns columns) {
+        return booksDB.stream (PAGES_FIELD, PAGES, false).mapToLong (Short::longValue).sum();
+    }
+
+    /** Títols en ordre alfabètic amb l'ordenació externa (memòria per defecte). */
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public long sortedTitles() throws IOException {
+        return new ExternalSort (booksDB, RecordFormat.Field.TITLE).stream (BookRecord::getTitle).count();
+    }
+
+    @Benchmark
+    public int searchHit() throws IOException {
+        return booksDB.searchBookByTitle ("book " + randomBook());
+    }
+
+    /** Cerca de fragments de títol amb l'índex de trigrames. */
+    @Benchmark
+    public int textSearch() throws IOException {
+        return booksDB.searchBooksByTitleText ("ook " + randomBook()).length;
+    }
+
+    @Benchmark
+    public int searchMiss() throws IOException {
+        return booksDB.searchBookByTitle ("Missing " + randomBook());
+    }
+
+    /** Esborra un llibre i el torna a afegir, per mantenir la mida de la base de dades. */
+    @Benchmark
+    public boolean deleteAndReinsert() throws IOException {
+        int i = randomBook();
+        boolean deleted = booksDB.deleteByTitle ("Book " + i);
+        if (deleted) {
+            booksDB.appendBookInfo (book (i));
+        }
+        return deleted;
+    }
+
+}
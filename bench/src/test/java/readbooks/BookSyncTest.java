@@ -0,0 +1,169 @@
+/*
+ * Autors:
+ * -Xiaolong Ji
+ * -Aticor
+ */
+package readbooks;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Proves de la sincronització incremental (BookSync): títols més llargs
+ * que el camp, títols repetits, fitxers amb dades no vàlides i fitxers
+ * que surten de la llista.
+ */
+public class BookSyncTest {
+
+    private static final String LONG_TITLE = "The Extraordinarily Long Title Of A Book That Overflows";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private String fileName;
+    private ReadBooksDB booksDB;
+
+    @Before
+    public void open() throws IOException {
+        fileName = new File (folder.getRoot(), "books.dat").getPath();
+        booksDB = new ReadBooksDB (fileName);
+    }
+
+    @After
+    public void close() throws IOException {
+        booksDB.close();
+    }
+
+    /**
+     * Escriu un fitxer de llibre amb una data de modificació antiga, perquè
+     * la sincronització se'n pugui refiar sense tornar-lo a llegir.
+     */
+    private String bookFile (String name, String title, String author, String startDate) throws IOException {
+        File file = new File (folder.getRoot(), name);
+        Files.write (file.toPath(), Arrays.asList (title, author, "Series", "300", startDate, ""), StandardCharsets.UTF_8);
+        Files.setLastModifiedTime (file.toPath(), FileTime.fromMillis (System.currentTimeMillis() - 60000));
+        return file.getPath();
+    }
+
+    private String list (String... fileNames) throws IOException {
+        File file = new File (folder.getRoot(), "list.txt");
+        Files.write (file.toPath(), Arrays.asList (fileNames), StandardCharsets.UTF_8);
+        return file.getPath();
+    }
+
+    private BookSync.Result sync (String listFileName) throws IOException {
+        return new BookSync (booksDB, fileName + ".manifest", 2).sync (listFileName);
+    }
+
+    @Test
+    public void longTitleIsAddedOnce() throws IOException {
+        String list = list (bookFile ("long.txt", LONG_TITLE, "Author", "2020-01-01"),
+                bookFile ("short.txt", "Short", "Author", "2020-01-01"));
+        String stored = booksDB.getFormat().storedTitle (LONG_TITLE);
+        assertTrue (stored.length() < LONG_TITLE.length());
+
+        BookSync.Result first = sync (list);
+        assertEquals (2, first.getAdded());
+        for (int run = 0; run < 3; run++) {
+            BookSync.Result next = sync (list);
+            assertEquals (0, next.getAdded());
+            assertEquals (0, next.getUpdated());
+            assertEquals (2, next.getUnchanged());
+            assertEquals (2, booksDB.getNumBooks());
+        }
+        assertTrue (booksDB.searchBookByTitle (stored) >= 0);
+    }
+
+    @Test
+    public void changedLongTitleIsUpdatedInPlace() throws IOException {
+        String list = list (bookFile ("long.txt", LONG_TITLE, "Author", "2020-01-01"));
+        sync (list);
+        bookFile ("long.txt", LONG_TITLE, "Another Author", "2020-01-01");
+
+        BookSync.Result result = sync (list);
+        assertEquals (0, result.getAdded());
+        assertEquals (1, result.getUpdated());
+        assertEquals (1, booksDB.getNumBooks());
+        assertEquals ("Another Author", booksDB.readBookInfo (0).getAuthor());
+    }
+
+    @Test
+    public void removedLongTitleIsDeleted() throws IOException {
+        String longFile = bookFile ("long.txt", LONG_TITLE, "Author", "2020-01-01");
+        String shortFile = bookFile ("short.txt", "Short", "Author", "2020-01-01");
+        sync (list (longFile, shortFile));
+
+        BookSync.Result result = sync (list (shortFile));
+        assertEquals (1, result.getDeleted());
+        assertEquals (1, booksDB.getNumBooks());
+        assertEquals (-1, booksDB.searchBookByTitle (booksDB.getFormat().storedTitle (LONG_TITLE)));
+    }
+
+    @Test
+    public void duplicateTitleIsSkippedOnEverySync() throws IOException {
+        String first = bookFile ("first.txt", "Elantris", "Brandon Sanderson", "2020-01-01");
+        String copy = bookFile ("copy.txt", "ELANTRIS", "Someone Else", "2020-01-01");
+        String list = list (first, copy);
+        for (int run = 0; run < 3; run++) {
+            BookSync.Result result = sync (list);
+            assertEquals (Collections.singletonList (copy + ": same title as " + first), result.getSkipped());
+            assertEquals (1, booksDB.getNumBooks());
+            assertEquals ("Brandon Sanderson", booksDB.readBookInfo (0).getAuthor());
+        }
+    }
+
+    @Test
+    public void duplicateTakesOverWhenFirstIsRemoved() throws IOException {
+        String first = bookFile ("first.txt", "Elantris", "Brandon Sanderson", "2020-01-01");
+        String copy = bookFile ("copy.txt", "Elantris", "Someone Else", "2020-01-01");
+        sync (list (first, copy));
+
+        BookSync.Result result = sync (list (copy));
+        assertTrue (result.getSkipped().isEmpty());
+        assertEquals (1, booksDB.getNumBooks());
+        assertEquals ("Someone Else", booksDB.readBookInfo (booksDB.searchBookByTitle ("Elantris")).getAuthor());
+
+        //Si el primer torna a la llista, el llibre torna a ser seu.
+        result = sync (list (first, copy));
+        assertEquals (Collections.singletonList (copy + ": same title as " + first), result.getSkipped());
+        assertEquals (1, booksDB.getNumBooks());
+        assertEquals ("Brandon Sanderson", booksDB.readBookInfo (booksDB.searchBookByTitle ("Elantris")).getAuthor());
+    }
+
+    @Test
+    public void invalidFileIsSkippedAndReported() throws IOException {
+        String good = bookFile ("good.txt", "Good", "Author", "2020-01-01");
+        String bad = bookFile ("bad.txt", "Bad", "Author", "15/02/2021");
+        String list = list (good, bad);
+        for (int run = 0; run < 2; run++) {
+            BookSync.Result result = sync (list);
+            assertEquals (1, result.getSkipped().size());
+            assertTrue (result.getSkipped().get (0).startsWith (bad + ": "));
+            assertEquals (1, booksDB.getNumBooks());
+            assertFalse (booksDB.searchBookByTitle ("Bad") >= 0);
+        }
+
+        //Un cop corregit, s'afegeix.
+        bookFile ("bad.txt", "Bad", "Author", "2021-02-15");
+        BookSync.Result result = sync (list);
+        assertTrue (result.getSkipped().isEmpty());
+        assertEquals (1, result.getAdded());
+        assertEquals (2, booksDB.getNumBooks());
+    }
+
+}
@@ -0,0 +1,266 @@
+/*
+ * Autors:
+ * -Xiaolong Ji
+ * -Aticor
+ */
+package readbooks;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+
+/**
+ * Proves de ReadBooksDB amb cada format de registre i cada tipus
+ * d'emmagatzematge: tornar a obrir, recuperar-se d'una aturada i
+ * reaprofitar els registres esborrats amb làpida.
+ * <br>
+ * Una aturada es simula copiant el fitxer de dades i el registre
+ * d'escriptura anticipada mentre la base de dades és oberta, que és el
+ * que quedaria al disc si el procés caigués en aquell moment.
+ */
+@RunWith(Parameterized.class)
+public class ReadBooksDBTest {
+
+    private static final int BOOKS = 1500;
+
+    @Parameters(name = "{0} {1}")
+    public static Collection<Object[]> parameters() {
+        List<Object[]> parameters = new ArrayList<Object[]>();
+        for (RecordFormat format : new RecordFormat[] { RecordFormat.V1, RecordFormat.V2 }) {
+            for (StorageMode mode : StorageMode.values()) {
+                parameters.add (new Object[] { "V" + format.version(), mode, format });
+            }
+        }
+        return parameters;
+    }
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final StorageMode mode;
+    private final RecordFormat format;
+    private String fileName;
+    private ReadBooksDB booksDB;
+
+    public ReadBooksDBTest (String name, StorageMode mode, RecordFormat format) {
+        this.mode = mode;
+        this.format = format;
+    }
+
+    @Before
+    public void open() throws IOException {
+        fileName = new File (folder.getRoot(), "books.dat").getPath();
+        booksDB = new ReadBooksDB (fileName, mode, format);
+        booksDB.setCompactionThreshold (0);
+    }
+
+    @After
+    public void close() throws IOException {
+        if (booksDB != null) {
+            booksDB.close();
+        }
+    }
+
+    private static BookInfo book (int i) {
+        return new BookInfo ("Book " + i, "Author " + (i % 7), "Series " + (i % 3), (short) (100 + i),
+                true, i % 2 == 0, "2020-01-01", i % 2 == 0 ? "2020-02-01" : "");
+    }
+
+    private static void assertBook (BookInfo expected, BookInfo actual) {
+        assertEquals (expected.getTitle(), actual.getTitle());
+        assertEquals (expected.getAuthor(), actual.getAuthor());
+        assertEquals (expected.getSeries(), actual.getSeries());
+        assertEquals (expected.getPages(), actual.getPages());
+        assertEquals (expected.getStartDate(), actual.getStartDate());
+        assertEquals (expected.getEndDate(), actual.getEndDate());
+    }
+
+    private void appendBooks (int from, int to) throws IOException {
+        List<BookInfo> books = new ArrayList<BookInfo>();
+        for (int i = from; i < to; i++) {
+            books.add (book (i));
+        }
+        booksDB.appendBookInfos (books);
+    }
+
+    private ReadBooksDB reopen() throws IOException {
+        booksDB.close();
+        booksDB = null;
+        booksDB = new ReadBooksDB (fileName, mode, format);
+        return booksDB;
+    }
+
+    /**
+     * Copia el fitxer de dades i el registre a una altra carpeta, sense
+     * tancar la base de dades, i obre la còpia.
+     */
+    private ReadBooksDB crashCopy() throws IOException {
+        File crashed = folder.newFolder();
+        for (String suffix : new String[] { "", ".wal" }) {
+            Files.copy (new File (fileName + suffix).toPath(), new File (crashed, "books.dat" + suffix).toPath());
+        }
+        return new ReadBooksDB (new File (crashed, "books.dat").getPath(), mode, format);
+    }
+
+    @Test
+    public void reopenKeepsBooks() throws IOException {
+        appendBooks (0, BOOKS);
+        booksDB.writeBookInfo (5, book (BOOKS));
+        assertTrue (booksDB.deleteByTitle ("Book 10"));
+
+        ReadBooksDB reopened = reopen();
+        assertEquals (format, reopened.getFormat());
+        assertEquals (BOOKS - 1, reopened.getNumBooks());
+        assertBook (book (BOOKS), reopened.readBookInfo (reopened.searchBookByTitle ("Book " + BOOKS)));
+        assertEquals (-1, reopened.searchBookByTitle ("Book 5"));
+        assertEquals (-1, reopened.searchBookByTitle ("Book 10"));
+        for (int i = 0; i < BOOKS; i += 97) {
+            if (i != 5 && i != 10) {
+                assertBook (book (i), reopened.readBookInfo (reopened.searchBookByTitle ("Book " + i)));
+            }
+        }
+    }
+
+    @Test
+    public void recoversCommittedChangesAfterCrash() throws IOException {
+        appendBooks (0, BOOKS);
+        booksDB.writeBookInfo (0, book (BOOKS));
+        booksDB.appendBookInfo (book (BOOKS + 1));
+
+        ReadBooksDB recovered = crashCopy();
+        try {
+            assertEquals (BOOKS + 1, recovered.getNumBooks());
+            assertBook (book (BOOKS), recovered.readBookInfo (0));
+            assertBook (book (BOOKS + 1), recovered.readBookInfo (recovered.searchBookByTitle ("Book " + (BOOKS + 1))));
+            for (int i = 1; i < BOOKS; i += 97) {
+                assertBook (book (i), recovered.readBookInfo (i));
+            }
+        } finally {
+            recovered.close();
+        }
+    }
+
+    @Test
+    public void recoversAfterCheckpointAndCrash() throws IOException {
+        appendBooks (0, BOOKS);
+        //close fa un checkpoint: després, les dades del fitxer ja estan al dia
+        //i el registre només té els canvis posteriors.
+        ReadBooksDB reopened = reopen();
+        reopened.appendBookInfo (book (BOOKS));
+        assertTrue (reopened.deleteByTitle ("Book 0"));
+
+        ReadBooksDB recovered = crashCopy();
+        try {
+            assertEquals (BOOKS, recovered.getNumBooks());
+            assertEquals (-1, recovered.searchBookByTitle ("Book 0"));
+            assertTrue (recovered.searchBookByTitle ("Book " + BOOKS) >= 0);
+            assertTrue (recovered.searchBookByTitle ("Book " + (BOOKS - 1)) >= 0);
+        } finally {
+            recovered.close();
+        }
+    }
+
+    @Test
+    public void reusesTombstones() throws IOException {
+        assumeTrue (format.supportsTombstones());
+        booksDB.setDeleteMode (DeleteMode.TOMBSTONE);
+        appendBooks (0, 10);
+        assertTrue (booksDB.deleteByTitle ("Book 3"));
+        assertTrue (booksDB.deleteByTitle ("Book 7"));
+        assertEquals (8, booksDB.getNumBooks());
+        assertEquals (2, booksDB.getNumDeleted());
+        assertNull (booksDB.readBookInfo (3));
+        assertNull (booksDB.readBookInfo (7));
+
+        booksDB.appendBookInfo (book (10));
+        booksDB.appendBookInfo (book (11));
+        assertEquals (10, booksDB.getNumRecords());
+        assertEquals (0, booksDB.getNumDeleted());
+        assertTrue (booksDB.searchBookByTitle ("Book 10") == 3 || booksDB.searchBookByTitle ("Book 10") == 7);
+        assertTrue (booksDB.searchBookByTitle ("Book 11") == 3 || booksDB.searchBookByTitle ("Book 11") == 7);
+
+        //Sense làpides, s'afegeix al final.
+        booksDB.appendBookInfo (book (12));
+        assertEquals (10, booksDB.searchBookByTitle ("Book 12"));
+
+        ReadBooksDB reopened = reopen();
+        assertEquals (11, reopened.getNumBooks());
+        assertEquals (0, reopened.getNumDeleted());
+        for (int i : new int[] { 0, 1, 2, 4, 5, 6, 8, 9, 10, 11, 12 }) {
+            assertBook (book (i), reopened.readBookInfo (reopened.searchBookByTitle ("Book " + i)));
+        }
+    }
+
+    @Test
+    public void tombstonesSurviveReopenAndCrash() throws IOException {
+        assumeTrue (format.supportsTombstones());
+        booksDB.setDeleteMode (DeleteMode.TOMBSTONE);
+        appendBooks (0, BOOKS);
+        for (int i = 0; i < BOOKS; i += 100) {
+            assertTrue (booksDB.deleteByTitle ("Book " + i));
+        }
+        int deleted = (BOOKS + 99) / 100;
+
+        ReadBooksDB recovered = crashCopy();
+        try {
+            assertEquals (BOOKS - deleted, recovered.getNumBooks());
+            assertEquals (deleted, recovered.getNumDeleted());
+        } finally {
+            recovered.close();
+        }
+
+        ReadBooksDB reopened = reopen();
+        reopened.setDeleteMode (DeleteMode.TOMBSTONE);
+        assertEquals (deleted, reopened.getNumDeleted());
+        List<BookInfo> books = new ArrayList<BookInfo>();
+        for (int i = 0; i < deleted; i++) {
+            books.add (book (BOOKS + i));
+        }
+        reopened.appendBookInfos (books);
+        assertEquals (BOOKS, reopened.getNumRecords());
+        assertEquals (BOOKS, reopened.getNumBooks());
+        assertEquals (0, reopened.getNumDeleted());
+    }
+
+    @Test
+    public void failedAppendKeepsFreeList() throws IOException {
+        assumeTrue (format.supportsTombstones());
+        booksDB.setDeleteMode (DeleteMode.TOMBSTONE);
+        appendBooks (0, 3);
+        assertTrue (booksDB.deleteByTitle ("Book 1"));
+        try {
+            //V2 només guarda dates en format aaaa-mm-dd.
+            booksDB.appendBookInfo (new BookInfo ("Bad", "", "", (short) 1, true, false, "15/02/2021", ""));
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+        assertEquals (2, booksDB.getNumBooks());
+        assertEquals (1, booksDB.getNumDeleted());
+
+        booksDB.appendBookInfo (book (3));
+        assertEquals (1, booksDB.searchBookByTitle ("Book 3"));
+        ReadBooksDB reopened = reopen();
+        assertEquals (3, reopened.getNumBooks());
+        assertEquals (3, reopened.getNumRecords());
+        assertEquals (0, reopened.getNumDeleted());
+    }
+
+}
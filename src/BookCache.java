@@ -0,0 +1,193 @@
+/*
+ * Autors:
+ * -Xiaolong Ji
+ * -Aticor
+ */
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Memòria cau LRU de llibres ja desempaquetats, indexada per número de registre.
+ * <br>
+ * Quan s'omple, s'esborra el llibre que fa més temps que no es fa servir.
+ * Guarda comptadors d'encerts, fallades i expulsions per poder-ne ajustar la mida.
+ * <br>
+ * Es pot fer servir des de diversos fils. Per no fer esperar tots els
+ * lectors en un sol bloqueig, els llibres es reparteixen en franges (fins
+ * a MAX_STRIPES) segons el número de registre; cada franja és una LRU
+ * independent amb la seva part de la capacitat i el seu propi bloqueig.
+ * Per això el llibre expulsat és el menys usat de la seva franja, no
+ * necessàriament de tota la memòria cau.
+ */
+public class BookCache {
+
+    private static final int MAX_STRIPES = 16;
+
+    /** Llibres mínims per franja: amb menys, l'LRU de cada franja seria massa petita. */
+    private static final int MIN_STRIPE_CAPACITY = 8;
+
+    private final int capacity;
+    private final Stripe[] stripes;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * Crea una memòria cau buida.
+     * @param capacity Nombre màxim de llibres guardats.
+     */
+    public BookCache (int capacity) {
+        this.capacity = capacity;
+        int count = Math.min (MAX_STRIPES, Integer.highestOneBit (Math.max (1, capacity / MIN_STRIPE_CAPACITY)));
+        stripes = new Stripe[count];
+        for (int i = 0; i < count; i++) {
+            //La capacitat que sobra de la divisió va a les primeres franges.
+            stripes[i] = new Stripe (capacity / count + (i < capacity % count ? 1 : 0));
+        }
+    }
+
+    private Stripe stripe (int n) {
+        int h = n * 0x9E3779B9;
+        return stripes[(h ^ (h >>> 16)) & (stripes.length - 1)];
+    }
+
+    /**
+     * Cerca un llibre a la memòria cau.
+     * @param n Número de registre.
+     * @return El llibre, o null si no hi és.
+     */
+    public BookInfo get (int n) {
+        Stripe stripe = stripe (n);
+        BookInfo book;
+        synchronized (stripe) {
+            book = stripe.get (n);
+        }
+        if (book != null) {
+            hits.increment();
+        } else {
+            misses.increment();
+        }
+        return book;
+    }
+
+    /**
+     * Guarda (o substitueix) un llibre a la memòria cau.
+     * @param n Número de registre.
+     * @param book Llibre.
+     */
+    public void put (int n, BookInfo book) {
+        Stripe stripe = stripe (n);
+        synchronized (stripe) {
+            stripe.put (n, book);
+        }
+    }
+
+    /**
+     * Treu un registre de la memòria cau.
+     * @param n Número de registre.
+     */
+    public void remove (int n) {
+        Stripe stripe = stripe (n);
+        synchronized (stripe) {
+            stripe.remove (n);
+        }
+    }
+
+    /**
+     * Buida la memòria cau (els comptadors es mantenen).
+     */
+    public void clear() {
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                stripe.clear();
+            }
+        }
+    }
+
+    /**
+     * Obtenir la capacitat.
+     * @return Nombre màxim de llibres guardats.
+     */
+    public int getCapacity() { return capacity; }
+
+    /**
+     * Obtenir el nombre de llibres guardats.
+     * @return Nombre de llibres guardats.
+     */
+    public int getSize() {
+        int size = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                size += stripe.size();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Obtenir el nombre d'encerts.
+     * @return Lectures servides des de la memòria cau.
+     */
+    public long getHits() { return hits.sum(); }
+
+    /**
+     * Obtenir el nombre de fallades.
+     * @return Lectures que han hagut d'anar al fitxer.
+     */
+    public long getMisses() { return misses.sum(); }
+
+    /**
+     * Obtenir el nombre d'expulsions.
+     * @return Llibres esborrats per falta d'espai.
+     */
+    public long getEvictions() { return evictions.sum(); }
+
+    /**
+     * Posa a zero els comptadors.
+     */
+    public void resetStats() {
+        hits.reset();
+        misses.reset();
+        evictions.reset();
+    }
+
+    /**
+     * toString
+     * @return String
+     */
+    public String toString() {
+        long hits = getHits();
+        long misses = getMisses();
+        long total = hits + misses;
+        return "Cache " + getSize() + "/" + capacity + ": " + hits + " hits, "
+                + misses + " misses (" + (total == 0 ? 0 : 100 * hits / total) + "% hit rate), "
+                + getEvictions() + " evictions.";
+    }
+
+    /**
+     * Franja de la memòria cau: una LRU amb ordre d'accés (el primer
+     * element és el menys usat recentment). S'ha d'accedir amb el seu bloqueig.
+     */
+    private class Stripe extends LinkedHashMap<Integer, BookInfo> {
+        private static final long serialVersionUID = 1L;
+
+        private final int capacity;
+
+        Stripe (int capacity) {
+            super (16, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry (Map.Entry<Integer, BookInfo> eldest) {
+            if (size() > capacity) {
+                evictions.increment();
+                return true;
+            }
+            return false;
+        }
+    }
+
+}
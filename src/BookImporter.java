@@ -0,0 +1,405 @@
+/*
+ * Autors:
+ * -Xiaolong Ji
+ * -Aticor
+ */
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.zip.CRC32;
+
+/**
+ * Càrrega de llibres en paral·lel a partir d'una llista de fitxers de text.
+ * <br>
+ * La càrrega té tres etapes connectades amb cues limitades:
+ * <ol>
+ * <li>Lectura: els fitxers es llegeixen (BookInfoReader) en paral·lel
+ * en un grup de fils de mida fixa, i se'n calcula el CRC-32.</li>
+ * <li>Empaquetament: els llibres, en l'ordre de la llista, s'empaqueten
+ * en blocs de ReadBooksDB.BATCH_SIZE registres. Amb importFiles, un
+ * Handler rep abans cada fitxer i pot decidir que el llibre no s'afegeixi
+ * (BookSync, per exemple, actualitza al seu lloc els llibres que ja hi són).</li>
+ * <li>Escriptura: el fil que crida importList o importFiles escriu cada
+ * bloc a la base de dades (ReadBooksDB.appendRecords).</li>
+ * </ol>
+ * Com que les cues són limitades, una etapa lenta frena les anteriores
+ * i el nombre de llibres en memòria queda fitat.
+ * <br>
+ * Els fitxers amb dades que no es poden guardar (un nombre de pàgines que no
+ * és un nombre, o una data que el format de la base de dades no accepta) no
+ * s'afegeixen: es llisten a getSkipped i la resta de la càrrega continua.
+ */
+public class BookImporter {
+
+    private static final int BUFFERS = 3;
+
+    /** Marca de final de la cua de lectures. */
+    private static final Parsed END = new Parsed (null, new FutureTask<BookFile> (new Callable<BookFile>() {
+        public BookFile call() { return null; }
+    }));
+
+    private final ReadBooksDB booksDB;
+    private final int readers;
+    private final int queueCapacity;
+    private final List<String> skipped = new ArrayList<String>();
+
+    /**
+     * Crea un importador amb els paràmetres per defecte: com que la lectura
+     * està limitada per l'E/S, es fan servir més fils que processadors.
+     * @param booksDB Base de dades on s'afegeixen els llibres.
+     */
+    public BookImporter (ReadBooksDB booksDB) {
+        this (booksDB, 4 * Runtime.getRuntime().availableProcessors(),
+              16 * Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Crea un importador.
+     * @param booksDB Base de dades on s'afegeixen els llibres.
+     * @param readers Nombre de fils que llegeixen fitxers.
+     * @param queueCapacity Nombre màxim de fitxers pendents d'empaquetar.
+     */
+    public BookImporter (ReadBooksDB booksDB, int readers, int queueCapacity) {
+        this.booksDB = booksDB;
+        this.readers = readers;
+        this.queueCapacity = queueCapacity;
+    }
+
+    /**
+     * Afegeix a la base de dades tots els llibres d'una llista de fitxers,
+     * en el mateix ordre que la llista.
+     * @param listFileName Fitxer amb el nom d'un fitxer de llibre per línia.
+     * @return Nombre de llibres afegits.
+     * @throws IOException Si falla la lectura d'algun fitxer o l'escriptura.
+     */
+    public int importList (String listFileName) throws IOException {
+        return importFiles (readList (listFileName), null);
+    }
+
+    /**
+     * Llegeix una llista de fitxers.
+     * @param listFileName Fitxer amb el nom d'un fitxer de llibre per línia.
+     * @return Noms dels fitxers, en ordre.
+     * @throws IOException
+     */
+    static List<String> readList (String listFileName) throws IOException {
+        List<String> fileNames = new ArrayList<String>();
+        BufferedReader input = new BufferedReader (new FileReader (listFileName));
+        try {
+            for (String line = input.readLine(); line != null; line = input.readLine()) {
+                fileNames.add (line);
+            }
+        } finally {
+            input.close();
+        }
+        return fileNames;
+    }
+
+    /**
+     * Llegeix uns fitxers de llibre i afegeix els llibres a la base de
+     * dades, en el mateix ordre.
+     * @param fileNames Noms dels fitxers.
+     * @param handler Rep cada fitxer llegit, en ordre, des del fil
+     * d'empaquetament, i decideix si el llibre s'afegeix; null per afegir-los tots.
+     * @return Nombre de llibres afegits.
+     * @throws IOException Si falla la lectura d'algun fitxer, l'escriptura o el handler.
+     */
+    public int importFiles (final List<String> fileNames, final Handler handler) throws IOException {
+        skipped.clear();
+        final ExecutorService pool = Executors.newFixedThreadPool (readers);
+        final BlockingQueue<Parsed> parsed = new ArrayBlockingQueue<Parsed> (queueCapacity);
+        final BlockingQueue<byte[]> free = new ArrayBlockingQueue<byte[]> (BUFFERS);
+        final BlockingQueue<Batch> packed = new ArrayBlockingQueue<Batch> (BUFFERS + 1);
+        final Failure failure = new Failure();
+        final RecordFormat format = booksDB.getFormat();
+        for (int i = 0; i < BUFFERS; i++) {
+            free.add (new byte[ReadBooksDB.BATCH_SIZE * format.size()]);
+        }
+
+        //Etapa 1: reparteix la lectura dels fitxers entre els fils del grup.
+        Thread dispatcher = new Thread (new Runnable() {
+            public void run() {
+                try {
+                    for (final String fileName : fileNames) {
+                        if (failure.failed()) {
+                            break;
+                        }
+                        parsed.put (new Parsed (fileName, pool.submit (new Callable<BookFile>() {
+                            public BookFile call() throws IOException {
+                                return load (fileName);
+                            }
+                        })));
+                    }
+                } catch (Throwable ex) {
+                    failure.set (ex);
+                } finally {
+                    putUninterruptibly (parsed, END);
+                }
+            }
+        }, "BookImporter-dispatcher");
+
+        //Etapa 2: empaqueta els llibres en l'ordre de la llista.
+        Thread packer = new Thread (new Runnable() {
+            public void run() {
+                byte[] buffer = null;
+                int count = 0;
+                try {
+                    for (Parsed file = parsed.take(); file != END; file = parsed.take()) {
+                        if (failure.failed()) {
+                            //Només es buida la cua perquè el repartidor pugui acabar.
+                            file.loading.cancel (true);
+                            continue;
+                        }
+                        BookFile loaded;
+                        try {
+                            loaded = file.loading.get();
+                            if (buffer == null) {
+                                buffer = free.take();
+                            }
+                            format.encode (loaded.book, buffer, count * format.size());
+                        } catch (ExecutionException ex) {
+                            if (ex.getCause() instanceof IllegalArgumentException) {
+                                skip (file.fileName, ex.getCause());
+                            } else {
+                                failure.set (ex.getCause());
+                            }
+                            continue;
+                        } catch (IllegalArgumentException ex) {
+                            //El format no pot guardar alguna dada (per exemple, una data).
+                            skip (file.fileName, ex);
+                            continue;
+                        }
+                        try {
+                            if (handler != null && !handler.accept (loaded)) {
+                                continue;
+                            }
+                        } catch (IOException | RuntimeException ex) {
+                            failure.set (ex);
+                            continue;
+                        }
+                        count++;
+                        if (count == ReadBooksDB.BATCH_SIZE) {
+                            packed.put (new Batch (buffer, count));
+                            buffer = null;
+                            count = 0;
+                        }
+                    }
+                    if (count > 0) {
+                        packed.put (new Batch (buffer, count));
+                    }
+                } catch (Throwable ex) {
+                    failure.set (ex);
+                } finally {
+                    putUninterruptibly (packed, Batch.END);
+                }
+            }
+        }, "BookImporter-packer");
+
+        dispatcher.start();
+        packer.start();
+
+        //Etapa 3: escriu els blocs a la base de dades (un sol escriptor).
+        int total = 0;
+        try {
+            for (Batch batch = takeUninterruptibly (packed); batch != Batch.END; batch = takeUninterruptibly (packed)) {
+                if (!failure.failed()) {
+                    try {
+                        booksDB.appendRecords (batch.records, batch.count);
+                        total += batch.count;
+                    } catch (Throwable ex) {
+                        failure.set (ex);
+                    }
+                }
+                free.add (batch.records);
+            }
+        } finally {
+            pool.shutdownNow();
+            joinUninterruptibly (dispatcher);
+            joinUninterruptibly (packer);
+        }
+        failure.rethrow();
+        return total;
+    }
+
+    /**
+     * Fitxers de l'última càrrega que no s'han afegit perquè tenien dades
+     * no vàlides, en l'ordre de la llista.
+     * @return Nom de cada fitxer i el motiu ("nom: motiu").
+     */
+    public List<String> getSkipped() {
+        return Collections.unmodifiableList (skipped);
+    }
+
+    private void skip (String fileName, Throwable reason) {
+        skipped.add (fileName + ": " + reason.getMessage());
+    }
+
+    /**
+     * Llegeix un fitxer de llibre i en calcula el CRC-32.
+     */
+    private static BookFile load (String fileName) throws IOException {
+        Path path = Paths.get (fileName);
+        //La data es llegeix abans que el contingut: si el fitxer canvia mentrestant, es tornarà a llegir.
+        long modified = Files.getLastModifiedTime (path).toMillis();
+        byte[] content = Files.readAllBytes (path);
+        CRC32 crc = new CRC32();
+        crc.update (content, 0, content.length);
+        BookInfo book = BookInfoReader.readBook (new InputStreamReader (new ByteArrayInputStream (content)));
+        return new BookFile (fileName, book, content.length, modified, (int) crc.getValue());
+    }
+
+    /**
+     * Decideix què es fa amb cada fitxer llegit per importFiles.
+     */
+    public interface Handler {
+        /**
+         * Rep un fitxer llegit, en l'ordre de la llista. Els fitxers que
+         * s'ometen (vegeu getSkipped) no hi arriben.
+         * @param file Fitxer llegit.
+         * @return Cert si el llibre s'ha d'afegir al final de la base de dades.
+         * @throws IOException
+         */
+        boolean accept (BookFile file) throws IOException;
+    }
+
+    /**
+     * Llibre llegit d'un fitxer.
+     */
+    public static class BookFile {
+        final String fileName;
+        final BookInfo book;
+        final long size;
+        final long modified;
+        final int crc;
+
+        BookFile (String fileName, BookInfo book, long size, long modified, int crc) {
+            this.fileName = fileName;
+            this.book = book;
+            this.size = size;
+            this.modified = modified;
+            this.crc = crc;
+        }
+    }
+
+    /**
+     * Fitxer de la llista amb la lectura en curs.
+     */
+    private static class Parsed {
+        final String fileName;
+        final Future<BookFile> loading;
+
+        Parsed (String fileName, Future<BookFile> loading) {
+            this.fileName = fileName;
+            this.loading = loading;
+        }
+    }
+
+    /**
+     * Bloc de registres empaquetats pendent d'escriure.
+     */
+    private static class Batch {
+        static final Batch END = new Batch (null, 0);
+
+        final byte[] records;
+        final int count;
+
+        Batch (byte[] records, int count) {
+            this.records = records;
+            this.count = count;
+        }
+    }
+
+    /**
+     * Primer error produït en qualsevol de les etapes.
+     */
+    private static class Failure {
+        private Throwable error;
+
+        synchronized void set (Throwable ex) {
+            if (error == null) {
+                error = ex;
+            }
+        }
+
+        synchronized boolean failed() {
+            return error != null;
+        }
+
+        synchronized void rethrow() throws IOException {
+            if (error instanceof IOException) {
+                throw (IOException) error;
+            } else if (error instanceof RuntimeException) {
+                throw (RuntimeException) error;
+            } else if (error instanceof Error) {
+                throw (Error) error;
+            } else if (error != null) {
+                throw new IOException (error);
+            }
+        }
+    }
+
+    private static <T> void putUninterruptibly (BlockingQueue<T> queue, T element) {
+        boolean interrupted = false;
+        for (;;) {
+            try {
+                queue.put (element);
+                break;
+            } catch (InterruptedException ex) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static <T> T takeUninterruptibly (BlockingQueue<T> queue) {
+        boolean interrupted = false;
+        try {
+            for (;;) {
+                try {
+                    return queue.take();
+                } catch (InterruptedException ex) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static void joinUninterruptibly (Thread thread) {
+        boolean interrupted = false;
+        for (;;) {
+            try {
+                thread.join();
+                break;
+            } catch (InterruptedException ex) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+}
@@ -4,6 +4,8 @@
  * -Aticor
  */
 
+import java.nio.ByteBuffer;
+
 public class BookInfo {
 
     private String  title;
@@ -28,6 +30,22 @@ public class BookInfo {
      */
     public static final int SIZE = (2*TITLE_LIMIT)+(2*AUTHOR_LIMIT)+(2*SERIES_LIMIT)+2+1+1+(2*DATE_LIMIT)+(2*DATE_LIMIT);
 
+    // Desplaçament de cada camp dins del registre empaquetat.
+    public static final int TITLE_OFFSET      = 0;
+    public static final int AUTHOR_OFFSET     = TITLE_OFFSET + 2*TITLE_LIMIT;
+    public static final int SERIES_OFFSET     = AUTHOR_OFFSET + 2*AUTHOR_LIMIT;
+    public static final int PAGES_OFFSET      = SERIES_OFFSET + 2*SERIES_LIMIT;
+    public static final int STARTED_OFFSET    = PAGES_OFFSET + 2;
+    public static final int FINISHED_OFFSET   = STARTED_OFFSET + 1;
+    public static final int START_DATE_OFFSET = FINISHED_OFFSET + 1;
+    public static final int END_DATE_OFFSET   = START_DATE_OFFSET + 2*DATE_LIMIT;
+
+    // Nombre màxim de caràcters de cada camp de text.
+    public static final int TITLE_LENGTH  = TITLE_LIMIT;
+    public static final int AUTHOR_LENGTH = AUTHOR_LIMIT;
+    public static final int SERIES_LENGTH = SERIES_LIMIT;
+    public static final int DATE_LENGTH   = DATE_LIMIT;
+
     //Método constructor
     /**
      * Informació d'un llibre on conté següents informacions:
@@ -108,7 +126,16 @@ public class BookInfo {
     public byte[] toBytes() {
         //Crear l'objecte
         byte[] record = new byte[SIZE];
-        int offset = 0; //posició inicial de la informació del llibre.
+        toBytes (record, 0);
+        return record;
+    }
+
+    /**
+     * Empaqueta un objecte de la classe dins d'un array de bytes existent.
+     * @param record Array on es guarda el registre (almenys offset + SIZE bytes).
+     * @param offset Posició inicial del registre dins de l'array.
+     */
+    public void toBytes (byte[] record, int offset) {
 
         //Empaquetament del "títol" de tipus "string" amb límits de "TITLE_LIMIT bytes",
         //que s'emmagatzema al "record", començant per la posició "offset".
@@ -148,8 +175,16 @@ public class BookInfo {
         //Empaquetament de "la data de la finalització de la lectura" del tipus "strings" amb límit
         //de "DATE_LIMIT bytes", que s'emmagatzema al "record", començant a la posició "offset".
         PackUtils.packString (endDate, DATE_LIMIT, record, offset);
+    }
 
-        return record;
+    /**
+     * Empaqueta un objecte de la classe dins d'un ByteBuffer (pot ser directe),
+     * sense canviar-ne la posició.
+     * @param buffer Buffer on es guarda el registre.
+     * @param index Posició inicial del registre dins del buffer.
+     */
+    public void toBytes (ByteBuffer buffer, int index) {
+        RecordFormat.V1.encode (this, buffer, index);
     }
 
     /**
@@ -158,8 +193,16 @@ public class BookInfo {
      * @return Informació del llibre desempaquetat.
      */
     public static BookInfo fromBytes (byte[] record) {
-        int offset= 0; //posició inicial de la informació del llibre.
+        return fromBytes (record, 0); //posició inicial de la informació del llibre.
+    }
 
+    /**
+     * Carrega un objecte de la classe a partir d'una posició d'un array de bytes.
+     * @param record Array de bytes empaquetats.
+     * @param offset Posició inicial del registre dins de l'array.
+     * @return Informació del llibre desempaquetat.
+     */
+    public static BookInfo fromBytes (byte[] record, int offset) {
         //Desempaquetament del "títol" de tipus "string",
         //que s'emmagatzema al "record", començant per la posició "offset".
         String 	title = PackUtils.unpackString(TITLE_LIMIT, record, offset);
@@ -177,17 +220,17 @@ public class BookInfo {
 
         //Desempaquetament de les "pàgines" de tipus "short",
         //que s'emmagatzema al "record", començant per la posició "offset".
-        Short pages = PackUtils.unpackShort(record, offset);
+        short pages = PackUtils.unpackShort(record, offset);
         offset += 2; //posició acumulada de l'inici següent byte a tractar.
 
         //Desempaquetament de "si ha començat la lectura" de tipus "booleà",
         //que s'emmagatzema al "record", començant per la posició "offset".
-        Boolean started = PackUtils.unpackBoolean(record, offset);
+        boolean started = PackUtils.unpackBoolean(record, offset);
         offset += 1; //posició acumulada de l'inici següent byte a tractar.
 
         //Desempaquetament de "si ha acabat la lectura" de tipus "booleà"
         //que s'emmagatzema al "record", començant per la posició "offset".
-        Boolean finished = PackUtils.unpackBoolean(record, offset);
+        boolean finished = PackUtils.unpackBoolean(record, offset);
         offset += 1; //posició acumulada de l'inici següent byte a tractar.
 
         //Desempaquetament de "la data d'inici de la lectura", que
@@ -203,6 +246,17 @@ public class BookInfo {
         return new BookInfo (title, author, series, pages, started, finished, startDate, endDate);
     }
 
+    /**
+     * Carrega un objecte de la classe a partir d'una posició d'un ByteBuffer
+     * (pot ser directe), sense canviar-ne la posició.
+     * @param buffer Buffer amb el registre empaquetat.
+     * @param index Posició inicial del registre dins del buffer.
+     * @return Informació del llibre desempaquetat.
+     */
+    public static BookInfo fromBytes (ByteBuffer buffer, int index) {
+        return RecordFormat.V1.decode (buffer, index);
+    }
+
     /**
      * toString
      * @return String
@@ -6,6 +6,7 @@
 import java.io.FileReader;
 import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.Reader;
 
 public class BookInfoReader {
 
@@ -16,6 +17,17 @@ public class BookInfoReader {
      * @throws IOException
      */
     public static BookInfo readBookFile (String fileName) throws IOException {
+        return readBook (new FileReader (fileName));
+    }
+
+    /**
+     * Llegeix la informació d'un llibre amb el mateix format que els fitxers
+     * de text (una línia per camp). El lector es tanca en acabar.
+     * @param input Lector amb el contingut d'un fitxer de llibre.
+     * @return Informació del llibre llegit.
+     * @throws IOException
+     */
+    public static BookInfo readBook (Reader input) throws IOException {
         //DECLARACIONS
         //variable on es guarda la cadena sencera de la línia llegida per br (BufferedReader).
         String line = "";
@@ -37,8 +49,8 @@ public class BookInfoReader {
         String endDate = "";
 
         //INSTRUCCIONS
-        //BufferedReader llegeix sobre FileReader sobre el fitxer a llegir.
-        BufferedReader br = new BufferedReader (new FileReader (fileName));
+        //BufferedReader llegeix sobre el lector del fitxer a llegir.
+        BufferedReader br = new BufferedReader (input);
         //El contingut llegit per BufferedReader en guarda en variable "line"
         line = br.readLine();
 
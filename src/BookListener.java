@@ -0,0 +1,43 @@
+/*
+ * Autors:
+ * -Xiaolong Ji
+ * -Aticor
+ */
+
+/**
+ * Rep els canvis dels registres d'una base de dades (vegeu
+ * ReadBooksDB.addListener), per mantenir dades derivades al dia.
+ * <br>
+ * Els mètodes es criden amb el bloqueig d'escriptura agafat: han de ser
+ * ràpids i no poden cridar cap mètode de la base de dades. La vista només
+ * és vàlida durant la crida.
+ */
+public interface BookListener {
+
+    /**
+     * S'ha afegit (o escrit) un registre.
+     * @param n Posició del registre.
+     * @param record Vista del registre nou.
+     */
+    void bookAdded (int n, BookRecord record);
+
+    /**
+     * Un registre deixa de ser-hi (s'esborra o se sobreescriu).
+     * @param n Posició del registre.
+     * @param record Vista del registre que hi havia.
+     */
+    void bookRemoved (int n, BookRecord record);
+
+    /**
+     * S'han esborrat tots els registres (reset).
+     */
+    void booksCleared();
+
+    /**
+     * Els registres han canviat de número en compactar o reordenar el
+     * fitxer (ReadBooksDB.compact i cluster); els llibres són els mateixos.
+     * @param mapping Número nou de cada registre antic (-1 per als esborrats).
+     */
+    void booksMoved (int[] mapping);
+
+}
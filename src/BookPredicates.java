@@ -0,0 +1,121 @@
+/*
+ * Autors:
+ * -Xiaolong Ji
+ * -Aticor
+ */
+
+import java.util.function.Predicate;
+
+/**
+ * Condicions sobre registres empaquetats, per fer consultes amb TableScan.
+ * <br>
+ * Les condicions es comproven sobre la vista (BookRecord), que només
+ * desempaqueta el camp que es consulta: les pàgines i els indicadors es
+ * llegeixen directament dels bytes del registre i els textos es comparen
+ * sense crear cap String. Es poden combinar amb and, or i negate.
+ */
+public class BookPredicates {
+
+    private BookPredicates() {
+    }
+
+    /**
+     * Llibres amb més pàgines que un mínim.
+     * @param pages Nombre de pàgines.
+     * @return Condició.
+     */
+    public static Predicate<BookRecord> pagesGreaterThan (final int pages) {
+        return new Predicate<BookRecord>() {
+            public boolean test (BookRecord record) {
+                return record.getPages() > pages;
+            }
+        };
+    }
+
+    /**
+     * Llibres amb un nombre de pàgines dins d'un interval.
+     * @param min Mínim de pàgines (inclòs).
+     * @param max Màxim de pàgines (inclòs).
+     * @return Condició.
+     */
+    public static Predicate<BookRecord> pagesBetween (final int min, final int max) {
+        return new Predicate<BookRecord>() {
+            public boolean test (BookRecord record) {
+                int pages = record.getPages();
+                return pages >= min && pages <= max;
+            }
+        };
+    }
+
+    /**
+     * Llibres començats.
+     * @return Condició.
+     */
+    public static Predicate<BookRecord> started() {
+        return new Predicate<BookRecord>() {
+            public boolean test (BookRecord record) {
+                return record.isStarted();
+            }
+        };
+    }
+
+    /**
+     * Llibres acabats.
+     * @return Condició.
+     */
+    public static Predicate<BookRecord> finished() {
+        return new Predicate<BookRecord>() {
+            public boolean test (BookRecord record) {
+                return record.isFinished();
+            }
+        };
+    }
+
+    /**
+     * Llibres començats però no acabats.
+     * @return Condició.
+     */
+    public static Predicate<BookRecord> inProgress() {
+        return started().and (finished().negate());
+    }
+
+    /**
+     * Llibres amb un títol (sense diferenciar majúscules i minúscules).
+     * @param title Títol.
+     * @return Condició.
+     */
+    public static Predicate<BookRecord> title (final String title) {
+        return new Predicate<BookRecord>() {
+            public boolean test (BookRecord record) {
+                return record.titleEqualsIgnoreCase (title);
+            }
+        };
+    }
+
+    /**
+     * Llibres d'un autor (sense diferenciar majúscules i minúscules).
+     * @param author Autor.
+     * @return Condició.
+     */
+    public static Predicate<BookRecord> author (final String author) {
+        return new Predicate<BookRecord>() {
+            public boolean test (BookRecord record) {
+                return record.authorEqualsIgnoreCase (author);
+            }
+        };
+    }
+
+    /**
+     * Llibres d'una sèrie (sense diferenciar majúscules i minúscules).
+     * @param series Sèrie.
+     * @return Condició.
+     */
+    public static Predicate<BookRecord> series (final String series) {
+        return new Predicate<BookRecord>() {
+            public boolean test (BookRecord record) {
+                return record.seriesEqualsIgnoreCase (series);
+            }
+        };
+    }
+
+}
@@ -0,0 +1,318 @@
+/*
+ * Autors:
+ * -Xiaolong Ji
+ * -Aticor
+ */
+
+/**
+ * Vista (<em>flyweight</em>) sobre un registre empaquetat d'un llibre.
+ * <br>
+ * Els camps es llegeixen directament dels bytes, segons el format del
+ * registre (RecordFormat), sense crear cap BookInfo ni cap String intermedi:
+ * els textos es desempaqueten en un array de chars propi de la vista.
+ * Una mateixa vista es pot reutilitzar per recórrer molts registres
+ * (amb wrap o ReadBooksDB.readRecord).
+ */
+public class BookRecord {
+
+    private RecordFormat format;
+    private byte[] buffer;
+    private int offset;
+    private byte[] own;
+
+    // Últim camp de text desempaquetat
+    private final char[] text = new char[BookInfo.TITLE_LENGTH];
+    private RecordFormat.Field textField;
+    private int textLength;
+
+    /**
+     * Crea una vista buida. S'ha de situar amb wrap o ReadBooksDB.readRecord.
+     */
+    public BookRecord() {
+        this.format = RecordFormat.V1;
+    }
+
+    /**
+     * Situa la vista sobre un registre d'un array de bytes.
+     * @param format Format del registre.
+     * @param buffer Array que conté el registre.
+     * @param offset Desplaçament del registre dintre de l'array.
+     * @return La mateixa vista.
+     */
+    public BookRecord wrap (RecordFormat format, byte[] buffer, int offset) {
+        this.format = format;
+        this.buffer = buffer;
+        this.offset = offset;
+        this.textField = null;
+        return this;
+    }
+
+    /**
+     * Obtenir un buffer propi de la vista per llegir-hi un registre.
+     * @param size Mida mínima del buffer.
+     * @return Buffer propi de la vista.
+     */
+    byte[] ownBuffer (int size) {
+        if (own == null || own.length < size) {
+            own = new byte[size];
+        }
+        return own;
+    }
+
+    /**
+     * Obtenir el format del registre.
+     * @return Format.
+     */
+    public RecordFormat format() { return format; }
+
+    /**
+     * Obtenir l'array de bytes sobre el qual està situada la vista.
+     * @return Array de bytes.
+     */
+    public byte[] buffer() { return buffer; }
+
+    /**
+     * Obtenir el desplaçament del registre dins de l'array.
+     * @return Desplaçament.
+     */
+    public int offset() { return offset; }
+
+    // Camps de mida fixa
+
+    /**
+     * Obtenir pàgina total.
+     * @return Pàgina total.
+     */
+    public short getPages() {
+        return format.unpackPages (buffer, offset);
+    }
+
+    /**
+     * Estat del llibre.
+     * @return Començat o no.
+     */
+    public boolean isStarted() {
+        return format.unpackStarted (buffer, offset);
+    }
+
+    /**
+     * Estat del llibre.
+     * @return Acabat o no.
+     */
+    public boolean isFinished() {
+        return format.unpackFinished (buffer, offset);
+    }
+
+    // Títol
+
+    /**
+     * Obtenir la llargada del títol.
+     * @return Nombre de caràcters del títol.
+     */
+    public int titleLength() {
+        return unpack (RecordFormat.Field.TITLE);
+    }
+
+    /**
+     * Obtenir un caràcter del títol.
+     * @param i Posició del caràcter (menor que titleLength()).
+     * @return El caràcter.
+     */
+    public char titleCharAt (int i) {
+        unpack (RecordFormat.Field.TITLE);
+        return text[i];
+    }
+
+    /**
+     * Compara el títol amb un text sense diferenciar majúscules i minúscules.
+     * @param title Text a comparar.
+     * @return Cert si coincideixen (com String.equalsIgnoreCase).
+     */
+    public boolean titleEqualsIgnoreCase (String title) {
+        return equalsIgnoreCase (RecordFormat.Field.TITLE, title);
+    }
+
+    /**
+     * Afegeix el títol al final d'un StringBuilder.
+     * @param sb On s'afegeix el títol.
+     * @return El mateix StringBuilder.
+     */
+    public StringBuilder appendTitle (StringBuilder sb) {
+        return append (RecordFormat.Field.TITLE, sb);
+    }
+
+    /**
+     * Obtenir títol.
+     * @return Títol.
+     */
+    public String getTitle() {
+        return string (RecordFormat.Field.TITLE);
+    }
+
+    // Autor
+
+    /**
+     * Compara l'autor amb un text sense diferenciar majúscules i minúscules.
+     * @param author Text a comparar.
+     * @return Cert si coincideixen.
+     */
+    public boolean authorEqualsIgnoreCase (String author) {
+        return equalsIgnoreCase (RecordFormat.Field.AUTHOR, author);
+    }
+
+    /**
+     * Afegeix l'autor al final d'un StringBuilder.
+     * @param sb On s'afegeix l'autor.
+     * @return El mateix StringBuilder.
+     */
+    public StringBuilder appendAuthor (StringBuilder sb) {
+        return append (RecordFormat.Field.AUTHOR, sb);
+    }
+
+    /**
+     * Obtenir autor.
+     * @return Autor.
+     */
+    public String getAuthor() {
+        return string (RecordFormat.Field.AUTHOR);
+    }
+
+    // Sèrie
+
+    /**
+     * Compara la sèrie amb un text sense diferenciar majúscules i minúscules.
+     * @param series Text a comparar.
+     * @return Cert si coincideixen.
+     */
+    public boolean seriesEqualsIgnoreCase (String series) {
+        return equalsIgnoreCase (RecordFormat.Field.SERIES, series);
+    }
+
+    /**
+     * Afegeix la sèrie al final d'un StringBuilder.
+     * @param sb On s'afegeix la sèrie.
+     * @return El mateix StringBuilder.
+     */
+    public StringBuilder appendSeries (StringBuilder sb) {
+        return append (RecordFormat.Field.SERIES, sb);
+    }
+
+    /**
+     * Obtenir la sèrie.
+     * @return Sèrie.
+     */
+    public String getSeries() {
+        return string (RecordFormat.Field.SERIES);
+    }
+
+    // Dates
+
+    /**
+     * Afegeix la data d'inici de la lectura al final d'un StringBuilder.
+     * @param sb On s'afegeix la data.
+     * @return El mateix StringBuilder.
+     */
+    public StringBuilder appendStartDate (StringBuilder sb) {
+        return append (RecordFormat.Field.START_DATE, sb);
+    }
+
+    /**
+     * Obtenir data d'inici de la lectura.
+     * @return Data d'inici de la lectura.
+     */
+    public String getStartDate() {
+        return string (RecordFormat.Field.START_DATE);
+    }
+
+    /**
+     * Afegeix la data de finalització de la lectura al final d'un StringBuilder.
+     * @param sb On s'afegeix la data.
+     * @return El mateix StringBuilder.
+     */
+    public StringBuilder appendEndDate (StringBuilder sb) {
+        return append (RecordFormat.Field.END_DATE, sb);
+    }
+
+    /**
+     * Obtenir la data de finalització de la lectura.
+     * @return Data de finalització de la lectura.
+     */
+    public String getEndDate() {
+        return string (RecordFormat.Field.END_DATE);
+    }
+
+    /**
+     * Indica si el registre és una làpida (un llibre esborrat, vegeu DeleteMode).
+     * @return Cert si el registre està esborrat.
+     */
+    public boolean isDeleted() {
+        return format.unpackDeleted (buffer, offset);
+    }
+
+    /**
+     * Obtenir la data d'inici de la lectura com a dia des de 1970-01-01.
+     * @return Dia, o RecordFormat.NO_DATE si no n'hi ha.
+     */
+    public int getStartDay() {
+        return format.unpackDay (RecordFormat.Field.START_DATE, buffer, offset);
+    }
+
+    /**
+     * Obtenir la data de finalització de la lectura com a dia des de 1970-01-01.
+     * @return Dia, o RecordFormat.NO_DATE si no n'hi ha.
+     */
+    public int getEndDay() {
+        return format.unpackDay (RecordFormat.Field.END_DATE, buffer, offset);
+    }
+
+    /**
+     * Construeix el BookInfo complet d'aquest registre.
+     * @return Informació del llibre desempaquetat.
+     */
+    public BookInfo toBookInfo() {
+        return format.decode (buffer, offset);
+    }
+
+    // Utilitats sobre camps de text
+
+    /**
+     * Desempaqueta un camp de text a l'array propi (si no ho estava ja).
+     * @return Nombre de caràcters del camp.
+     */
+    private int unpack (RecordFormat.Field field) {
+        if (textField != field) {
+            textLength = format.unpackText (field, buffer, offset, text);
+            textField = field;
+        }
+        return textLength;
+    }
+
+    private boolean equalsIgnoreCase (RecordFormat.Field field, String s) {
+        int n = unpack (field);
+        if (n != s.length()) {
+            return false;
+        }
+        for (int i = 0; i < n; i++) {
+            char c1 = text[i];
+            char c2 = s.charAt (i);
+            if (c1 != c2) {
+                //Mateix criteri que String.equalsIgnoreCase.
+                char u1 = Character.toUpperCase (c1);
+                char u2 = Character.toUpperCase (c2);
+                if (u1 != u2 && Character.toLowerCase (u1) != Character.toLowerCase (u2)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private StringBuilder append (RecordFormat.Field field, StringBuilder sb) {
+        return sb.append (text, 0, unpack (field));
+    }
+
+    private String string (RecordFormat.Field field) {
+        return new String (text, 0, unpack (field));
+    }
+
+}
@@ -0,0 +1,178 @@
+/*
+ * Autors:
+ * -Xiaolong Ji
+ * -Aticor
+ */
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.function.BiConsumer;
+import java.util.function.BinaryOperator;
+import java.util.function.Supplier;
+
+/**
+ * Estadístiques de lectura agrupades (pàgines per autor, llibres acabats
+ * per mes, durada mitjana de les lectures...).
+ * <br>
+ * Es poden calcular de dues maneres:
+ * <ul>
+ * <li>compute: una sola passada en paral·lel sobre els registres
+ * empaquetats (TableScan.reduce), sense desempaquetar-los.</li>
+ * <li>Com a vista materialitzada: un objecte BookStatistics registrat amb
+ * ReadBooksDB.addListener es manté al dia a cada alta, modificació i
+ * baixa, de manera que consultar un grup (get) o el total és O(1).</li>
+ * </ul>
+ */
+public class BookStatistics implements BookListener {
+
+    private final Grouping grouping;
+    private final Map<String, GroupStats> groups = new HashMap<String, GroupStats>();
+    private GroupStats totals = new GroupStats();
+
+    /**
+     * Crea una vista materialitzada buida; s'omple en registrar-la amb
+     * ReadBooksDB.addListener.
+     * @param grouping Criteri d'agrupació.
+     */
+    public BookStatistics (Grouping grouping) {
+        this.grouping = grouping;
+    }
+
+    /**
+     * Calcula les estadístiques de tots els llibres en una sola passada.
+     * @param scan Motor de consultes de la base de dades.
+     * @param grouping Criteri d'agrupació.
+     * @return Agregats de cada grup, ordenats per clau.
+     * @throws IOException
+     */
+    public static SortedMap<String, GroupStats> compute (TableScan scan, final Grouping grouping) throws IOException {
+        Map<String, GroupStats> groups = scan.reduce (new Supplier<Map<String, GroupStats>>() {
+            public Map<String, GroupStats> get() {
+                return new HashMap<String, GroupStats>();
+            }
+        }, new BiConsumer<Map<String, GroupStats>, BookRecord>() {
+            public void accept (Map<String, GroupStats> groups, BookRecord record) {
+                add (groups, grouping.key (record), record);
+            }
+        }, new BinaryOperator<Map<String, GroupStats>>() {
+            public Map<String, GroupStats> apply (Map<String, GroupStats> left, Map<String, GroupStats> right) {
+                for (Map.Entry<String, GroupStats> entry : right.entrySet()) {
+                    GroupStats stats = left.get (entry.getKey());
+                    if (stats == null) {
+                        left.put (entry.getKey(), entry.getValue());
+                    } else {
+                        stats.merge (entry.getValue());
+                    }
+                }
+                return left;
+            }
+        });
+        return new TreeMap<String, GroupStats> (groups);
+    }
+
+    /**
+     * Calcula els agregats de tots els llibres en una sola passada.
+     * @param scan Motor de consultes de la base de dades.
+     * @return Agregats.
+     * @throws IOException
+     */
+    public static GroupStats totals (TableScan scan) throws IOException {
+        return scan.reduce (new Supplier<GroupStats>() {
+            public GroupStats get() {
+                return new GroupStats();
+            }
+        }, new BiConsumer<GroupStats, BookRecord>() {
+            public void accept (GroupStats stats, BookRecord record) {
+                stats.add (record);
+            }
+        }, new BinaryOperator<GroupStats>() {
+            public GroupStats apply (GroupStats left, GroupStats right) {
+                return left.merge (right);
+            }
+        });
+    }
+
+    private static void add (Map<String, GroupStats> groups, String key, BookRecord record) {
+        if (key == null) {
+            return;
+        }
+        GroupStats stats = groups.get (key);
+        if (stats == null) {
+            stats = new GroupStats();
+            groups.put (key, stats);
+        }
+        stats.add (record);
+    }
+
+    /**
+     * Obtenir el criteri d'agrupació de la vista.
+     * @return Criteri d'agrupació.
+     */
+    public Grouping getGrouping() {
+        return grouping;
+    }
+
+    /**
+     * Agregats d'un grup de la vista materialitzada.
+     * @param key Clau del grup (autor, sèrie, any...).
+     * @return Còpia dels agregats, o null si el grup no té cap llibre.
+     */
+    public synchronized GroupStats get (String key) {
+        GroupStats stats = groups.get (key);
+        return stats == null ? null : stats.copy();
+    }
+
+    /**
+     * Agregats de tots els llibres de la vista materialitzada (també els que
+     * no pertanyen a cap grup).
+     * @return Còpia dels agregats.
+     */
+    public synchronized GroupStats getTotals() {
+        return totals.copy();
+    }
+
+    /**
+     * Còpia de tots els grups de la vista materialitzada.
+     * @return Agregats de cada grup, ordenats per clau.
+     */
+    public synchronized SortedMap<String, GroupStats> snapshot() {
+        SortedMap<String, GroupStats> copy = new TreeMap<String, GroupStats>();
+        for (Map.Entry<String, GroupStats> entry : groups.entrySet()) {
+            copy.put (entry.getKey(), entry.getValue().copy());
+        }
+        return copy;
+    }
+
+    public synchronized void bookAdded (int n, BookRecord record) {
+        totals.add (record);
+        add (groups, grouping.key (record), record);
+    }
+
+    public synchronized void bookRemoved (int n, BookRecord record) {
+        totals.remove (record);
+        String key = grouping.key (record);
+        if (key == null) {
+            return;
+        }
+        GroupStats stats = groups.get (key);
+        if (stats != null) {
+            stats.remove (record);
+            if (stats.isEmpty()) {
+                groups.remove (key);
+            }
+        }
+    }
+
+    public void booksMoved (int[] mapping) {
+        //Els agregats no depenen dels números de registre.
+    }
+
+    public synchronized void booksCleared() {
+        groups.clear();
+        totals = new GroupStats();
+    }
+
+}
@@ -0,0 +1,299 @@
+/*
+ * Autors:
+ * -Xiaolong Ji
+ * -Aticor
+ */
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Importació incremental: sincronitza la base de dades amb una llista de
+ * fitxers de llibre sense buidar-la.
+ * <br>
+ * Un manifest (ImportManifest) guarda la mida, la data de modificació i el
+ * CRC-32 de cada fitxer importat. En sincronitzar:
+ * <ul>
+ * <li>Els fitxers amb la mateixa mida i data que al manifest no es llegeixen.</li>
+ * <li>Els altres es llegeixen en paral·lel amb BookImporter; si el
+ * contingut ha canviat, el llibre s'actualitza (o s'afegeix) buscant-lo pel
+ * títol.</li>
+ * <li>Els llibres dels fitxers que ja no són a la llista s'esborren.</li>
+ * </ul>
+ * Els llibres s'identifiquen pel títol tal com es guarda (retallat a
+ * l'amplada del camp, vegeu RecordFormat.storedTitle) i sense distingir
+ * majúscules i minúscules, igual que searchBookByTitle. Si diversos fitxers
+ * de la llista tenen el mateix títol, el llibre és del primer; els altres
+ * s'ometen a cada sincronització. Tampoc s'afegeixen els fitxers amb dades
+ * que el format no pot guardar. Els fitxers omesos es llisten a
+ * Result.getSkipped.
+ * Cada pas es pot repetir sense efectes duplicats, de manera que si una
+ * sincronització s'interromp, la següent la completa. Un llibre esborrat de
+ * la base de dades es torna a afegir si el seu fitxer encara és a la llista,
+ * com en una càrrega completa. Si el manifest falta o la base de dades té
+ * llibres que el manifest no coneix, la base de dades es buida i es torna a
+ * importar tot.
+ */
+public class BookSync {
+
+    /**
+     * Marge (en mil·lisegons) per a la resolució de la data de modificació:
+     * un fitxer modificat poc abans d'escriure el manifest es torna a llegir
+     * encara que la mida i la data coincideixin.
+     */
+    private static final long MODIFIED_RESOLUTION = 2000;
+
+    private final ReadBooksDB booksDB;
+    private final String manifestFileName;
+    private final int readers;
+
+    /**
+     * Crea un sincronitzador que llegeix els fitxers amb diversos fils.
+     * @param booksDB Base de dades.
+     * @param manifestFileName Nom del fitxer del manifest.
+     */
+    public BookSync (ReadBooksDB booksDB, String manifestFileName) {
+        this (booksDB, manifestFileName, 4 * Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Crea un sincronitzador.
+     * @param booksDB Base de dades.
+     * @param manifestFileName Nom del fitxer del manifest.
+     * @param readers Nombre de fils que llegeixen fitxers.
+     */
+    public BookSync (ReadBooksDB booksDB, String manifestFileName, int readers) {
+        this.booksDB = booksDB;
+        this.manifestFileName = manifestFileName;
+        this.readers = readers;
+    }
+
+    /**
+     * Sincronitza la base de dades amb una llista de fitxers.
+     * @param listFileName Fitxer amb el nom d'un fitxer de llibre per línia.
+     * @return Resum dels canvis.
+     * @throws IOException Si falla la lectura d'algun fitxer o l'escriptura.
+     */
+    public Result sync (String listFileName) throws IOException {
+        Result result = new Result();
+        ImportManifest manifest = new ImportManifest (manifestFileName);
+        if (!manifest.matches (booksDB)) {
+            booksDB.reset();
+            manifest.clear();
+            result.rebuilt = true;
+        }
+        List<String> paths = new ArrayList<String> (new LinkedHashSet<String> (BookImporter.readList (listFileName)));
+        Set<String> listed = new HashSet<String> (paths);
+
+        //Fitxers que ja no són a la llista. El llibre es manté si un fitxer
+        //de la llista té el mateix títol (un manifest antic en pot tenir dos).
+        Set<String> kept = new TreeSet<String> (String.CASE_INSENSITIVE_ORDER);
+        List<ImportManifest.Entry> gone = new ArrayList<ImportManifest.Entry>();
+        for (ImportManifest.Entry entry : manifest.entries()) {
+            if (listed.contains (entry.path)) {
+                kept.add (stored (entry.title));
+            } else {
+                gone.add (entry);
+            }
+        }
+        for (ImportManifest.Entry entry : gone) {
+            manifest.remove (entry.path);
+            if (!kept.contains (stored (entry.title)) && booksDB.deleteByTitle (stored (entry.title))) {
+                result.deleted++;
+            }
+        }
+
+        //Fitxers nous o modificats: es llegeixen amb BookImporter.
+        List<String> changed = new ArrayList<String>();
+        long trusted = manifest.getWrittenAt() - MODIFIED_RESOLUTION;
+        for (String path : paths) {
+            ImportManifest.Entry entry = manifest.get (path);
+            BasicFileAttributes attributes = Files.readAttributes (Paths.get (path), BasicFileAttributes.class);
+            if (entry == null || entry.size != attributes.size()
+                    || entry.modified != attributes.lastModifiedTime().toMillis()
+                    || entry.modified >= trusted || booksDB.searchBookByTitle (stored (entry.title)) < 0) {
+                changed.add (path);
+            }
+        }
+        Pass pass = new Pass (manifest, result, paths, changed);
+        if (!changed.isEmpty()) {
+            BookImporter importer = new BookImporter (booksDB, readers, 4 * readers);
+            importer.importFiles (changed, pass);
+            result.skipped.addAll (importer.getSkipped());
+        }
+        pass.finish();
+        manifest.save();
+        return result;
+    }
+
+    /**
+     * Títol tal com es guarda a la base de dades (retallat a l'amplada del
+     * camp), que és com el troben searchBookByTitle i deleteByTitle.
+     */
+    private String stored (String title) {
+        return booksDB.getFormat().storedTitle (title);
+    }
+
+    /**
+     * Recorre la llista de fitxers en ordre i hi aplica els fitxers llegits.
+     * Cada títol (tal com es guarda i sense distingir majúscules i
+     * minúscules) és del primer fitxer de la llista que el té; els altres
+     * fitxers amb el mateix títol s'ometen i es llisten a Result.getSkipped.
+     * La regla és la mateixa a cada sincronització, perquè els fitxers omesos
+     * no s'apunten al manifest i sempre es tornen a llegir.
+     */
+    private class Pass implements BookImporter.Handler {
+        private final ImportManifest manifest;
+        private final Result result;
+        private final List<String> paths;
+        private final Set<String> changed;
+        private final Map<String, Integer> positions = new HashMap<String, Integer>();
+        private final Map<String, String> owners = new TreeMap<String, String> (String.CASE_INSENSITIVE_ORDER);
+        private int next;
+
+        Pass (ImportManifest manifest, Result result, List<String> paths, List<String> changed) {
+            this.manifest = manifest;
+            this.result = result;
+            this.paths = paths;
+            this.changed = new HashSet<String> (changed);
+            for (int i = 0; i < paths.size(); i++) {
+                positions.put (paths.get (i), i);
+            }
+        }
+
+        public boolean accept (BookImporter.BookFile file) throws IOException {
+            keepUntil (positions.get (file.fileName));
+            next++;
+            String title = stored (file.book.getTitle());
+            ImportManifest.Entry old = manifest.get (file.fileName);
+            String owner = owners.get (title);
+            if (owner != null) {
+                result.skip (file.fileName, "same title as " + owner);
+                if (old != null) {
+                    manifest.remove (file.fileName);
+                    removeBook (old);
+                }
+                return false;
+            }
+            owners.put (title, file.fileName);
+            manifest.put (new ImportManifest.Entry (file.fileName, file.size, file.modified, file.crc, title));
+            if (old != null && old.crc == file.crc && old.size == file.size
+                    && booksDB.searchBookByTitle (stored (old.title)) >= 0) {
+                //Només ha canviat la data de modificació.
+                result.unchanged++;
+                return false;
+            }
+            if (old != null && !stored (old.title).equalsIgnoreCase (title)) {
+                removeBook (old);
+            }
+            int n = booksDB.searchBookByTitle (title);
+            if (n >= 0) {
+                booksDB.writeBookInfo (n, file.book);
+                result.updated++;
+                return false;
+            }
+            result.added++;
+            return true;
+        }
+
+        /**
+         * Acaba el recorregut amb els fitxers que queden després de l'últim fitxer llegit.
+         */
+        void finish() throws IOException {
+            keepUntil (paths.size());
+        }
+
+        /**
+         * Tracta els fitxers de la llista anteriors a una posició que no
+         * s'han llegit (sense canvis) o que el BookImporter ha omès: el
+         * llibre que tenien, si en tenien, es manté com estava.
+         */
+        private void keepUntil (int end) {
+            for (; next < end; next++) {
+                String path = paths.get (next);
+                ImportManifest.Entry entry = manifest.get (path);
+                if (entry == null) {
+                    continue;
+                }
+                String title = stored (entry.title);
+                String owner = owners.get (title);
+                if (owner == null) {
+                    owners.put (title, path);
+                    if (!changed.contains (path)) {
+                        result.unchanged++;
+                    }
+                } else {
+                    //El llibre ja l'ha reescrit el fitxer d'abans amb el mateix títol.
+                    manifest.remove (path);
+                    if (!changed.contains (path)) {
+                        result.skip (path, "same title as " + owner);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Esborra el llibre que tenia un fitxer, llevat que el títol sigui
+         * d'un fitxer anterior de la llista (que ja l'ha reescrit).
+         */
+        private void removeBook (ImportManifest.Entry old) throws IOException {
+            String title = stored (old.title);
+            if (!owners.containsKey (title)) {
+                booksDB.deleteByTitle (title);
+            }
+        }
+    }
+
+    /**
+     * Resum d'una sincronització.
+     */
+    public static class Result {
+        private boolean rebuilt;
+        private int added;
+        private int updated;
+        private int deleted;
+        private int unchanged;
+        private final List<String> skipped = new ArrayList<String>();
+
+        /** @return true si s'ha hagut de tornar a importar tot. */
+        public boolean isRebuilt() { return rebuilt; }
+
+        /** @return Nombre de llibres afegits. */
+        public int getAdded() { return added; }
+
+        /** @return Nombre de llibres actualitzats. */
+        public int getUpdated() { return updated; }
+
+        /** @return Nombre de llibres esborrats. */
+        public int getDeleted() { return deleted; }
+
+        /** @return Nombre de fitxers sense canvis. */
+        public int getUnchanged() { return unchanged; }
+
+        /** @return Fitxers omesos, amb el motiu ("nom: motiu"). */
+        public List<String> getSkipped() { return Collections.unmodifiableList (skipped); }
+
+        private void skip (String path, String reason) {
+            skipped.add (path + ": " + reason);
+        }
+
+        public String toString() {
+            return (rebuilt ? "rebuilt: " : "") + added + " added, " + updated + " updated, "
+                    + deleted + " deleted, " + unchanged + " unchanged"
+                    + (skipped.isEmpty() ? "" : ", " + skipped.size() + " skipped");
+        }
+    }
+
+}
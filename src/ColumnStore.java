@@ -0,0 +1,326 @@
+/*
+ * Autors:
+ * -Xiaolong Ji
+ * -Aticor
+ */
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Còpia per columnes dels registres de la base de dades: cada camp es
+ * guarda en un fitxer propi (<em>fileName</em>.<em>camp</em>.col), amb el
+ * valor de cada registre a la mateixa posició (número de registre per
+ * amplada del camp). Els valors estan empaquetats igual que dins del
+ * registre (vegeu RecordFormat.offset i width).
+ * <br>
+ * Així, un recorregut que només fa servir alguns camps (per exemple, els
+ * títols o les pàgines) només llegeix aquests camps: read els deixa al seu
+ * lloc dins de registres sencers, de manera que es poden llegir amb una
+ * vista (BookRecord) com si fossin els registres del fitxer de dades.
+ * <br>
+ * El fitxer de dades continua sent l'original: les columnes es mantenen
+ * amb cada escriptura (sense passar pel registre d'escriptura anticipada)
+ * i, com els índexs, es marquen com a no vàlides mentre estan obertes i es
+ * reconstrueixen si no corresponen al fitxer de dades.
+ * <br>
+ * Format de cada fitxer: capçalera de HEADER_SIZE bytes i un valor de
+ * <em>width</em> bytes per registre.
+ */
+public class ColumnStore {
+
+    private static final int MAGIC = 0x434F4C31; // "COL1"
+    private static final int HEADER_SIZE = 32;
+    private static final int BLOCK = RecordSpliterator.BLOCK_RECORDS;
+
+    private static final RecordFormat.Field[] FIELDS = RecordFormat.Field.values();
+
+    /** Columna de cada fil per llegir i escriure sense crear cap array per bloc. */
+    private static final ThreadLocal<byte[]> COLUMN = new ThreadLocal<byte[]>() {
+        protected byte[] initialValue() {
+            return new byte[0];
+        }
+    };
+
+    private final String fileName;
+    private final File dataFile;
+    private final ReadBooksDB booksDB;
+    private final RandomAccessFile[] files = new RandomAccessFile[FIELDS.length];
+    private final FileChannel[] channels = new FileChannel[FIELDS.length];
+    private RecordFormat format;
+    private volatile int numRecords;
+
+    /**
+     * Obre les columnes d'una base de dades, i les reconstrueix si no
+     * existeixen, estan malmeses o no corresponen al fitxer de dades.
+     * @param fileName Nom del fitxer de dades (les columnes hi afegeixen .<em>camp</em>.col).
+     * @param dataFile Fitxer de dades.
+     * @param booksDB Base de dades d'on es llegeixen els registres.
+     * @throws IOException
+     */
+    public ColumnStore (String fileName, File dataFile, ReadBooksDB booksDB) throws IOException {
+        this.fileName = fileName;
+        this.dataFile = dataFile;
+        this.booksDB = booksDB;
+        this.format = booksDB.getFormat();
+        try {
+            for (RecordFormat.Field field : FIELDS) {
+                files[field.ordinal()] = new RandomAccessFile (columnFile (field), "rw");
+                channels[field.ordinal()] = files[field.ordinal()].getChannel();
+            }
+            if (!load()) {
+                rebuild();
+            }
+            //Mentre estan obertes, les columnes es marquen com a no vàlides al disc.
+            writeHeaders (false);
+        } catch (IOException ex) {
+            closeFiles();
+            throw ex;
+        }
+    }
+
+    private String columnFile (RecordFormat.Field field) {
+        return fileName + "." + field.name().toLowerCase (Locale.ROOT) + ".col";
+    }
+
+    /**
+     * Comprova que totes les columnes siguin vàlides.
+     * @return Cert si es poden fer servir tal com estan.
+     * @throws IOException
+     */
+    private boolean load() throws IOException {
+        int count = booksDB.getNumRecords();
+        byte[] header = new byte[HEADER_SIZE];
+        for (RecordFormat.Field field : FIELDS) {
+            RandomAccessFile file = files[field.ordinal()];
+            int width = format.width (field);
+            if (file.length() != HEADER_SIZE + (long) count * width) {
+                return false;
+            }
+            readFully (channels[field.ordinal()], 0, header, HEADER_SIZE);
+            if (PackUtils.unpackInt (header, 0) != MAGIC
+                    || !PackUtils.unpackBoolean (header, 4)
+                    || PackUtils.unpackInt (header, 8) != count
+                    || PackUtils.unpackInt (header, 12) != format.version()
+                    || PackUtils.unpackInt (header, 16) != width
+                    || PackUtils.unpackLong (header, 24) != dataFile.lastModified()) {
+                return false;
+            }
+        }
+        numRecords = count;
+        return true;
+    }
+
+    /**
+     * Escriu la capçalera de totes les columnes.
+     * @param clean Indica si les columnes queden sincronitzades amb les dades.
+     * @throws IOException
+     */
+    private void writeHeaders (boolean clean) throws IOException {
+        byte[] header = new byte[HEADER_SIZE];
+        PackUtils.packInt (MAGIC, header, 0);
+        PackUtils.packBoolean (clean, header, 4);
+        PackUtils.packInt (numRecords, header, 8);
+        PackUtils.packInt (format.version(), header, 12);
+        PackUtils.packLong (clean ? dataFile.lastModified() : 0L, header, 24);
+        for (RecordFormat.Field field : FIELDS) {
+            PackUtils.packInt (format.width (field), header, 16);
+            writeFully (channels[field.ordinal()], 0, header, HEADER_SIZE);
+        }
+    }
+
+    /**
+     * Reconstrueix totes les columnes a partir del fitxer de dades.
+     * @throws IOException
+     */
+    public void rebuild() throws IOException {
+        format = booksDB.getFormat();
+        truncate (0);
+        int count = booksDB.getNumRecords();
+        byte[] block = new byte[BLOCK * format.size()];
+        for (int first = 0; first < count; ) {
+            int n = booksDB.loadRecords (first, block, Math.min (BLOCK, count - first));
+            if (n == 0) {
+                break;
+            }
+            write (first, block, n);
+            first += n;
+        }
+        writeHeaders (false);
+    }
+
+    /**
+     * Buida les columnes (per exemple, després de ReadBooksDB.reset, que
+     * pot canviar el format).
+     * @throws IOException
+     */
+    public void clear() throws IOException {
+        format = booksDB.getFormat();
+        truncate (0);
+        writeHeaders (false);
+    }
+
+    /**
+     * Escriu registres consecutius a les columnes.
+     * @param first Número del primer registre.
+     * @param records Array amb els registres empaquetats (en el format del fitxer).
+     * @param count Nombre de registres.
+     * @throws IOException
+     */
+    public void write (int first, byte[] records, int count) throws IOException {
+        int size = format.size();
+        for (RecordFormat.Field field : FIELDS) {
+            int offset = format.offset (field);
+            int width = format.width (field);
+            byte[] column = column (count * width);
+            for (int i = 0; i < count; i++) {
+                System.arraycopy (records, i * size + offset, column, i * width, width);
+            }
+            writeFully (channels[field.ordinal()], HEADER_SIZE + (long) first * width, column, count * width);
+        }
+        numRecords = Math.max (numRecords, first + count);
+    }
+
+    /**
+     * Escurça (o allarga amb zeros) totes les columnes.
+     * @param count Nombre de registres que queden.
+     * @throws IOException
+     */
+    public void truncate (int count) throws IOException {
+        for (RecordFormat.Field field : FIELDS) {
+            files[field.ordinal()].setLength (HEADER_SIZE + (long) count * format.width (field));
+        }
+        numRecords = count;
+    }
+
+    /**
+     * Llegeix alguns camps de registres consecutius i els deixa al seu lloc
+     * dins de registres sencers. Sempre es llegeixen també els indicadors
+     * (FLAGS), que calen per saber si un registre està esborrat i, en el
+     * format V2, per desempaquetar els textos.
+     * @param fields Camps a llegir; la resta de bytes dels registres queden indefinits.
+     * @param first Primer registre.
+     * @param buffer Array on es guarden els registres, en el format del fitxer.
+     * @param count Nombre màxim de registres a llegir.
+     * @return Nombre de registres llegits (menys de count si s'arriba al final).
+     * @throws IOException
+     */
+    public int read (Set<RecordFormat.Field> fields, int first, byte[] buffer, int count) throws IOException {
+        RecordFormat format = this.format;
+        int n = Math.max (0, Math.min (count, numRecords - first));
+        if (n == 0) {
+            return 0;
+        }
+        int size = format.size();
+        for (RecordFormat.Field field : FIELDS) {
+            if (field != RecordFormat.Field.FLAGS && !fields.contains (field)) {
+                continue;
+            }
+            int offset = format.offset (field);
+            int width = format.width (field);
+            byte[] column = column (n * width);
+            readFully (channels[field.ordinal()], HEADER_SIZE + (long) first * width, column, n * width);
+            for (int i = 0; i < n; i++) {
+                System.arraycopy (column, i * width, buffer, i * size + offset, width);
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Canvia els números de registre després de compactar la base de dades:
+     * com que els registres conserven l'ordre, cada valor que queda es
+     * mou cap al principi de la mateixa columna.
+     * @param mapping Número nou de cada registre antic (-1 si s'ha esborrat),
+     * creixent per als registres que no s'han esborrat.
+     * @throws IOException
+     */
+    public void remap (int[] mapping) throws IOException {
+        int count = 0;
+        for (RecordFormat.Field field : FIELDS) {
+            FileChannel channel = channels[field.ordinal()];
+            int width = format.width (field);
+            byte[] column = column (BLOCK * width);
+            count = 0;
+            for (int first = 0; first < numRecords; first += BLOCK) {
+                int n = Math.min (BLOCK, numRecords - first);
+                readFully (channel, HEADER_SIZE + (long) first * width, column, n * width);
+                int kept = 0;
+                for (int i = 0; i < n; i++) {
+                    if (mapping[first + i] >= 0) {
+                        System.arraycopy (column, i * width, column, kept * width, width);
+                        kept++;
+                    }
+                }
+                //La posició d'escriptura no passa mai de la de lectura.
+                writeFully (channel, HEADER_SIZE + (long) count * width, column, kept * width);
+                count += kept;
+            }
+        }
+        truncate (count);
+        writeHeaders (false);
+    }
+
+    /**
+     * Tanca les columnes deixant-les marcades com a sincronitzades.
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        try {
+            writeHeaders (true);
+        } finally {
+            closeFiles();
+        }
+    }
+
+    /**
+     * Tanca i esborra els fitxers de les columnes.
+     * @throws IOException
+     */
+    public void delete() throws IOException {
+        closeFiles();
+        for (RecordFormat.Field field : FIELDS) {
+            new File (columnFile (field)).delete();
+        }
+    }
+
+    private void closeFiles() throws IOException {
+        for (RandomAccessFile file : files) {
+            if (file != null) {
+                file.close();
+            }
+        }
+    }
+
+    private static byte[] column (int length) {
+        byte[] column = COLUMN.get();
+        if (column.length < length) {
+            column = new byte[length];
+            COLUMN.set (column);
+        }
+        return column;
+    }
+
+    private static void writeFully (FileChannel channel, long position, byte[] buffer, int length) throws IOException {
+        ByteBuffer bytes = ByteBuffer.wrap (buffer, 0, length);
+        while (bytes.hasRemaining()) {
+            channel.write (bytes, position + bytes.position());
+        }
+    }
+
+    private static void readFully (FileChannel channel, long position, byte[] buffer, int length) throws IOException {
+        ByteBuffer bytes = ByteBuffer.wrap (buffer, 0, length);
+        while (bytes.hasRemaining()) {
+            if (channel.read (bytes, position + bytes.position()) < 0) {
+                throw new EOFException();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,345 @@
+/*
+ * Autors:
+ * -Xiaolong Ji
+ * -Aticor
+ */
+
+import java.time.DateTimeException;
+import java.time.LocalDate;
+import java.util.Arrays;
+
+/**
+ * Format compacte dels registres (V2), amb capçalera de fitxer.
+ * <br>
+ * Cada camp de text ocupa tants bytes com el seu nombre màxim de caràcters.
+ * Si tots els caràcters són Latin-1 es guarda un byte per caràcter; si no,
+ * el text es guarda en UTF-8 (retallat, si cal, a un caràcter sencer) i
+ * s'activa el bit corresponent dels indicadors. Les dates es guarden com a
+ * int (dies des de 1970-01-01, o NO_DATE si no n'hi ha) i els booleans com
+ * a bits d'un sol byte.
+ * <br>
+ * Un registre esborrat (làpida) té els textos buits i el bit DELETED; en
+ * lloc de les dates guarda el següent registre lliure i la longitud de la
+ * llista de registres lliures.
+ * <br>
+ * Disposició: títol (32), autor (26), sèrie (32), pàgines (2),
+ * indicadors (1), data d'inici (4), data de finalització (4): 101 bytes.
+ */
+public class CompactRecordFormat extends RecordFormat {
+
+    // Bits del byte d'indicadors
+    public static final int STARTED     = 0x01;
+    public static final int FINISHED    = 0x02;
+    public static final int UTF8_TITLE  = 0x04;
+    public static final int UTF8_AUTHOR = 0x08;
+    public static final int UTF8_SERIES = 0x10;
+    public static final int DELETED     = 0x80;
+
+    private static final int TITLE_OFFSET      = 0;
+    private static final int AUTHOR_OFFSET     = TITLE_OFFSET + BookInfo.TITLE_LENGTH;
+    private static final int SERIES_OFFSET     = AUTHOR_OFFSET + BookInfo.AUTHOR_LENGTH;
+    private static final int PAGES_OFFSET      = SERIES_OFFSET + BookInfo.SERIES_LENGTH;
+    private static final int FLAGS_OFFSET      = PAGES_OFFSET + 2;
+    private static final int START_DATE_OFFSET = FLAGS_OFFSET + 1;
+    private static final int END_DATE_OFFSET   = START_DATE_OFFSET + 4;
+    private static final int SIZE              = END_DATE_OFFSET + 4;
+
+    /** Caràcters auxiliars de cada fil per desempaquetar els textos. */
+    private static final ThreadLocal<char[]> CHARS = new ThreadLocal<char[]>() {
+        protected char[] initialValue() {
+            return new char[BookInfo.TITLE_LENGTH];
+        }
+    };
+
+    public int version() { return 2; }
+
+    public int size() { return SIZE; }
+
+    public int headerSize() { return HEADER_SIZE; }
+
+    public int offset (Field field) {
+        switch (field) {
+            case TITLE:      return TITLE_OFFSET;
+            case AUTHOR:     return AUTHOR_OFFSET;
+            case SERIES:     return SERIES_OFFSET;
+            case PAGES:      return PAGES_OFFSET;
+            case FLAGS:      return FLAGS_OFFSET;
+            case START_DATE: return START_DATE_OFFSET;
+            default:         return END_DATE_OFFSET;
+        }
+    }
+
+    public int width (Field field) {
+        switch (field) {
+            case PAGES:      return 2;
+            case FLAGS:      return 1;
+            case START_DATE:
+            case END_DATE:   return 4;
+            default:         return maxLength (field);
+        }
+    }
+
+    public void encode (BookInfo book, byte[] buffer, int offset) {
+        int flags = 0;
+        if (book.isStarted())  flags |= STARTED;
+        if (book.isFinished()) flags |= FINISHED;
+        if (packText (book.getTitle(), BookInfo.TITLE_LENGTH, buffer, offset + TITLE_OFFSET)) {
+            flags |= UTF8_TITLE;
+        }
+        if (packText (book.getAuthor(), BookInfo.AUTHOR_LENGTH, buffer, offset + AUTHOR_OFFSET)) {
+            flags |= UTF8_AUTHOR;
+        }
+        if (packText (book.getSeries(), BookInfo.SERIES_LENGTH, buffer, offset + SERIES_OFFSET)) {
+            flags |= UTF8_SERIES;
+        }
+        PackUtils.packShort (book.getPages(), buffer, offset + PAGES_OFFSET);
+        PackUtils.packByte ((byte) flags, buffer, offset + FLAGS_OFFSET);
+        PackUtils.packInt (toEpochDay (book.getStartDate()), buffer, offset + START_DATE_OFFSET);
+        PackUtils.packInt (toEpochDay (book.getEndDate()), buffer, offset + END_DATE_OFFSET);
+    }
+
+    public BookInfo decode (byte[] buffer, int offset) {
+        char[] chars = CHARS.get();
+        String title  = new String (chars, 0, unpackText (Field.TITLE, buffer, offset, chars));
+        String author = new String (chars, 0, unpackText (Field.AUTHOR, buffer, offset, chars));
+        String series = new String (chars, 0, unpackText (Field.SERIES, buffer, offset, chars));
+        int flags = flags (buffer, offset);
+        return new BookInfo (title, author, series, unpackPages (buffer, offset),
+                             (flags & STARTED) != 0, (flags & FINISHED) != 0,
+                             fromEpochDay (PackUtils.unpackInt (buffer, offset + START_DATE_OFFSET), chars),
+                             fromEpochDay (PackUtils.unpackInt (buffer, offset + END_DATE_OFFSET), chars));
+    }
+
+    public int unpackText (Field field, byte[] buffer, int offset, char[] chars) {
+        switch (field) {
+            case TITLE:
+                return unpackText (buffer, offset + TITLE_OFFSET, BookInfo.TITLE_LENGTH,
+                                   (flags (buffer, offset) & UTF8_TITLE) != 0, chars);
+            case AUTHOR:
+                return unpackText (buffer, offset + AUTHOR_OFFSET, BookInfo.AUTHOR_LENGTH,
+                                   (flags (buffer, offset) & UTF8_AUTHOR) != 0, chars);
+            case SERIES:
+                return unpackText (buffer, offset + SERIES_OFFSET, BookInfo.SERIES_LENGTH,
+                                   (flags (buffer, offset) & UTF8_SERIES) != 0, chars);
+            case START_DATE:
+            case END_DATE:
+                return unpackDate (PackUtils.unpackInt (buffer, offset + offset (field)), chars);
+            default:
+                return 0;
+        }
+    }
+
+    public short unpackPages (byte[] buffer, int offset) {
+        return PackUtils.unpackShort (buffer, offset + PAGES_OFFSET);
+    }
+
+    public boolean unpackStarted (byte[] buffer, int offset) {
+        return (flags (buffer, offset) & STARTED) != 0;
+    }
+
+    public boolean unpackFinished (byte[] buffer, int offset) {
+        return (flags (buffer, offset) & FINISHED) != 0;
+    }
+
+    public int unpackDay (Field field, byte[] buffer, int offset) {
+        return PackUtils.unpackInt (buffer, offset + offset (field));
+    }
+
+    public boolean supportsTombstones() {
+        return true;
+    }
+
+    public boolean unpackDeleted (byte[] buffer, int offset) {
+        return (flags (buffer, offset) & DELETED) != 0;
+    }
+
+    public void packTombstone (int next, int count, byte[] buffer, int offset) {
+        Arrays.fill (buffer, offset, offset + SIZE, (byte) 0);
+        PackUtils.packByte ((byte) DELETED, buffer, offset + FLAGS_OFFSET);
+        PackUtils.packInt (next, buffer, offset + START_DATE_OFFSET);
+        PackUtils.packInt (count, buffer, offset + END_DATE_OFFSET);
+    }
+
+    public int unpackNextFree (byte[] buffer, int offset) {
+        return PackUtils.unpackInt (buffer, offset + START_DATE_OFFSET);
+    }
+
+    public int unpackFreeCount (byte[] buffer, int offset) {
+        return PackUtils.unpackInt (buffer, offset + END_DATE_OFFSET);
+    }
+
+    private static int flags (byte[] buffer, int offset) {
+        return PackUtils.unpackByte (buffer, offset + FLAGS_OFFSET) & 0xFF;
+    }
+
+    // Textos
+
+    /**
+     * Empaqueta un text en Latin-1 si es pot, o en UTF-8 si no.
+     * @return Cert si s'ha fet servir UTF-8.
+     */
+    private static boolean packText (String s, int width, byte[] buffer, int offset) {
+        int n = Math.min (s.length(), width);
+        boolean latin1 = true;
+        for (int i = 0; i < n && latin1; i++) {
+            latin1 = s.charAt (i) <= 0xFF;
+        }
+        int used;
+        if (latin1) {
+            for (int i = 0; i < n; i++) {
+                buffer[offset + i] = (byte) s.charAt (i);
+            }
+            used = n;
+        } else {
+            used = packUtf8 (s, width, buffer, offset);
+        }
+        // Omple amb zeros
+        Arrays.fill (buffer, offset + used, offset + width, (byte) 0);
+        return !latin1;
+    }
+
+    /**
+     * Empaqueta un text en UTF-8, sense partir cap caràcter.
+     * @return Nombre de bytes escrits.
+     */
+    private static int packUtf8 (String s, int width, byte[] buffer, int offset) {
+        int pos = 0;
+        for (int i = 0; i < s.length(); ) {
+            int cp = s.codePointAt (i);
+            int step = Character.charCount (cp);
+            if (Character.isSurrogate (s.charAt (i)) && step == 1) {
+                cp = '?'; // meitat d'un parell suplent sense parella
+            }
+            int len = cp < 0x80 ? 1 : cp < 0x800 ? 2 : cp < 0x10000 ? 3 : 4;
+            if (cp == 0 || pos + len > width) {
+                break;
+            }
+            int o = offset + pos;
+            switch (len) {
+                case 1:
+                    buffer[o] = (byte) cp;
+                    break;
+                case 2:
+                    buffer[o    ] = (byte) (0xC0 | (cp >> 6));
+                    buffer[o + 1] = (byte) (0x80 | (cp & 0x3F));
+                    break;
+                case 3:
+                    buffer[o    ] = (byte) (0xE0 | (cp >> 12));
+                    buffer[o + 1] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+                    buffer[o + 2] = (byte) (0x80 | (cp & 0x3F));
+                    break;
+                default:
+                    buffer[o    ] = (byte) (0xF0 | (cp >> 18));
+                    buffer[o + 1] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+                    buffer[o + 2] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+                    buffer[o + 3] = (byte) (0x80 | (cp & 0x3F));
+                    break;
+            }
+            pos += len;
+            i += step;
+        }
+        return pos;
+    }
+
+    /**
+     * Desempaqueta un text en Latin-1 o UTF-8 fins al primer zero.
+     * @return Nombre de caràcters.
+     */
+    private static int unpackText (byte[] buffer, int offset, int width, boolean utf8, char[] chars) {
+        int n = 0;
+        int pos = 0;
+        while (pos < width && buffer[offset + pos] != 0) {
+            int b = buffer[offset + pos] & 0xFF;
+            if (!utf8 || b < 0x80) {
+                chars[n++] = (char) b;
+                pos++;
+                continue;
+            }
+            int len = b >= 0xF0 ? 4 : b >= 0xE0 ? 3 : b >= 0xC0 ? 2 : 1;
+            int cp = len == 4 ? b & 0x07 : len == 3 ? b & 0x0F : b & 0x1F;
+            if (len == 1 || pos + len > width) {
+                chars[n++] = '\uFFFD';
+                pos++;
+                continue;
+            }
+            for (int i = 1; i < len; i++) {
+                cp = (cp << 6) | (buffer[offset + pos + i] & 0x3F);
+            }
+            //Un registre malmès (o llegit a mig escriure) pot tenir codis fora de rang.
+            if (Character.isValidCodePoint (cp)) {
+                n += Character.toChars (cp, chars, n);
+            } else {
+                chars[n++] = '\uFFFD';
+            }
+            pos += len;
+        }
+        return n;
+    }
+
+    // Dates
+
+    private static int toEpochDay (String date) {
+        if (date == null || date.isEmpty()) {
+            return NO_DATE;
+        }
+        try {
+            //Cas habitual (aaaa-mm-dd) sense passar pel parser de java.time.
+            if (date.length() == BookInfo.DATE_LENGTH && date.charAt (4) == '-' && date.charAt (7) == '-') {
+                int year = digits (date, 0, 4);
+                int month = digits (date, 5, 2);
+                int day = digits (date, 8, 2);
+                if (year >= 0 && month >= 0 && day >= 0) {
+                    return (int) LocalDate.of (year, month, day).toEpochDay();
+                }
+            }
+            return (int) LocalDate.parse (date).toEpochDay();
+        } catch (DateTimeException ex) {
+            throw new IllegalArgumentException ("Invalid date: " + date, ex);
+        }
+    }
+
+    /**
+     * Llegeix un nombre de dígits decimals.
+     * @return El nombre, o -1 si algun caràcter no és un dígit.
+     */
+    private static int digits (String s, int from, int count) {
+        int value = 0;
+        for (int i = from; i < from + count; i++) {
+            char c = s.charAt (i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            value = 10 * value + (c - '0');
+        }
+        return value;
+    }
+
+    private static String fromEpochDay (int day, char[] chars) {
+        return day == NO_DATE ? "" : new String (chars, 0, unpackDate (day, chars));
+    }
+
+    /**
+     * Escriu una data com a aaaa-mm-dd.
+     * @return Nombre de caràcters (0 si no hi ha data).
+     */
+    private static int unpackDate (int day, char[] chars) {
+        if (day == NO_DATE) {
+            return 0;
+        }
+        LocalDate date = LocalDate.ofEpochDay (day);
+        digits (date.getYear(), 4, chars, 0);
+        chars[4] = '-';
+        digits (date.getMonthValue(), 2, chars, 5);
+        chars[7] = '-';
+        digits (date.getDayOfMonth(), 2, chars, 8);
+        return BookInfo.DATE_LENGTH;
+    }
+
+    private static void digits (int value, int count, char[] chars, int from) {
+        for (int i = count - 1; i >= 0; i--) {
+            chars[from + i] = (char) ('0' + value % 10);
+            value /= 10;
+        }
+    }
+
+}
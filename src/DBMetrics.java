@@ -0,0 +1,281 @@
+/*
+ * Autors:
+ * -Xiaolong Ji
+ * -Aticor
+ */
+
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Mètriques d'una base de dades (ReadBooksDB):
+ * <ul>
+ * <li>latència de cada operació (readBookInfo, writeBookInfo,
+ * appendBookInfo, searchBookByTitle i deleteByTitle, vegeu OperationMetrics);</li>
+ * <li>accessos al fitxer de dades: lectures i escriptures posicionals,
+ * bytes i forçats a disc (vegeu MeteredRecordStore);</li>
+ * <li>registres desempaquetats;</li>
+ * <li>longitud de les cerques a l'índex de títols: posicions visitades
+ * (histograma) i títols comparats.</li>
+ * </ul>
+ * Estan desactivades per defecte: llavors cada punt de mesura només llegeix
+ * un camp volatile. Es poden consultar amb dump (text) o per JMX (register),
+ * i activar o desactivar en qualsevol moment.
+ */
+public class DBMetrics implements DBMetricsMBean {
+
+    /**
+     * Operacions mesurades: readBookInfo, writeBookInfo, appendBookInfo
+     * (i appendBookInfos, appendRecords), searchBookByTitle i deleteByTitle.
+     */
+    public enum Operation { READ, WRITE, APPEND, SEARCH, DELETE }
+
+    /** Valor de start quan les mètriques estan desactivades. */
+    public static final long NOT_TIMED = Long.MIN_VALUE;
+
+    private final OperationMetrics[] operations = new OperationMetrics[Operation.values().length];
+
+    private volatile boolean enabled;
+    private final LongAdder storeReads = new LongAdder();
+    private final LongAdder bytesRead = new LongAdder();
+    private final LongAdder storeWrites = new LongAdder();
+    private final LongAdder bytesWritten = new LongAdder();
+    private final LongAdder forces = new LongAdder();
+    private final LongAdder recordsDecoded = new LongAdder();
+    private final Histogram searchProbes = new Histogram();
+    private final LongAdder titleComparisons = new LongAdder();
+    private ObjectName[] registered;
+
+    /**
+     * Crea unes mètriques buides i desactivades.
+     */
+    public DBMetrics() {
+        for (Operation operation : Operation.values()) {
+            operations[operation.ordinal()] = new OperationMetrics (operation.name().toLowerCase (Locale.ROOT));
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled (boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * Comença a mesurar una crida (acabeu-la amb stop).
+     * @return Instant inicial, o NOT_TIMED si les mètriques estan desactivades.
+     */
+    public long start() {
+        return enabled ? System.nanoTime() : NOT_TIMED;
+    }
+
+    /**
+     * Acaba de mesurar una crida.
+     * @param operation Operació mesurada.
+     * @param start Valor retornat per start.
+     */
+    public void stop (Operation operation, long start) {
+        operations[operation.ordinal()].stop (start);
+    }
+
+    /**
+     * Obtenir les mètriques d'una operació.
+     * @param operation Operació.
+     * @return Mètriques de l'operació.
+     */
+    public OperationMetrics get (Operation operation) {
+        return operations[operation.ordinal()];
+    }
+
+    /**
+     * Compta una lectura del fitxer de dades.
+     * @param bytes Nombre de bytes llegits.
+     */
+    public void storeRead (int bytes) {
+        if (enabled) {
+            storeReads.increment();
+            bytesRead.add (bytes);
+        }
+    }
+
+    /**
+     * Compta una escriptura al fitxer de dades.
+     * @param bytes Nombre de bytes escrits.
+     */
+    public void storeWrite (int bytes) {
+        if (enabled) {
+            storeWrites.increment();
+            bytesWritten.add (bytes);
+        }
+    }
+
+    /**
+     * Compta un forçat a disc del fitxer de dades.
+     */
+    public void force() {
+        if (enabled) {
+            forces.increment();
+        }
+    }
+
+    /**
+     * Compta un registre desempaquetat.
+     */
+    public void decoded() {
+        if (enabled) {
+            recordsDecoded.increment();
+        }
+    }
+
+    /**
+     * Compta una cerca a l'índex de títols.
+     * @param probes Posicions de l'índex visitades.
+     * @param comparisons Títols llegits del fitxer per comparar-los.
+     */
+    public void titleSearch (int probes, int comparisons) {
+        if (enabled) {
+            searchProbes.record (probes);
+            titleComparisons.add (comparisons);
+        }
+    }
+
+    public long getStoreReads() {
+        return storeReads.sum();
+    }
+
+    public long getBytesRead() {
+        return bytesRead.sum();
+    }
+
+    public long getStoreWrites() {
+        return storeWrites.sum();
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten.sum();
+    }
+
+    public long getForces() {
+        return forces.sum();
+    }
+
+    public long getRecordsDecoded() {
+        return recordsDecoded.sum();
+    }
+
+    public double getMeanSearchProbes() {
+        return searchProbes.getMean();
+    }
+
+    public long getP99SearchProbes() {
+        return searchProbes.getPercentile (99);
+    }
+
+    public long getMaxSearchProbes() {
+        return searchProbes.getMax();
+    }
+
+    public long getTitleComparisons() {
+        return titleComparisons.sum();
+    }
+
+    /**
+     * Obtenir l'histograma de posicions visitades per cerca de títol.
+     * @return Histograma.
+     */
+    public Histogram getSearchProbes() {
+        return searchProbes;
+    }
+
+    public void reset() {
+        for (OperationMetrics operation : operations) {
+            operation.reset();
+        }
+        storeReads.reset();
+        bytesRead.reset();
+        storeWrites.reset();
+        bytesWritten.reset();
+        forces.reset();
+        recordsDecoded.reset();
+        searchProbes.reset();
+        titleComparisons.reset();
+    }
+
+    public String dump() {
+        StringBuilder text = new StringBuilder();
+        text.append (enabled ? "Metrics (enabled)\n" : "Metrics (disabled)\n");
+        for (OperationMetrics operation : operations) {
+            text.append (operation).append ('\n');
+        }
+        text.append ("store    ").append (getStoreReads()).append (" reads (").append (getBytesRead())
+            .append (" bytes), ").append (getStoreWrites()).append (" writes (").append (getBytesWritten())
+            .append (" bytes), ").append (getForces()).append (" forces\n");
+        text.append ("records  ").append (getRecordsDecoded()).append (" decoded\n");
+        text.append (String.format ("probes   mean %.2f  p99 %d  max %d per title search, %d titles compared",
+                                    getMeanSearchProbes(), getP99SearchProbes(), getMaxSearchProbes(),
+                                    getTitleComparisons()));
+        return text.toString();
+    }
+
+    public String toString() {
+        return dump();
+    }
+
+    /**
+     * Publica les mètriques per JMX, com a readbooks:type=ReadBooksDB,name=<em>name</em>
+     * i una entrada més per operació (amb operation=<em>operació</em>).
+     * @param name Nom de la base de dades (per exemple, el nom del fitxer).
+     * @throws JMException Si ja hi ha unes mètriques publicades amb aquest nom.
+     */
+    public synchronized void register (String name) throws JMException {
+        unregister();
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        String prefix = "readbooks:type=ReadBooksDB,name=" + ObjectName.quote (name);
+        ObjectName[] names = new ObjectName[operations.length + 1];
+        names[0] = new ObjectName (prefix);
+        for (int i = 0; i < operations.length; i++) {
+            names[i + 1] = new ObjectName (prefix + ",operation=" + operations[i].getName());
+        }
+        int done = 0;
+        try {
+            server.registerMBean (this, names[0]);
+            done++;
+            for (int i = 0; i < operations.length; i++) {
+                server.registerMBean (operations[i], names[i + 1]);
+                done++;
+            }
+        } catch (JMException ex) {
+            for (int i = 0; i < done; i++) {
+                server.unregisterMBean (names[i]);
+            }
+            throw ex;
+        }
+        registered = names;
+    }
+
+    /**
+     * Deixa de publicar les mètriques per JMX (si s'havien publicat).
+     */
+    public synchronized void unregister() {
+        if (registered == null) {
+            return;
+        }
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for (ObjectName name : registered) {
+            try {
+                server.unregisterMBean (name);
+            } catch (JMException ex) {
+                //Ja no hi era.
+            }
+        }
+        registered = null;
+    }
+
+}
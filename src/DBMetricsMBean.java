@@ -0,0 +1,40 @@
+/*
+ * Autors:
+ * -Xiaolong Ji
+ * -Aticor
+ */
+
+/**
+ * Interfície JMX de les mètriques d'una base de dades (vegeu DBMetrics).
+ */
+public interface DBMetricsMBean {
+
+    boolean isEnabled();
+
+    void setEnabled (boolean enabled);
+
+    long getStoreReads();
+
+    long getBytesRead();
+
+    long getStoreWrites();
+
+    long getBytesWritten();
+
+    long getForces();
+
+    long getRecordsDecoded();
+
+    double getMeanSearchProbes();
+
+    long getP99SearchProbes();
+
+    long getMaxSearchProbes();
+
+    long getTitleComparisons();
+
+    void reset();
+
+    String dump();
+
+}
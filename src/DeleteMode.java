@@ -0,0 +1,26 @@
+/*
+ * Autors:
+ * -Xiaolong Ji
+ * -Aticor
+ */
+
+/**
+ * Com s'esborren els llibres de la base de dades (ReadBooksDB.setDeleteMode).
+ */
+public enum DeleteMode {
+
+    /**
+     * El darrer llibre es mou a la posició de l'esborrat i el fitxer
+     * s'escurça: no queden forats, però el llibre mogut canvia de número.
+     */
+    MOVE_LAST,
+
+    /**
+     * El registre es marca com a esborrat (làpida) i s'afegeix a la llista
+     * de registres lliures, que es reaprofiten en afegir llibres. Els
+     * números de la resta de llibres no canvien fins que es compacta el
+     * fitxer (ReadBooksDB.compact). Només el format V2 ho admet.
+     */
+    TOMBSTONE
+
+}
@@ -0,0 +1,556 @@
+/*
+ * Autors:
+ * -Xiaolong Ji
+ * -Aticor
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Function;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Ordenació externa dels registres de la base de dades per un camp (títol,
+ * autor, sèrie, pàgines o dates), amb un límit de memòria.
+ * <br>
+ * Els registres es llegeixen en blocs sense desempaquetar i s'omplen
+ * tirades de tants registres com permet el límit de memòria; cada tirada
+ * s'ordena (de manera estable, com FieldIndex) i, si no hi cap tot, es
+ * desa a un fitxer temporal. Després les tirades es fusionen (fins a
+ * MAX_FAN_IN alhora, amb passades intermèdies si n'hi ha més) i els
+ * registres surten en ordre sense haver estat mai tots en memòria.
+ * <br>
+ * Els textos s'ordenen sense distingir majúscules i minúscules; els
+ * llibres sense data van davant. Amb el mateix valor, els registres
+ * queden en ordre de número. Els registres esborrats amb làpida se salten.
+ * <br>
+ * Com stream, el recorregut no és una foto: si la base de dades canvia
+ * mentre es llegeix, el resultat pot incloure o no els canvis. Per
+ * reescriure el fitxer ordenat, vegeu ReadBooksDB.cluster.
+ */
+public class ExternalSort {
+
+    /** Memòria per defecte per a les tirades, en bytes. */
+    public static final long DEFAULT_MEMORY = 16L << 20;
+
+    /** Nombre màxim de tirades que es fusionen alhora. */
+    private static final int MAX_FAN_IN = 64;
+
+    /** Bytes estimats per registre, a més del registre, per ordenar una tirada (clau i números). */
+    private static final int ENTRY_OVERHEAD = 64;
+
+    /** Mida màxima del buffer de lectura de cada tirada en fusionar. */
+    private static final int MAX_RUN_BUFFER = 1 << 20;
+
+    private static final int BLOCK = RecordSpliterator.BLOCK_RECORDS;
+
+    private final ReadBooksDB booksDB;
+    private final RecordFormat.Field field;
+    private final Set<RecordFormat.Field> fields;
+    private final long memory;
+    private final File tempDir;
+
+    /**
+     * Crea una ordenació de registres sencers amb la memòria per defecte.
+     * @param booksDB Base de dades.
+     * @param field Camp pel qual s'ordena (qualsevol excepte FLAGS).
+     */
+    public ExternalSort (ReadBooksDB booksDB, RecordFormat.Field field) {
+        this (booksDB, field, null, DEFAULT_MEMORY, null);
+    }
+
+    /**
+     * Crea una ordenació.
+     * @param booksDB Base de dades.
+     * @param field Camp pel qual s'ordena (qualsevol excepte FLAGS).
+     * @param fields Camps que es faran servir dels registres ordenats (hi ha
+     * d'haver field), o null per als registres sencers. Amb les columnes
+     * activades, només es llegeixen aquests camps (vegeu ReadBooksDB.readRecords).
+     * @param memory Memòria màxima aproximada de cada tirada, en bytes.
+     * @param tempDir Directori dels fitxers temporals, o null per al del sistema.
+     */
+    public ExternalSort (ReadBooksDB booksDB, RecordFormat.Field field, Set<RecordFormat.Field> fields,
+                         long memory, File tempDir) {
+        if (field == RecordFormat.Field.FLAGS) {
+            throw new IllegalArgumentException ("Cannot sort by " + field);
+        }
+        if (fields != null && !fields.contains (field)) {
+            throw new IllegalArgumentException ("The fields must include " + field);
+        }
+        this.booksDB = booksDB;
+        this.field = field;
+        this.fields = fields;
+        this.memory = memory;
+        this.tempDir = tempDir;
+    }
+
+    /**
+     * Stream d'un valor de cada registre, en l'ordre del camp. Les tirades
+     * es fan en cridar aquest mètode; els fitxers temporals s'esborren en
+     * acabar el recorregut o en tancar el Stream.
+     * @param mapper Funció que obté el valor d'un registre. La vista que rep
+     * només és vàlida durant la crida.
+     * @return Stream seqüencial dels valors.
+     * @throws IOException
+     */
+    public <T> Stream<T> stream (final Function<BookRecord, ? extends T> mapper) throws IOException {
+        final Source sorted = sort (true);
+        Iterator<T> values = new Iterator<T>() {
+            private boolean ready;
+            private boolean more;
+
+            public boolean hasNext() {
+                if (!ready) {
+                    try {
+                        more = sorted.next();
+                        if (!more) {
+                            sorted.close();
+                        }
+                    } catch (IOException ex) {
+                        throw new UncheckedIOException (ex);
+                    }
+                    ready = true;
+                }
+                return more;
+            }
+
+            public T next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                ready = false;
+                return mapper.apply (sorted.view);
+            }
+        };
+        return StreamSupport.stream (Spliterators.spliteratorUnknownSize (values, Spliterator.ORDERED), false)
+                .onClose (new Runnable() {
+                    public void run() {
+                        try {
+                            sorted.close();
+                        } catch (IOException ex) {
+                            throw new UncheckedIOException (ex);
+                        }
+                    }
+                });
+    }
+
+    /**
+     * Escriu els registres ordenats (amb el bloqueig de la base de dades ja agafat).
+     * @param channel Canal on s'escriuen, a partir de la posició actual.
+     * @param mapping Array (d'almenys getNumRecords() posicions) on es guarda
+     * el número nou de cada registre (-1 per a les làpides).
+     * @return Nombre de registres escrits.
+     * @throws IOException
+     */
+    int writeTo (FileChannel channel, int[] mapping) throws IOException {
+        Arrays.fill (mapping, -1);
+        Source sorted = sort (false);
+        try {
+            int size = booksDB.getFormat().size();
+            ByteBuffer block = ByteBuffer.allocate (BLOCK * size);
+            int count = 0;
+            while (sorted.next()) {
+                block.put (sorted.view.buffer(), sorted.view.offset(), size);
+                mapping[sorted.number] = count++;
+                if (!block.hasRemaining()) {
+                    writeFully (channel, block);
+                }
+            }
+            writeFully (channel, block);
+            return count;
+        } finally {
+            sorted.close();
+        }
+    }
+
+    private static void writeFully (FileChannel channel, ByteBuffer block) throws IOException {
+        block.flip();
+        while (block.hasRemaining()) {
+            channel.write (block);
+        }
+        block.clear();
+    }
+
+    /**
+     * Fa les tirades i prepara la fusió.
+     * @param locking Fals si el bloqueig de la base de dades ja està agafat.
+     * @return Registres ordenats.
+     * @throws IOException
+     */
+    private Source sort (boolean locking) throws IOException {
+        RecordFormat format = booksDB.getFormat();
+        int size = format.size();
+        int numRecords = booksDB.getNumRecords();
+        int capacity = (int) Math.min (Math.max (1, numRecords),
+                                       Math.max (BLOCK, Math.min (Integer.MAX_VALUE / size, memory / (size + ENTRY_OVERHEAD))));
+        Run run = new Run (format, capacity);
+        List<File> runs = new ArrayList<File>();
+        try {
+            byte[] block = new byte[BLOCK * size];
+            BookRecord view = new BookRecord();
+            for (int first = 0; first < numRecords; ) {
+                int count = Math.min (BLOCK, numRecords - first);
+                int read;
+                if (!locking) {
+                    read = booksDB.loadRecords (first, block, count);
+                } else if (fields != null) {
+                    read = booksDB.readRecords (fields, first, block, count);
+                } else {
+                    read = booksDB.readRecords (first, block, count);
+                }
+                if (read == 0) {
+                    break;
+                }
+                for (int i = 0; i < read; i++) {
+                    if (view.wrap (format, block, i * size).isDeleted()) {
+                        continue;
+                    }
+                    if (run.count == capacity) {
+                        runs.add (run.spill());
+                    }
+                    run.add (block, i * size, first + i);
+                }
+                first += read;
+            }
+            if (runs.isEmpty()) {
+                run.sort();
+                return new MemorySource (run);
+            }
+            if (run.count > 0) {
+                runs.add (run.spill());
+            }
+            run = null;
+            //Passades intermèdies fins que es poden fusionar totes alhora; els
+            //grups són de tirades consecutives perquè es mantingui l'ordre de número.
+            while (runs.size() > MAX_FAN_IN) {
+                List<File> merged = new ArrayList<File>();
+                try {
+                    for (int i = 0; i < runs.size(); i += MAX_FAN_IN) {
+                        List<File> group = new ArrayList<File> (runs.subList (i, Math.min (runs.size(), i + MAX_FAN_IN)));
+                        if (group.size() == 1) {
+                            merged.add (group.get (0));
+                            continue;
+                        }
+                        File file = File.createTempFile ("readbooks", ".run", tempDir);
+                        merged.add (file);
+                        MergeSource merge = new MergeSource (format, group);
+                        try {
+                            writeRun (merge, file, size);
+                        } finally {
+                            merge.close();
+                        }
+                    }
+                } catch (IOException | RuntimeException | Error ex) {
+                    runs.addAll (merged);
+                    throw ex;
+                }
+                runs = merged;
+            }
+            return new MergeSource (format, runs);
+        } catch (IOException | RuntimeException | Error ex) {
+            for (File file : runs) {
+                file.delete();
+            }
+            throw ex;
+        }
+    }
+
+    /**
+     * Desa uns registres ordenats en una tirada: per a cada registre, el
+     * número (int) i els bytes del registre.
+     */
+    private static void writeRun (Source sorted, File file, int size) throws IOException {
+        DataOutputStream output = new DataOutputStream (new BufferedOutputStream (new FileOutputStream (file), 1 << 16));
+        try {
+            while (sorted.next()) {
+                output.writeInt (sorted.number);
+                output.write (sorted.view.buffer(), sorted.view.offset(), size);
+            }
+        } finally {
+            output.close();
+        }
+    }
+
+    /**
+     * Clau d'ordenació d'un registre: un text normalitzat o un número.
+     */
+    private String textKey (BookRecord record) {
+        switch (field) {
+            case TITLE:  return FieldIndex.fold (record.getTitle());
+            case AUTHOR: return FieldIndex.fold (record.getAuthor());
+            case SERIES: return FieldIndex.fold (record.getSeries());
+            default:     return null;
+        }
+    }
+
+    private int numberKey (BookRecord record) {
+        switch (field) {
+            case PAGES:      return record.getPages();
+            case START_DATE: return record.getStartDay();
+            default:         return record.getEndDay();
+        }
+    }
+
+    private boolean isText() {
+        return field == RecordFormat.Field.TITLE || field == RecordFormat.Field.AUTHOR
+                || field == RecordFormat.Field.SERIES;
+    }
+
+    /**
+     * Tirada en memòria: registres empaquetats, número i clau de cada un.
+     */
+    private class Run {
+        final RecordFormat format;
+        final int size;
+        final byte[] records;
+        final int[] numbers;
+        final String[] texts;
+        final int[] values;
+        final BookRecord view = new BookRecord();
+        int[] order;
+        int count;
+
+        Run (RecordFormat format, int capacity) {
+            this.format = format;
+            this.size = format.size();
+            this.records = new byte[capacity * size];
+            this.numbers = new int[capacity];
+            this.texts = isText() ? new String[capacity] : null;
+            this.values = isText() ? null : new int[capacity];
+        }
+
+        void add (byte[] block, int offset, int n) {
+            System.arraycopy (block, offset, records, count * size, size);
+            view.wrap (format, records, count * size);
+            if (texts != null) {
+                texts[count] = textKey (view);
+            } else {
+                values[count] = numberKey (view);
+            }
+            numbers[count] = n;
+            count++;
+        }
+
+        int compare (int i, int j) {
+            return texts != null ? texts[i].compareTo (texts[j]) : Integer.compare (values[i], values[j]);
+        }
+
+        void sort() {
+            order = new int[count];
+            for (int i = 0; i < count; i++) {
+                order[i] = i;
+            }
+            sort (order, new int[count], 0, count);
+        }
+
+        /**
+         * Ordenació per fusió (estable): els registres s'hi afegeixen en
+         * ordre de número i amb el mateix valor hi queden.
+         */
+        private void sort (int[] a, int[] tmp, int from, int to) {
+            if (to - from < 2) {
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            sort (a, tmp, from, mid);
+            sort (a, tmp, mid, to);
+            if (compare (a[mid - 1], a[mid]) <= 0) {
+                return;
+            }
+            System.arraycopy (a, from, tmp, from, to - from);
+            int i = from;
+            int j = mid;
+            for (int k = from; k < to; k++) {
+                if (j >= to || (i < mid && compare (tmp[i], tmp[j]) <= 0)) {
+                    a[k] = tmp[i++];
+                } else {
+                    a[k] = tmp[j++];
+                }
+            }
+        }
+
+        /**
+         * Ordena la tirada, la desa a un fitxer temporal i la buida.
+         */
+        File spill() throws IOException {
+            sort();
+            File file = File.createTempFile ("readbooks", ".run", tempDir);
+            try {
+                writeRun (new MemorySource (this), file, size);
+            } catch (IOException | RuntimeException | Error ex) {
+                file.delete();
+                throw ex;
+            }
+            if (texts != null) {
+                Arrays.fill (texts, 0, count, null);
+            }
+            count = 0;
+            return file;
+        }
+    }
+
+    /**
+     * Registres ordenats, d'un en un.
+     */
+    private abstract static class Source {
+        /** Vista del registre actual (vàlida fins a la crida següent a next). */
+        final BookRecord view = new BookRecord();
+        /** Número del registre actual a la base de dades. */
+        int number;
+
+        /**
+         * Passa al registre següent.
+         * @return Fals si no n'hi ha més.
+         */
+        abstract boolean next() throws IOException;
+
+        abstract void close() throws IOException;
+    }
+
+    /**
+     * Registres d'una tirada en memòria ja ordenada.
+     */
+    private static class MemorySource extends Source {
+        private final Run run;
+        private int position;
+
+        MemorySource (Run run) {
+            this.run = run;
+        }
+
+        boolean next() {
+            if (position == run.count) {
+                return false;
+            }
+            int i = run.order[position++];
+            view.wrap (run.format, run.records, i * run.size);
+            number = run.numbers[i];
+            return true;
+        }
+
+        void close() {
+        }
+    }
+
+    /**
+     * Lector d'una tirada desada, amb el registre actual i la seva clau.
+     */
+    private static class RunReader {
+        final int index;
+        final DataInputStream input;
+        final byte[] record;
+        final BookRecord view = new BookRecord();
+        final RecordFormat format;
+        int number;
+        String text;
+        int value;
+
+        RunReader (int index, File file, RecordFormat format, int bufferSize) throws IOException {
+            this.index = index;
+            this.format = format;
+            this.record = new byte[format.size()];
+            this.input = new DataInputStream (new BufferedInputStream (new FileInputStream (file), bufferSize));
+        }
+    }
+
+    /**
+     * Fusió de diverses tirades desades.
+     */
+    private class MergeSource extends Source {
+        private final List<File> files;
+        private final List<RunReader> readers = new ArrayList<RunReader>();
+        private final PriorityQueue<RunReader> queue;
+        private RunReader current;
+
+        MergeSource (RecordFormat format, List<File> files) throws IOException {
+            this.files = files;
+            queue = new PriorityQueue<RunReader> (Math.max (1, files.size()), new Comparator<RunReader>() {
+                public int compare (RunReader a, RunReader b) {
+                    int c = a.text != null ? a.text.compareTo (b.text) : Integer.compare (a.value, b.value);
+                    //Les tirades anteriors tenen els números més petits.
+                    return c != 0 ? c : Integer.compare (a.index, b.index);
+                }
+            });
+            int bufferSize = (int) Math.max (format.size() + 4, Math.min (MAX_RUN_BUFFER, memory / Math.max (1, files.size())));
+            try {
+                for (int i = 0; i < files.size(); i++) {
+                    RunReader reader = new RunReader (i, files.get (i), format, bufferSize);
+                    readers.add (reader);
+                    if (read (reader)) {
+                        queue.add (reader);
+                    }
+                }
+            } catch (IOException ex) {
+                close();
+                throw ex;
+            }
+        }
+
+        /**
+         * Llegeix el registre següent d'una tirada i en calcula la clau.
+         * @return Fals si la tirada s'ha acabat.
+         */
+        private boolean read (RunReader reader) throws IOException {
+            int first = reader.input.read();
+            if (first < 0) {
+                return false;
+            }
+            reader.number = (first << 24) | (reader.input.readUnsignedByte() << 16)
+                    | (reader.input.readUnsignedShort());
+            reader.input.readFully (reader.record);
+            reader.view.wrap (reader.format, reader.record, 0);
+            if (isText()) {
+                reader.text = textKey (reader.view);
+            } else {
+                reader.value = numberKey (reader.view);
+            }
+            return true;
+        }
+
+        boolean next() throws IOException {
+            if (current != null && read (current)) {
+                queue.add (current);
+            }
+            current = queue.poll();
+            if (current == null) {
+                return false;
+            }
+            view.wrap (current.format, current.record, 0);
+            number = current.number;
+            return true;
+        }
+
+        void close() throws IOException {
+            queue.clear();
+            current = null;
+            for (RunReader reader : readers) {
+                reader.input.close();
+            }
+            readers.clear();
+            for (File file : files) {
+                file.delete();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,454 @@
+/*
+ * Autors:
+ * -Xiaolong Ji
+ * -Aticor
+ */
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Índex ordenat en disc d'un camp de text (autor o sèrie), per fer cerques
+ * exactes o per prefix sense diferenciar majúscules i minúscules.
+ * <br>
+ * L'índex té dues parts:
+ * <ul>
+ * <li>La base: els números de tots els registres 0..baseCount-1, ordenats
+ * pel valor del camp (buit per als registres esborrats), guardats al fitxer. Com a TitleIndex, el valor no es
+ * guarda a l'índex sinó que es llegeix del registre, de manera que cada
+ * entrada ocupa 4 bytes i es pot fer una cerca binària directament al fitxer.</li>
+ * <li>Els canvis: les entrades afegides després de construir la base
+ * (ordenades en memòria) i els registres de la base que han canviat, amb
+ * el valor que tenien (per poder continuar ordenant la base).</li>
+ * </ul>
+ * Quan hi ha massa canvis, la base es torna a construir amb tots els registres.
+ * <br>
+ * Format del fitxer: capçalera de HEADER_SIZE bytes, baseCount enters,
+ * els registres afegits (un enter cadascun) i els registres canviats
+ * (enter i valor antic de maxLength caràcters).
+ */
+public class FieldIndex {
+
+    private static final int MAGIC = 0x46494431; // "FID1"
+    private static final int HEADER_SIZE = 32;
+    private static final int MIN_CHANGES = 1024;
+    private static final int BLOCK = 1024;
+
+    private final RecordFormat.Field field;
+    private final int maxLength;
+    private final RandomAccessFile indexFile;
+    private final FileChannel channel;
+    private final File dataFile;
+    private final ReadBooksDB booksDB;
+    private int baseCount;
+    private final TreeSet<Entry> added = new TreeSet<Entry>();
+    private final Map<Integer, String> changed = new HashMap<Integer, String>();
+    private final BookRecord probe = new BookRecord();
+
+    /**
+     * Obre l'índex d'un camp, i el reconstrueix si no existeix, està malmès
+     * o no correspon al fitxer de dades.
+     * @param fileName Nom del fitxer de l'índex.
+     * @param field Camp indexat (AUTHOR o SERIES).
+     * @param dataFile Fitxer de dades indexat.
+     * @param booksDB Base de dades d'on es llegeixen els valors.
+     * @throws IOException
+     */
+    public FieldIndex (String fileName, RecordFormat.Field field, File dataFile, ReadBooksDB booksDB) throws IOException {
+        this.field = field;
+        this.maxLength = RecordFormat.maxLength (field);
+        this.dataFile = dataFile;
+        this.booksDB = booksDB;
+        indexFile = new RandomAccessFile (fileName, "rw");
+        channel = indexFile.getChannel();
+        if (!load()) {
+            rebuild();
+        }
+        //Mentre està obert, l'índex es marca com a no vàlid al disc.
+        writeHeader (false);
+    }
+
+    /**
+     * Llegeix l'índex i comprova que encara sigui vàlid.
+     * @return Cert si l'índex es pot fer servir tal com està.
+     * @throws IOException
+     */
+    private boolean load() throws IOException {
+        if (indexFile.length() < HEADER_SIZE) {
+            return false;
+        }
+        byte[] header = new byte[HEADER_SIZE];
+        readFully (0, header, HEADER_SIZE);
+        if (PackUtils.unpackInt (header, 0) != MAGIC
+                || !PackUtils.unpackBoolean (header, 4)
+                || PackUtils.unpackInt (header, 8) != booksDB.getNumRecords()
+                || PackUtils.unpackLong (header, 24) != dataFile.lastModified()) {
+            return false;
+        }
+        baseCount = PackUtils.unpackInt (header, 12);
+        int addedCount = PackUtils.unpackInt (header, 16);
+        int changedCount = PackUtils.unpackInt (header, 20);
+        long tail = HEADER_SIZE + 4L * baseCount;
+        int changedSize = 4 + 2 * maxLength;
+        if (indexFile.length() != tail + 4L * addedCount + (long) changedCount * changedSize) {
+            return false;
+        }
+        byte[] buffer = new byte[4 * addedCount + changedCount * changedSize];
+        readFully (tail, buffer, buffer.length);
+        for (int i = 0; i < addedCount; i++) {
+            int n = PackUtils.unpackInt (buffer, 4 * i);
+            added.add (new Entry (key (booksDB.loadRecord (n, probe)), n));
+        }
+        for (int i = 0; i < changedCount; i++) {
+            int offset = 4 * addedCount + i * changedSize;
+            changed.put (PackUtils.unpackInt (buffer, offset),
+                         PackUtils.unpackString (maxLength, buffer, offset + 4));
+        }
+        return true;
+    }
+
+    /**
+     * Escriu la capçalera de l'índex.
+     * @param clean Indica si l'índex queda sincronitzat amb les dades.
+     * @throws IOException
+     */
+    private void writeHeader (boolean clean) throws IOException {
+        byte[] header = new byte[HEADER_SIZE];
+        PackUtils.packInt (MAGIC, header, 0);
+        PackUtils.packBoolean (clean, header, 4);
+        PackUtils.packInt (booksDB.getNumRecords(), header, 8);
+        PackUtils.packInt (baseCount, header, 12);
+        PackUtils.packInt (added.size(), header, 16);
+        PackUtils.packInt (changed.size(), header, 20);
+        PackUtils.packLong (clean ? dataFile.lastModified() : 0L, header, 24);
+        indexFile.seek (0);
+        indexFile.write (header);
+    }
+
+    /**
+     * Valor d'un camp normalitzat per a l'índex: sense diferenciar majúscules
+     * i minúscules (amb el mateix criteri que String.equalsIgnoreCase).
+     * @param value Valor del camp.
+     * @return Valor normalitzat.
+     */
+    static String fold (String value) {
+        char[] chars = value.toCharArray();
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = Character.toLowerCase (Character.toUpperCase (chars[i]));
+        }
+        return new String (chars);
+    }
+
+    private String key (BookRecord record) {
+        if (record.isDeleted()) {
+            return "";
+        }
+        return fold (field == RecordFormat.Field.AUTHOR ? record.getAuthor() : record.getSeries());
+    }
+
+    /**
+     * Reconstrueix la base amb tots els registres de la base de dades.
+     * @throws IOException
+     */
+    public void rebuild() throws IOException {
+        int numBooks = booksDB.getNumRecords();
+        String[] keys = new String[numBooks];
+        //Els autors i les sèries es repeteixen molt: es guarda una sola còpia de cada valor.
+        Map<String, String> distinct = new HashMap<String, String>();
+        for (int i = 0; i < numBooks; i++) {
+            String key = key (booksDB.loadRecord (i, probe));
+            String same = distinct.get (key);
+            if (same == null) {
+                distinct.put (key, key);
+                same = key;
+            }
+            keys[i] = same;
+        }
+        int[] order = new int[numBooks];
+        for (int i = 0; i < numBooks; i++) {
+            order[i] = i;
+        }
+        sort (order, new int[numBooks], 0, numBooks, keys);
+        byte[] buffer = new byte[4 * numBooks];
+        for (int i = 0; i < numBooks; i++) {
+            PackUtils.packInt (order[i], buffer, 4 * i);
+        }
+        baseCount = numBooks;
+        added.clear();
+        changed.clear();
+        indexFile.setLength (HEADER_SIZE + (long) buffer.length);
+        indexFile.seek (HEADER_SIZE);
+        indexFile.write (buffer);
+        writeHeader (false);
+    }
+
+    /**
+     * Ordenació per fusió (estable) dels números de registre pel valor del
+     * camp: els registres amb el mateix valor queden en ordre de número.
+     */
+    private static void sort (int[] a, int[] tmp, int from, int to, String[] keys) {
+        if (to - from < 2) {
+            return;
+        }
+        int mid = (from + to) >>> 1;
+        sort (a, tmp, from, mid, keys);
+        sort (a, tmp, mid, to, keys);
+        if (keys[a[mid - 1]].compareTo (keys[a[mid]]) <= 0) {
+            return;
+        }
+        System.arraycopy (a, from, tmp, from, to - from);
+        int i = from;
+        int j = mid;
+        for (int k = from; k < to; k++) {
+            if (j >= to || (i < mid && keys[tmp[i]].compareTo (keys[tmp[j]]) <= 0)) {
+                a[k] = tmp[i++];
+            } else {
+                a[k] = tmp[j++];
+            }
+        }
+    }
+
+    /**
+     * Buida l'índex.
+     * @throws IOException
+     */
+    public void clear() throws IOException {
+        baseCount = 0;
+        added.clear();
+        changed.clear();
+        indexFile.setLength (HEADER_SIZE);
+        writeHeader (false);
+    }
+
+    /**
+     * Cerca els registres amb un valor determinat.
+     * @param value Valor a cercar.
+     * @return Números de registre, ordenats pel valor i després pel número.
+     * @throws IOException
+     */
+    public int[] search (String value) throws IOException {
+        return search (fold (value), false);
+    }
+
+    /**
+     * Cerca els registres el valor dels quals comença per un prefix.
+     * @param prefix Prefix a cercar.
+     * @return Números de registre, ordenats pel valor i després pel número.
+     * @throws IOException
+     */
+    public int[] searchPrefix (String prefix) throws IOException {
+        return search (fold (prefix), true);
+    }
+
+    private int[] search (String key, boolean prefix) throws IOException {
+        //Vista local: la cerca es pot fer des de diversos fils alhora.
+        BookRecord probe = new BookRecord();
+        byte[] slot = new byte[4];
+        List<Entry> found = new ArrayList<Entry>();
+        //Primer valor de la base que no és menor que la clau.
+        int lo = 0;
+        int hi = baseCount;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            readFully (HEADER_SIZE + 4L * mid, slot, 4);
+            if (baseKey (PackUtils.unpackInt (slot, 0), probe).compareTo (key) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        byte[] block = new byte[4 * BLOCK];
+        scan:
+        for (int i = lo; i < baseCount; i += BLOCK) {
+            int count = Math.min (BLOCK, baseCount - i);
+            readFully (HEADER_SIZE + 4L * i, block, 4 * count);
+            for (int j = 0; j < count; j++) {
+                int n = PackUtils.unpackInt (block, 4 * j);
+                String value = baseKey (n, probe);
+                if (!matches (value, key, prefix)) {
+                    break scan;
+                }
+                //Si el registre no ha canviat, baseKey l'ha deixat a probe.
+                if (!changed.containsKey (n) && !probe.isDeleted()) {
+                    found.add (new Entry (value, n));
+                }
+            }
+        }
+        for (Entry entry : added.tailSet (new Entry (key, Integer.MIN_VALUE))) {
+            if (!matches (entry.key, key, prefix)) {
+                break;
+            }
+            found.add (entry);
+        }
+        Collections.sort (found);
+        int[] result = new int[found.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = found.get (i).n;
+        }
+        return result;
+    }
+
+    /**
+     * Valor amb què està ordenada una entrada de la base: l'antic si el
+     * registre ha canviat, o el del registre si no.
+     */
+    private String baseKey (int n, BookRecord probe) throws IOException {
+        String old = changed.get (n);
+        return old != null ? old : key (booksDB.loadRecord (n, probe));
+    }
+
+    private static boolean matches (String value, String key, boolean prefix) {
+        return prefix ? value.startsWith (key) : value.equals (key);
+    }
+
+    /**
+     * Afegeix una entrada a l'índex.
+     * @param value Valor del camp.
+     * @param n Posició del registre.
+     */
+    public void add (String value, int n) {
+        added.add (new Entry (fold (value), n));
+    }
+
+    /**
+     * Afegeix a l'índex un bloc de registres consecutius.
+     * @param records Array amb els registres empaquetats.
+     * @param count Nombre de registres de l'array.
+     * @param first Posició a la base de dades del primer registre.
+     */
+    public void addAll (byte[] records, int count, int first) {
+        BookRecord view = new BookRecord();
+        RecordFormat format = booksDB.getFormat();
+        for (int i = 0; i < count; i++) {
+            added.add (new Entry (key (view.wrap (format, records, i * format.size())), first + i));
+        }
+    }
+
+    /**
+     * Elimina l'entrada d'un registre de l'índex.
+     * @param n Posició del registre (que encara ha de contenir el llibre indexat).
+     * @throws IOException
+     */
+    public void remove (int n) throws IOException {
+        String key = key (booksDB.loadRecord (n, probe));
+        if (n < baseCount && !changed.containsKey (n)) {
+            changed.put (n, key);
+        } else {
+            added.remove (new Entry (key, n));
+        }
+    }
+
+    /**
+     * Torna a construir la base si s'hi han acumulat massa canvis.
+     * S'ha de cridar quan la base de dades ja té el nombre de llibres al dia.
+     * @throws IOException
+     */
+    public void compact() throws IOException {
+        if (added.size() + changed.size() > MIN_CHANGES + baseCount / 2) {
+            rebuild();
+        }
+    }
+
+    /**
+     * Canvia els números de registre després de compactar la base de dades,
+     * sense tornar a llegir cap registre: com que els registres conserven
+     * l'ordre, l'ordenació de l'índex no canvia.
+     * @param mapping Número nou de cada registre antic (-1 si s'ha esborrat),
+     * creixent per als registres que no s'han esborrat.
+     * @throws IOException
+     */
+    public void remap (int[] mapping) throws IOException {
+        byte[] buffer = new byte[4 * baseCount];
+        readFully (HEADER_SIZE, buffer, buffer.length);
+        int count = 0;
+        for (int i = 0; i < baseCount; i++) {
+            int n = mapping[PackUtils.unpackInt (buffer, 4 * i)];
+            if (n >= 0) {
+                PackUtils.packInt (n, buffer, 4 * count++);
+            }
+        }
+        //Els registres de la base que queden són justament 0..count-1.
+        baseCount = count;
+        Map<Integer, String> oldChanged = new HashMap<Integer, String> (changed);
+        changed.clear();
+        for (Map.Entry<Integer, String> entry : oldChanged.entrySet()) {
+            int n = mapping[entry.getKey()];
+            if (n >= 0) {
+                changed.put (n, entry.getValue());
+            }
+        }
+        List<Entry> oldAdded = new ArrayList<Entry> (added);
+        added.clear();
+        for (Entry entry : oldAdded) {
+            added.add (new Entry (entry.key, mapping[entry.n]));
+        }
+        indexFile.setLength (HEADER_SIZE + 4L * count);
+        indexFile.seek (HEADER_SIZE);
+        indexFile.write (buffer, 0, 4 * count);
+        writeHeader (false);
+    }
+
+    /**
+     * Tanca l'índex deixant-lo marcat com a sincronitzat.
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        compact();
+        int changedSize = 4 + 2 * maxLength;
+        byte[] buffer = new byte[4 * added.size() + changed.size() * changedSize];
+        int offset = 0;
+        for (Entry entry : added) {
+            PackUtils.packInt (entry.n, buffer, offset);
+            offset += 4;
+        }
+        for (Map.Entry<Integer, String> entry : changed.entrySet()) {
+            PackUtils.packInt (entry.getKey(), buffer, offset);
+            PackUtils.packString (entry.getValue(), maxLength, buffer, offset + 4);
+            offset += changedSize;
+        }
+        long tail = HEADER_SIZE + 4L * baseCount;
+        indexFile.setLength (tail + buffer.length);
+        indexFile.seek (tail);
+        indexFile.write (buffer);
+        writeHeader (true);
+        indexFile.close();
+    }
+
+    private void readFully (long position, byte[] buffer, int length) throws IOException {
+        ByteBuffer bytes = ByteBuffer.wrap (buffer, 0, length);
+        while (bytes.hasRemaining()) {
+            if (channel.read (bytes, position + bytes.position()) < 0) {
+                throw new EOFException();
+            }
+        }
+    }
+
+    /**
+     * Entrada de l'índex: valor normalitzat i número de registre.
+     */
+    private static class Entry implements Comparable<Entry> {
+        final String key;
+        final int n;
+
+        Entry (String key, int n) {
+            this.key = key;
+            this.n = n;
+        }
+
+        public int compareTo (Entry other) {
+            int c = key.compareTo (other.key);
+            return c != 0 ? c : Integer.compare (n, other.n);
+        }
+    }
+
+}
@@ -0,0 +1,68 @@
+/*
+ * Autors:
+ * -Xiaolong Ji
+ * -Aticor
+ */
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Emmagatzematge sobre un fitxer, amb lectures i escriptures posicionals
+ * (FileChannel) que no comparteixen cap punter de fitxer: diversos fils
+ * poden llegir alhora.
+ * <br>
+ * Si s'interromp un fil mentre llegeix o escriu, el canal es tanca
+ * (ClosedByInterruptException); no s'han d'interrompre els fils que hi accedeixen.
+ */
+public class FileRecordStore implements RecordStore {
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+
+    /**
+     * Obre (o crea) el fitxer de dades.
+     * @param fileName Nom del fitxer.
+     * @throws IOException
+     */
+    public FileRecordStore (String fileName) throws IOException {
+        file = new RandomAccessFile (fileName, "rw");
+        channel = file.getChannel();
+    }
+
+    public long length() throws IOException {
+        return channel.size();
+    }
+
+    public void setLength (long length) throws IOException {
+        file.setLength (length);
+    }
+
+    public void read (long position, byte[] buffer, int offset, int length) throws IOException {
+        ByteBuffer bytes = ByteBuffer.wrap (buffer, offset, length);
+        while (bytes.hasRemaining()) {
+            if (channel.read (bytes, position + bytes.position() - offset) < 0) {
+                throw new EOFException();
+            }
+        }
+    }
+
+    public void write (long position, byte[] buffer, int offset, int length) throws IOException {
+        ByteBuffer bytes = ByteBuffer.wrap (buffer, offset, length);
+        while (bytes.hasRemaining()) {
+            channel.write (bytes, position + bytes.position() - offset);
+        }
+    }
+
+    public void force() throws IOException {
+        channel.force (false);
+    }
+
+    public void close() throws IOException {
+        file.close();
+    }
+
+}
@@ -0,0 +1,155 @@
+/*
+ * Autors:
+ * -Xiaolong Ji
+ * -Aticor
+ */
+
+/**
+ * Agregats d'un grup de llibres (per exemple, els d'un autor o els acabats
+ * en un any): nombre de llibres, pàgines, començats, acabats i durada de
+ * les lectures.
+ * <br>
+ * Es calculen sobre la vista dels registres (BookRecord), sense
+ * desempaquetar-los. No és segur entre fils: cada fil acumula el seu i
+ * després es combinen amb merge.
+ */
+public class GroupStats {
+
+    private long books;
+    private long pages;
+    private long started;
+    private long finished;
+    private long pagesRead;
+    private long timed;
+    private long readingDays;
+
+    /**
+     * Afegeix un llibre al grup.
+     * @param record Vista del registre.
+     */
+    public void add (BookRecord record) {
+        update (record, 1);
+    }
+
+    /**
+     * Treu un llibre del grup (el mateix registre que s'havia afegit).
+     * @param record Vista del registre.
+     */
+    public void remove (BookRecord record) {
+        update (record, -1);
+    }
+
+    private void update (BookRecord record, int sign) {
+        int bookPages = record.getPages();
+        books += sign;
+        pages += sign * bookPages;
+        if (record.isStarted()) {
+            started += sign;
+        }
+        if (record.isFinished()) {
+            finished += sign;
+            pagesRead += sign * bookPages;
+            int start = record.getStartDay();
+            int end = record.getEndDay();
+            if (start != RecordFormat.NO_DATE && end != RecordFormat.NO_DATE && end >= start) {
+                timed += sign;
+                readingDays += sign * (end - start);
+            }
+        }
+    }
+
+    /**
+     * Afegeix els agregats d'un altre grup.
+     * @param other Grup a afegir.
+     * @return Aquest grup.
+     */
+    public GroupStats merge (GroupStats other) {
+        books += other.books;
+        pages += other.pages;
+        started += other.started;
+        finished += other.finished;
+        pagesRead += other.pagesRead;
+        timed += other.timed;
+        readingDays += other.readingDays;
+        return this;
+    }
+
+    /**
+     * Còpia dels agregats.
+     * @return Grup nou amb els mateixos valors.
+     */
+    public GroupStats copy() {
+        return new GroupStats().merge (this);
+    }
+
+    /**
+     * Obtenir el nombre de llibres.
+     * @return Nombre de llibres.
+     */
+    public long getBooks() {
+        return books;
+    }
+
+    /**
+     * Obtenir la suma de pàgines de tots els llibres.
+     * @return Pàgines.
+     */
+    public long getPages() {
+        return pages;
+    }
+
+    /**
+     * Obtenir el nombre de llibres començats.
+     * @return Llibres començats.
+     */
+    public long getStarted() {
+        return started;
+    }
+
+    /**
+     * Obtenir el nombre de llibres acabats.
+     * @return Llibres acabats.
+     */
+    public long getFinished() {
+        return finished;
+    }
+
+    /**
+     * Obtenir la suma de pàgines dels llibres acabats.
+     * @return Pàgines llegides.
+     */
+    public long getPagesRead() {
+        return pagesRead;
+    }
+
+    /**
+     * Mitjana de pàgines per llibre.
+     * @return Mitjana, o 0 si el grup és buit.
+     */
+    public double getAveragePages() {
+        return books == 0 ? 0 : (double) pages / books;
+    }
+
+    /**
+     * Mitjana de dies entre l'inici i el final de la lectura, dels llibres
+     * acabats que tenen les dues dates.
+     * @return Mitjana de dies, o 0 si no n'hi ha cap.
+     */
+    public double getAverageReadingDays() {
+        return timed == 0 ? 0 : (double) readingDays / timed;
+    }
+
+    /**
+     * Indica si el grup no té cap llibre.
+     * @return true si és buit.
+     */
+    public boolean isEmpty() {
+        return books == 0;
+    }
+
+    public String toString() {
+        return String.format ("%d books, %d pages (avg %.1f), %d started, %d finished, %d pages read, avg %.1f days",
+                              books, pages, getAveragePages(), started, finished, pagesRead, getAverageReadingDays());
+    }
+
+}
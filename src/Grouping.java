@@ -0,0 +1,71 @@
+/*
+ * Autors:
+ * -Xiaolong Ji
+ * -Aticor
+ */
+
+import java.time.LocalDate;
+
+/**
+ * Criteris per agrupar llibres a les estadístiques (vegeu BookStatistics).
+ * <br>
+ * Cada criteri obté la clau del grup d'un registre; els llibres sense clau
+ * (per exemple, sense data de final) no es compten.
+ */
+public enum Grouping {
+
+    /** Per autor. */
+    AUTHOR {
+        public String key (BookRecord record) {
+            return record.getAuthor();
+        }
+    },
+
+    /** Per sèrie (els llibres sense sèrie no es compten). */
+    SERIES {
+        public String key (BookRecord record) {
+            String series = record.getSeries();
+            return series.isEmpty() ? null : series;
+        }
+    },
+
+    /** Per any d'inici de la lectura (aaaa). */
+    START_YEAR {
+        public String key (BookRecord record) {
+            int day = record.getStartDay();
+            return day == RecordFormat.NO_DATE ? null : Integer.toString (LocalDate.ofEpochDay (day).getYear());
+        }
+    },
+
+    /** Per any de final de la lectura (aaaa), dels llibres acabats. */
+    FINISH_YEAR {
+        public String key (BookRecord record) {
+            int day = record.getEndDay();
+            if (!record.isFinished() || day == RecordFormat.NO_DATE) {
+                return null;
+            }
+            return Integer.toString (LocalDate.ofEpochDay (day).getYear());
+        }
+    },
+
+    /** Per mes de final de la lectura (aaaa-mm), dels llibres acabats. */
+    FINISH_MONTH {
+        public String key (BookRecord record) {
+            int day = record.getEndDay();
+            if (!record.isFinished() || day == RecordFormat.NO_DATE) {
+                return null;
+            }
+            LocalDate date = LocalDate.ofEpochDay (day);
+            int month = date.getMonthValue();
+            return date.getYear() + (month < 10 ? "-0" : "-") + month;
+        }
+    };
+
+    /**
+     * Clau del grup d'un registre.
+     * @param record Vista del registre.
+     * @return Clau, o null si el llibre no pertany a cap grup.
+     */
+    public abstract String key (BookRecord record);
+
+}
@@ -0,0 +1,146 @@
+/*
+ * Autors:
+ * -Xiaolong Ji
+ * -Aticor
+ */
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histograma de valors no negatius (per exemple, latències en nanosegons)
+ * amb cubetes log-lineals, com HdrHistogram: cada potència de 2 es divideix
+ * en SUB_BUCKETS cubetes iguals, de manera que l'error relatiu d'un
+ * percentil és com a molt 1/SUB_BUCKETS, sigui quin sigui l'ordre de magnitud.
+ * <br>
+ * Es pot fer servir des de diversos fils sense bloquejar: cada valor és un
+ * increment atòmic. Les consultes no són una foto exacta si s'hi afegeixen
+ * valors alhora.
+ */
+public class Histogram {
+
+    private static final int SUB_BITS = 3;
+
+    /** Nombre de cubetes per potència de 2. */
+    public static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+    private static final int BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray (BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder total = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Afegeix un valor.
+     * @param value Valor (els negatius es compten com a 0).
+     */
+    public void record (long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        counts.incrementAndGet (bucket (value));
+        count.increment();
+        total.add (value);
+        long current = max.get();
+        while (value > current && !max.compareAndSet (current, value)) {
+            current = max.get();
+        }
+    }
+
+    private static int bucket (long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros (value);
+        int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * Valor més gran que pot anar a una cubeta.
+     */
+    private static long upperBound (int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+        long sub = bucket % SUB_BUCKETS;
+        long width = 1L << (exponent - SUB_BITS);
+        return ((SUB_BUCKETS + sub) * width) + width - 1;
+    }
+
+    /**
+     * Obtenir el nombre de valors.
+     * @return Nombre de valors afegits.
+     */
+    public long getCount() {
+        return count.sum();
+    }
+
+    /**
+     * Obtenir la suma dels valors.
+     * @return Suma de tots els valors afegits.
+     */
+    public long getTotal() {
+        return total.sum();
+    }
+
+    /**
+     * Obtenir la mitjana dels valors.
+     * @return Mitjana, o 0 si no n'hi ha cap.
+     */
+    public double getMean() {
+        long n = count.sum();
+        return n == 0 ? 0 : (double) total.sum() / n;
+    }
+
+    /**
+     * Obtenir el valor més gran.
+     * @return Màxim, o 0 si no n'hi ha cap.
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Obtenir un percentil.
+     * @param percentile Percentil, entre 0 i 100 (per exemple, 99.9).
+     * @return Valor (el límit superior de la cubeta, sense passar del màxim)
+     * que no supera aquest percentatge de valors; 0 si no n'hi ha cap.
+     */
+    public long getPercentile (double percentile) {
+        long[] snapshot = new long[BUCKETS];
+        long n = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get (i);
+            n += snapshot[i];
+        }
+        if (n == 0) {
+            return 0;
+        }
+        long rank = Math.max (1, (long) Math.ceil (Math.min (percentile, 100) / 100 * n));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return Math.min (upperBound (i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    /**
+     * Buida l'histograma.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts.set (i, 0);
+        }
+        count.reset();
+        total.reset();
+        max.set (0);
+    }
+
+}
@@ -0,0 +1,185 @@
+/*
+ * Autors:
+ * -Xiaolong Ji
+ * -Aticor
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Manifest d'una importació incremental (vegeu BookSync): per a cada
+ * fitxer de llibre importat, la mida, la data de modificació, el CRC-32 del
+ * contingut i el títol amb què s'ha guardat a la base de dades.
+ * <br>
+ * Format del fitxer (DataOutputStream):
+ * <pre>
+ * int MAGIC, long writtenAt, int count,
+ * count x (UTF path, long size, long modified, int crc, UTF title)
+ * </pre>
+ * El fitxer es reemplaça sencer amb un canvi de nom atòmic.
+ */
+public class ImportManifest {
+
+    private static final int MAGIC = 0x4d414e31; // "MAN1"
+
+    private final File file;
+    private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>();
+    private boolean loaded;
+    private long writtenAt;
+
+    /**
+     * Llegeix un manifest. Si el fitxer no existeix o no és vàlid, el
+     * manifest queda buit.
+     * @param fileName Nom del fitxer del manifest.
+     */
+    public ImportManifest (String fileName) {
+        file = new File (fileName);
+        try {
+            load();
+        } catch (IOException ex) {
+            entries.clear();
+            loaded = false;
+        }
+    }
+
+    private void load() throws IOException {
+        if (!file.exists()) {
+            return;
+        }
+        DataInputStream input = new DataInputStream (new BufferedInputStream (new FileInputStream (file)));
+        try {
+            if (input.readInt() != MAGIC) {
+                throw new IOException ("Not a manifest: " + file);
+            }
+            writtenAt = input.readLong();
+            int count = input.readInt();
+            for (int i = 0; i < count; i++) {
+                Entry entry = new Entry (input.readUTF(), input.readLong(), input.readLong(),
+                                         input.readInt(), input.readUTF());
+                entries.put (entry.path, entry);
+            }
+            loaded = true;
+        } finally {
+            input.close();
+        }
+    }
+
+    /**
+     * Indica si el manifest pot descriure una base de dades: s'ha llegit i
+     * la base de dades no té més llibres que fitxers el manifest (si en té
+     * menys, és que se n'han esborrat, i la sincronització els torna a afegir).
+     * @param booksDB Base de dades.
+     * @return true si el manifest és fiable.
+     */
+    public boolean matches (ReadBooksDB booksDB) {
+        return (loaded || booksDB.getNumBooks() == 0) && booksDB.getNumBooks() <= entries.size();
+    }
+
+    /**
+     * Moment (en mil·lisegons) en què es va escriure el manifest.
+     * @return Data d'escriptura, o 0 si no se n'ha llegit cap.
+     */
+    public long getWrittenAt() {
+        return writtenAt;
+    }
+
+    /**
+     * Obtenir l'entrada d'un fitxer.
+     * @param path Camí del fitxer, tal com surt a la llista.
+     * @return Entrada, o null si el fitxer no hi és.
+     */
+    public Entry get (String path) {
+        return entries.get (path);
+    }
+
+    /**
+     * Obtenir totes les entrades.
+     * @return Entrades, en l'ordre en què es van afegir.
+     */
+    public Collection<Entry> entries() {
+        return entries.values();
+    }
+
+    /**
+     * Afegeix o substitueix l'entrada d'un fitxer.
+     * @param entry Entrada.
+     */
+    public void put (Entry entry) {
+        entries.put (entry.path, entry);
+    }
+
+    /**
+     * Treu l'entrada d'un fitxer.
+     * @param path Camí del fitxer.
+     */
+    public void remove (String path) {
+        entries.remove (path);
+    }
+
+    /**
+     * Treu totes les entrades.
+     */
+    public void clear() {
+        entries.clear();
+    }
+
+    /**
+     * Escriu el manifest (en un fitxer temporal que després es reanomena).
+     * @throws IOException
+     */
+    public void save() throws IOException {
+        File temp = new File (file.getPath() + ".tmp");
+        writtenAt = System.currentTimeMillis();
+        FileOutputStream out = new FileOutputStream (temp);
+        DataOutputStream output = new DataOutputStream (new BufferedOutputStream (out));
+        try {
+            output.writeInt (MAGIC);
+            output.writeLong (writtenAt);
+            output.writeInt (entries.size());
+            for (Entry entry : entries.values()) {
+                output.writeUTF (entry.path);
+                output.writeLong (entry.size);
+                output.writeLong (entry.modified);
+                output.writeInt (entry.crc);
+                output.writeUTF (entry.title);
+            }
+            output.flush();
+            out.getFD().sync();
+        } finally {
+            output.close();
+        }
+        Files.move (temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Un fitxer importat.
+     */
+    public static class Entry {
+        final String path;
+        final long size;
+        final long modified;
+        final int crc;
+        final String title;
+
+        Entry (String path, long size, long modified, int crc, String title) {
+            this.path = path;
+            this.size = size;
+            this.modified = modified;
+            this.crc = crc;
+            this.title = title;
+        }
+    }
+
+}
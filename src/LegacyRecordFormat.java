@@ -0,0 +1,94 @@
+/*
+ * Autors:
+ * -Xiaolong Ji
+ * -Aticor
+ */
+
+import java.time.DateTimeException;
+import java.time.LocalDate;
+
+/**
+ * Format original dels registres (V1): sense capçalera de fitxer,
+ * amb la disposició de BookInfo.toBytes (BookInfo.SIZE bytes per registre).
+ */
+public class LegacyRecordFormat extends RecordFormat {
+
+    public int version() { return 1; }
+
+    public int size() { return BookInfo.SIZE; }
+
+    public int headerSize() { return 0; }
+
+    public int offset (Field field) {
+        switch (field) {
+            case TITLE:      return BookInfo.TITLE_OFFSET;
+            case AUTHOR:     return BookInfo.AUTHOR_OFFSET;
+            case SERIES:     return BookInfo.SERIES_OFFSET;
+            case PAGES:      return BookInfo.PAGES_OFFSET;
+            case FLAGS:      return BookInfo.STARTED_OFFSET;
+            case START_DATE: return BookInfo.START_DATE_OFFSET;
+            default:         return BookInfo.END_DATE_OFFSET;
+        }
+    }
+
+    public int width (Field field) {
+        switch (field) {
+            case PAGES: return 2;
+            case FLAGS: return 2; // started + finished
+            default:    return 2 * maxLength (field);
+        }
+    }
+
+    public void encode (BookInfo book, byte[] buffer, int offset) {
+        book.toBytes (buffer, offset);
+    }
+
+    public BookInfo decode (byte[] buffer, int offset) {
+        return BookInfo.fromBytes (buffer, offset);
+    }
+
+    public int unpackText (Field field, byte[] buffer, int offset, char[] chars) {
+        return PackUtils.unpackChars (maxLength (field), buffer, offset + offset (field), chars, 0);
+    }
+
+    public short unpackPages (byte[] buffer, int offset) {
+        return PackUtils.unpackShort (buffer, offset + BookInfo.PAGES_OFFSET);
+    }
+
+    public boolean unpackStarted (byte[] buffer, int offset) {
+        return PackUtils.unpackBoolean (buffer, offset + BookInfo.STARTED_OFFSET);
+    }
+
+    public boolean unpackFinished (byte[] buffer, int offset) {
+        return PackUtils.unpackBoolean (buffer, offset + BookInfo.FINISHED_OFFSET);
+    }
+
+    public int unpackDay (Field field, byte[] buffer, int offset) {
+        //La data és text UTF-16 (aaaa-mm-dd): es llegeixen els dígits directament.
+        int from = offset + offset (field);
+        int year = digits (buffer, from, 0, 4);
+        int month = digits (buffer, from, 5, 2);
+        int day = digits (buffer, from, 8, 2);
+        if (year < 0 || month < 0 || day < 0) {
+            return NO_DATE;
+        }
+        try {
+            return (int) LocalDate.of (year, month, day).toEpochDay();
+        } catch (DateTimeException ex) {
+            return NO_DATE;
+        }
+    }
+
+    private static int digits (byte[] buffer, int from, int first, int count) {
+        int value = 0;
+        for (int i = first; i < first + count; i++) {
+            char c = PackUtils.unpackChar (buffer, from + 2 * i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            value = 10 * value + (c - '0');
+        }
+        return value;
+    }
+
+}
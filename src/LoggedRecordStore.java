@@ -0,0 +1,250 @@
+/*
+ * Autors:
+ * -Xiaolong Ji
+ * -Aticor
+ */
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Emmagatzematge amb registre d'escriptura anticipada (WriteAheadLog) al
+ * davant d'un altre emmagatzematge.
+ * <br>
+ * Les escriptures no van directament a les dades: es registren a la
+ * transacció en curs i es guarden en pàgines modificades en memòria, d'on
+ * es llegeixen. commit afegeix la transacció al registre i sync la fa
+ * duradora. Periòdicament (checkpoint) el registre es força a disc, les
+ * pàgines modificades s'escriuen a les dades, les dades es forcen a disc i
+ * el registre es buida. Així les dades mai no contenen canvis que no siguin
+ * ja al registre, i en obrir-lo després d'una aturada només cal tornar a
+ * aplicar les transaccions completes del registre.
+ * <br>
+ * Com RecordStore, les lectures es poden fer des de diversos fils; les
+ * escriptures, commit i checkpoint les ha de fer un sol fil alhora.
+ */
+public class LoggedRecordStore implements RecordStore {
+
+    private static final int PAGE_SIZE = 4096;
+
+    /** Pàgines modificades a partir de les quals es fa un checkpoint. */
+    private static final int MAX_DIRTY_PAGES = 2048;
+
+    /** Mida del registre a partir de la qual es fa un checkpoint. */
+    private static final long MAX_LOG_SIZE = 32L << 20;
+
+    private volatile RecordStore store;
+    private final WriteAheadLog log;
+    private final Map<Long, byte[]> pages = new ConcurrentHashMap<Long, byte[]>();
+    private volatile long length;
+    // Bytes de les dades encara vàlids (per sota de qualsevol truncament pendent)
+    private volatile long storeLength;
+
+    /**
+     * Obre el registre i hi recupera les transaccions pendents d'una
+     * execució anterior.
+     * @param store Emmagatzematge de les dades.
+     * @param logFileName Nom del fitxer del registre.
+     * @throws IOException
+     */
+    public LoggedRecordStore (RecordStore store, String logFileName) throws IOException {
+        this.store = store;
+        this.log = new WriteAheadLog (logFileName);
+        if (log.replay (store) > 0) {
+            store.force();
+        }
+        length = store.length();
+        storeLength = length;
+        truncateLog();
+    }
+
+    public long length() {
+        return length;
+    }
+
+    public void setLength (long newLength) throws IOException {
+        log.logSetLength (newLength);
+        if (newLength < length) {
+            for (Long page : pages.keySet()) {
+                if (page * PAGE_SIZE >= newLength) {
+                    pages.remove (page);
+                }
+            }
+            //La resta de la darrera pàgina ha de quedar a zero per si les dades tornen a créixer.
+            byte[] last = pages.get (newLength / PAGE_SIZE);
+            if (last != null) {
+                int from = (int) (newLength % PAGE_SIZE);
+                Arrays.fill (last, from, PAGE_SIZE, (byte) 0);
+            }
+            storeLength = Math.min (storeLength, newLength);
+        }
+        length = newLength;
+    }
+
+    public void read (long position, byte[] buffer, int offset, int count) throws IOException {
+        if (position + count > length) {
+            throw new EOFException();
+        }
+        if (pages.isEmpty() && position + count <= storeLength) {
+            store.read (position, buffer, offset, count);
+            return;
+        }
+        while (count > 0) {
+            long index = position / PAGE_SIZE;
+            int start = (int) (position % PAGE_SIZE);
+            int n = Math.min (count, PAGE_SIZE - start);
+            byte[] page = pages.get (index);
+            if (page != null) {
+                System.arraycopy (page, start, buffer, offset, n);
+            } else {
+                readStore (position, buffer, offset, n);
+            }
+            position += n;
+            offset += n;
+            count -= n;
+        }
+    }
+
+    /**
+     * Llegeix de les dades; els bytes per sobre de storeLength són zeros.
+     */
+    private void readStore (long position, byte[] buffer, int offset, int count) throws IOException {
+        int valid = (int) Math.max (0, Math.min (count, storeLength - position));
+        if (valid > 0) {
+            store.read (position, buffer, offset, valid);
+        }
+        Arrays.fill (buffer, offset + valid, offset + count, (byte) 0);
+    }
+
+    public void write (long position, byte[] buffer, int offset, int count) throws IOException {
+        log.logWrite (position, buffer, offset, count);
+        long end = position + count;
+        while (count > 0) {
+            long index = position / PAGE_SIZE;
+            int start = (int) (position % PAGE_SIZE);
+            int n = Math.min (count, PAGE_SIZE - start);
+            byte[] page = pages.get (index);
+            if (page == null) {
+                page = new byte[PAGE_SIZE];
+                if (n < PAGE_SIZE) {
+                    readStore (index * PAGE_SIZE, page, 0, PAGE_SIZE);
+                }
+                //La pàgina es publica quan ja està completa.
+                System.arraycopy (buffer, offset, page, start, n);
+                pages.put (index, page);
+            } else {
+                System.arraycopy (buffer, offset, page, start, n);
+            }
+            position += n;
+            offset += n;
+            count -= n;
+        }
+        length = Math.max (length, end);
+    }
+
+    /**
+     * Afegeix els canvis fets des de l'últim commit al registre, com una
+     * sola transacció, i fa un checkpoint si el registre o les pàgines
+     * modificades són massa grans.
+     * @return Número de seqüència que s'ha de passar a sync.
+     * @throws IOException
+     */
+    public long commit() throws IOException {
+        long lsn = log.commit();
+        if (pages.size() > MAX_DIRTY_PAGES || log.size() > MAX_LOG_SIZE) {
+            checkpoint();
+        }
+        return lsn;
+    }
+
+    /**
+     * Espera que les transaccions fins a un número de seqüència siguin a disc.
+     * No cal cap bloqueig: diversos fils poden esperar alhora i compartir
+     * el mateix forçat a disc.
+     * @param lsn Número de seqüència retornat per commit.
+     * @throws IOException
+     */
+    public void sync (long lsn) throws IOException {
+        log.sync (lsn);
+    }
+
+    /**
+     * Escriu les pàgines modificades a les dades i buida el registre.
+     * @throws IOException
+     */
+    public void checkpoint() throws IOException {
+        log.logSetLength (length);
+        long lsn = log.commit();
+        //Primer el registre: les dades no poden avançar-lo.
+        log.sync (lsn);
+        if (store.length() > storeLength) {
+            store.setLength (storeLength);
+        }
+        if (store.length() < length) {
+            store.setLength (length);
+        }
+        for (Map.Entry<Long, byte[]> entry : pages.entrySet()) {
+            long start = entry.getKey() * PAGE_SIZE;
+            int n = (int) Math.min (PAGE_SIZE, length - start);
+            if (n > 0) {
+                store.write (start, entry.getValue(), 0, n);
+            }
+        }
+        store.force();
+        storeLength = length;
+        pages.clear();
+        truncateLog();
+    }
+
+    /**
+     * Buida el registre i hi deixa només la mida de les dades: un fitxer
+     * projectat a memòria creix per segments i, després d'una aturada,
+     * la mida del fitxer no és la de les dades.
+     * @throws IOException
+     */
+    private void truncateLog() throws IOException {
+        log.truncate();
+        log.logSetLength (length);
+        log.sync (log.commit());
+    }
+
+    /**
+     * Fa un checkpoint i tanca les dades, però no el registre, per poder
+     * substituir el fitxer de dades (openStore).
+     * @throws IOException
+     */
+    public void closeStore() throws IOException {
+        checkpoint();
+        store.close();
+        //La mida registrada és la de les dades que se substituiran.
+        log.truncate();
+    }
+
+    /**
+     * Continua amb unes altres dades després de closeStore.
+     * @param store Emmagatzematge de les dades noves.
+     * @throws IOException
+     */
+    public void openStore (RecordStore store) throws IOException {
+        this.store = store;
+        length = store.length();
+        storeLength = length;
+        truncateLog();
+    }
+
+    public void force() throws IOException {
+        checkpoint();
+    }
+
+    public void close() throws IOException {
+        checkpoint();
+        store.close();
+        //Un cop tancades, la mida del fitxer és la de les dades.
+        log.truncate();
+        log.close();
+    }
+
+}
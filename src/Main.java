@@ -3,16 +3,24 @@
  * -Xiaolong Ji
  * -Aticor
  */
-import java.io.FileReader;
-import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.stream.Stream;
+import javax.management.JMException;
 import acm.program.ConsoleProgram;
 
 public class Main extends ConsoleProgram {
 
 	private String BOOKS_FILES = "new_books.txt";
 	private String BOOKS_DB_NAME = "booksDB.dat";
+	private int CACHE_CAPACITY = 1024;
+	private int MAX_SUGGESTIONS = 10;
 	private ReadBooksDB rBooksDB;
+	private BookStatistics yearStats;
 
 	/**
 	 * Mètode principal main.
@@ -20,10 +28,23 @@ public class Main extends ConsoleProgram {
 	public void run() {
 		try {
 			rBooksDB = new ReadBooksDB (BOOKS_DB_NAME);
+			rBooksDB.setCacheCapacity (CACHE_CAPACITY);
+			//Els llistats només llegeixen les columnes dels camps que fan servir.
+			rBooksDB.setColumnsEnabled (true);
 			loadFromFiles();
-		} catch (IOException ex) {
+			//Les estadístiques per any es mantenen al dia amb cada canvi.
+			yearStats = new BookStatistics (Grouping.FINISH_YEAR);
+			rBooksDB.addListener (yearStats);
+			if (Boolean.getBoolean ("readbooks.metrics")) {
+				//Mètriques consultables per JMX (per exemple, amb jconsole).
+				rBooksDB.getMetrics().setEnabled (true);
+				rBooksDB.getMetrics().register (BOOKS_DB_NAME);
+			}
+		} catch (IOException | IllegalArgumentException ex) {
 			println ("Error generating database!");
 			System.exit (-1);
+		} catch (JMException ex) {
+			println ("Error publishing metrics!");
 		}
 		for (;;) {
 			printMenu();
@@ -39,6 +60,15 @@ public class Main extends ConsoleProgram {
 					deleteBook();
 					break;
 				case 4:
+					booksByAuthor();
+					break;
+				case 5:
+					booksBySeries();
+					break;
+				case 6:
+					printStatistics();
+					break;
+				case 7:
 					quit();
 					break;
 			}
@@ -54,7 +84,10 @@ public class Main extends ConsoleProgram {
 		println ("1 - List all titles.");
 		println ("2 - Get the information from one book.");
 		println ("3 - Delete a book.");
-		println ("4 - Quit.");
+		println ("4 - List the books of an author.");
+		println ("5 - List the books of a series (or of every series starting with a prefix).");
+		println ("6 - Reading statistics (pages read per year).");
+		println ("7 - Quit.");
 	}
 
 	/**
@@ -65,38 +98,38 @@ public class Main extends ConsoleProgram {
 		int option;
 		do {
 			option = readInt ("Select an option: ");
-		} while (option <= 0 || option > 4);
+		} while (option <= 0 || option > 7);
 		return option;
 	}
 
 	/**
 	 * Carrega la informació a la BBDD.
+	 * <br>
+	 * Només es tornen a llegir els fitxers que han canviat des de l'última
+	 * execució (vegeu BookSync); la primera vegada es carrega tot.
 	 * @throws IOException
 	 */
 	private void loadFromFiles() throws IOException {
-		rBooksDB.reset();
-		BufferedReader input = new BufferedReader (new FileReader (BOOKS_FILES));
-		String fileName = input.readLine();
-		while (fileName != null) {
-			BookInfo book = BookInfoReader.readBookFile (fileName);
-			rBooksDB.appendBookInfo (book);
-			fileName = input.readLine();
+		BookSync.Result result = new BookSync (rBooksDB, BOOKS_DB_NAME + ".manifest").sync (BOOKS_FILES);
+		for (String skipped : result.getSkipped()) {
+			println ("Skipped " + skipped);
 		}
-		input.close();
 	}
 
 	/**
-	 * Llistar tots els llibres disponibles a la BBDD.
+	 * Llistar tots els llibres disponibles a la BBDD, en ordre alfabètic.
 	 */
 	private void listTitles() {
-            int numBooks = rBooksDB.getNumBooks();
             println ();
-            try {
-                for (int i = 0; i < numBooks; i++) {
-                    BookInfo book = rBooksDB.readBookInfo (i);
-                    println (book.getTitle());
+            //Només es llegeix la columna dels títols; l'ordenació no els carrega tots en memòria.
+            ExternalSort sort = new ExternalSort (rBooksDB, RecordFormat.Field.TITLE, EnumSet.of (RecordFormat.Field.TITLE),
+                                                  ExternalSort.DEFAULT_MEMORY, null);
+            try (Stream<String> titles = sort.stream (BookRecord::getTitle)) {
+                Iterator<String> iterator = titles.iterator();
+                while (iterator.hasNext()) {
+                    println (iterator.next());
                 }
-            } catch (IOException ex) {
+            } catch (IOException | UncheckedIOException ex) {
                 println ("Database error!");
             }
 	}
@@ -113,12 +146,83 @@ public class Main extends ConsoleProgram {
 				println (book);
 			} else {
 				println ("Book not found.");
+				printSuggestions (title);
 			}
 		} catch (IOException ex) {
 			println ("Database error!");
 		}
 	}
 
+	/**
+	 * Mostra els títols que contenen els termes d'un títol no trobat.
+	 */
+	private void printSuggestions (String title) throws IOException {
+		int[] books = rBooksDB.searchBooksByTitleText (title);
+		if (books.length > 0) {
+			println ("Titles containing \"" + title.trim() + "\":");
+			Iterator<BookInfo> found = rBooksDB.readBookInfos (Arrays.copyOf (books, Math.min (books.length, MAX_SUGGESTIONS)));
+			while (found.hasNext()) {
+				println ("  " + found.next().getTitle());
+			}
+			if (books.length > MAX_SUGGESTIONS) {
+				println ("  ... (" + (books.length - MAX_SUGGESTIONS) + " more)");
+			}
+		}
+	}
+
+	/**
+	 * Llistar els llibres d'un autor de la BBDD.
+	 */
+	private void booksByAuthor() {
+		String author = readLine ("Type the author: ");
+		try {
+			printBooks (rBooksDB.searchBooksByAuthor (author));
+		} catch (IOException ex) {
+			println ("Database error!");
+		}
+	}
+
+	/**
+	 * Llistar els llibres d'una sèrie, o de totes les sèries amb un prefix
+	 * (per exemple, "Cosmere / ").
+	 */
+	private void booksBySeries() {
+		String series = readLine ("Type the series or a prefix: ");
+		try {
+			printBooks (rBooksDB.searchBooksBySeriesPrefix (series));
+		} catch (IOException ex) {
+			println ("Database error!");
+		}
+	}
+
+	/**
+	 * Mostra els llibres trobats en una cerca.
+	 * @param records Posicions dels llibres a la BBDD.
+	 */
+	private void printBooks (int[] records) {
+		if (records.length == 0) {
+			println ("No books found.");
+		}
+		Iterator<BookInfo> books = rBooksDB.readBookInfos (records);
+		try {
+			while (books.hasNext()) {
+				println (books.next());
+			}
+		} catch (UncheckedIOException ex) {
+			println ("Database error!");
+		}
+	}
+
+	/**
+	 * Mostra les estadístiques de lectura de cada any i del total.
+	 */
+	private void printStatistics() {
+		for (Map.Entry<String, GroupStats> year : yearStats.snapshot().entrySet()) {
+			println (year.getKey() + ": " + year.getValue());
+		}
+		println ("Total: " + yearStats.getTotals());
+	}
+
 	/**
 	 * Esborrar un llibre de la BBDD.
 	 */
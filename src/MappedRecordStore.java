@@ -0,0 +1,148 @@
+/*
+ * Autors:
+ * -Xiaolong Ji
+ * -Aticor
+ */
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Emmagatzematge que projecta el fitxer a memòria (FileChannel.map).
+ * <br>
+ * El fitxer es projecta en segments de SEGMENT_SIZE bytes, de manera que
+ * pot superar els 2 GB d'un sol MappedByteBuffer. Quan s'hi afegeixen dades
+ * més enllà de l'últim segment, el fitxer creix un segment sencer cada vegada;
+ * la mida real de les dades es guarda a part i el fitxer es trunca a aquesta
+ * mida en tancar-lo.
+ * <br>
+ * Les lectures es poden fer des de diversos fils mentre un altre escriu:
+ * la llista de segments es publica com a array nou cada vegada que creix.
+ * <br>
+ * No funciona a Windows: Java no allibera les projeccions fins que el
+ * recol·lector de memòria recull els MappedByteBuffer, i Windows no deixa
+ * truncar (close) ni reemplaçar un fitxer que encara està projectat. Per
+ * això el constructor hi llança una IOException.
+ */
+public class MappedRecordStore implements RecordStore {
+
+    private static final int SEGMENT_SIZE = 1 << 23; // 8 MB
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private volatile MappedByteBuffer[] segments = new MappedByteBuffer[0];
+    private volatile long length;
+
+    /**
+     * Obre (o crea) el fitxer de dades i el projecta a memòria.
+     * @param fileName Nom del fitxer.
+     * @throws IOException També si el sistema és Windows.
+     */
+    public MappedRecordStore (String fileName) throws IOException {
+        if (System.getProperty ("os.name", "").startsWith ("Windows")) {
+            throw new IOException ("MAPPED storage is not supported on Windows");
+        }
+        file = new RandomAccessFile (fileName, "rw");
+        channel = file.getChannel();
+        length = file.length();
+        ensureMapped (length);
+    }
+
+    /**
+     * Projecta segments nous fins a cobrir la mida indicada.
+     * @param size Nombre de bytes que han de quedar projectats.
+     * @throws IOException
+     */
+    private void ensureMapped (long size) throws IOException {
+        MappedByteBuffer[] mapped = segments;
+        int count = mapped.length;
+        while ((long) count * SEGMENT_SIZE < size) {
+            count++;
+        }
+        if (count > mapped.length) {
+            mapped = Arrays.copyOf (mapped, count);
+            for (int i = segments.length; i < count; i++) {
+                //Projectar en mode READ_WRITE amplia el fitxer si cal.
+                mapped[i] = channel.map (FileChannel.MapMode.READ_WRITE, (long) i * SEGMENT_SIZE, SEGMENT_SIZE);
+            }
+            segments = mapped;
+        }
+    }
+
+    public long length() {
+        return length;
+    }
+
+    public void setLength (long newLength) throws IOException {
+        //El fitxer no es trunca fins que es tanca: un lector concurrent podria
+        //estar accedint encara a un segment que deixaria de tenir fitxer al darrere.
+        long oldLength = length;
+        ensureMapped (newLength);
+        if (newLength > oldLength) {
+            //Els bytes nous han de ser zeros, encara que hi hagués dades abans de truncar.
+            byte[] zeros = new byte[(int) Math.min (newLength - oldLength, SEGMENT_SIZE)];
+            for (long position = oldLength; position < newLength; position += zeros.length) {
+                write (position, zeros, 0, (int) Math.min (zeros.length, newLength - position));
+            }
+        }
+        length = newLength;
+    }
+
+    public void read (long position, byte[] buffer, int offset, int count) throws IOException {
+        if (position + count > length) {
+            throw new EOFException();
+        }
+        MappedByteBuffer[] mapped = segments;
+        while (count > 0) {
+            int index = (int) (position / SEGMENT_SIZE);
+            if (index >= mapped.length) {
+                //Les dades s'han truncat mentre es llegia.
+                throw new EOFException();
+            }
+            ByteBuffer segment = mapped[index].duplicate();
+            int start = (int) (position % SEGMENT_SIZE);
+            int n = Math.min (count, SEGMENT_SIZE - start);
+            segment.position (start);
+            segment.get (buffer, offset, n);
+            position += n;
+            offset += n;
+            count -= n;
+        }
+    }
+
+    public void write (long position, byte[] buffer, int offset, int count) throws IOException {
+        long end = position + count;
+        ensureMapped (end);
+        MappedByteBuffer[] mapped = segments;
+        while (count > 0) {
+            ByteBuffer segment = mapped[(int) (position / SEGMENT_SIZE)].duplicate();
+            int start = (int) (position % SEGMENT_SIZE);
+            int n = Math.min (count, SEGMENT_SIZE - start);
+            segment.position (start);
+            segment.put (buffer, offset, n);
+            position += n;
+            offset += n;
+            count -= n;
+        }
+        length = Math.max (length, end);
+    }
+
+    public void force() throws IOException {
+        for (MappedByteBuffer segment : segments) {
+            segment.force();
+        }
+    }
+
+    public void close() throws IOException {
+        force();
+        segments = new MappedByteBuffer[0];
+        channel.truncate (length);
+        file.close();
+    }
+
+}
@@ -0,0 +1,225 @@
+/*
+ * Autors:
+ * -Xiaolong Ji
+ * -Aticor
+ */
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Emmagatzematge completament en memòria, fora del heap de Java.
+ * <br>
+ * En obrir-lo, el fitxer es carrega sencer en segments de SEGMENT_SIZE
+ * bytes reservats amb ByteBuffer.allocateDirect, de manera que les dades
+ * no les recorre el recol·lector de memòria (encara que ocupin GB) i cap
+ * lectura no toca el disc. La memòria disponible la limita l'opció
+ * -XX:MaxDirectMemorySize de la JVM.
+ * <br>
+ * Les dades només arriben al disc amb force (a cada checkpoint de
+ * LoggedRecordStore) i close: s'hi escriuen, al seu lloc, només els blocs
+ * de DIRTY_BLOCK bytes que han canviat des de l'última vegada, i es força
+ * el fitxer a disc.
+ * <br>
+ * No es desa una còpia sencera a un fitxer temporal que després es
+ * reanomena: amb GB de dades, cada checkpoint reescriuria tot el fitxer
+ * per uns quants registres. Escriure al seu lloc és segur perquè aquest
+ * emmagatzematge només es fa servir sota LoggedRecordStore (StorageMode),
+ * que en un checkpoint:
+ * <ol>
+ * <li>força a disc el registre d'escriptura anticipada, que conté la
+ * imatge de cada pàgina modificada i la mida de les dades;</li>
+ * <li>escriu les pàgines aquí i crida force;</li>
+ * <li>només quan force ha acabat, buida el registre.</li>
+ * </ol>
+ * Si el procés cau a mitja escriptura (fins i tot amb un bloc escrit a
+ * mitges), en obrir el fitxer el registre es torna a aplicar: reescriu les
+ * mateixes pàgines i la mateixa mida, i aplicar-lo dues vegades dona el
+ * mateix resultat. Els bytes d'un bloc que no havien canviat s'escriuen
+ * amb el mateix valor que ja tenien, de manera que un bloc a mitges no
+ * pot deixar-los malmesos.
+ * <br>
+ * Com MappedRecordStore, les lectures es poden fer des de diversos fils
+ * mentre un altre escriu.
+ */
+public class MemoryRecordStore implements RecordStore {
+
+    private static final int SEGMENT_SIZE = 1 << 23; // 8 MB
+    private static final int DIRTY_BLOCK = 1 << 16; // 64 KB
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private volatile ByteBuffer[] segments = new ByteBuffer[0];
+    private volatile long length;
+    private final BitSet dirtyBlocks = new BitSet();
+    private boolean resized;
+
+    /**
+     * Carrega (o crea) el fitxer de dades a memòria.
+     * @param fileName Nom del fitxer.
+     * @throws IOException
+     */
+    public MemoryRecordStore (String fileName) throws IOException {
+        file = new RandomAccessFile (fileName, "rw");
+        channel = file.getChannel();
+        try {
+            long size = channel.size();
+            ensureAllocated (size);
+            for (long position = 0; position < size; ) {
+                ByteBuffer segment = segments[(int) (position / SEGMENT_SIZE)].duplicate();
+                segment.position ((int) (position % SEGMENT_SIZE));
+                segment.limit ((int) Math.min (SEGMENT_SIZE, size - position + segment.position()));
+                while (segment.hasRemaining()) {
+                    int n = channel.read (segment, position);
+                    if (n < 0) {
+                        throw new EOFException();
+                    }
+                    position += n;
+                }
+            }
+            length = size;
+        } catch (IOException | RuntimeException | Error ex) {
+            file.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * Reserva segments nous fins a cobrir la mida indicada.
+     * @param size Nombre de bytes que han de quedar reservats.
+     */
+    private void ensureAllocated (long size) {
+        ByteBuffer[] allocated = segments;
+        int count = allocated.length;
+        while ((long) count * SEGMENT_SIZE < size) {
+            count++;
+        }
+        if (count > allocated.length) {
+            allocated = Arrays.copyOf (allocated, count);
+            for (int i = segments.length; i < count; i++) {
+                allocated[i] = ByteBuffer.allocateDirect (SEGMENT_SIZE);
+            }
+            segments = allocated;
+        }
+    }
+
+    public long length() {
+        return length;
+    }
+
+    public void setLength (long newLength) throws IOException {
+        long oldLength = length;
+        ensureAllocated (newLength);
+        if (newLength > oldLength) {
+            //Els bytes nous han de ser zeros, encara que hi hagués dades abans de truncar.
+            byte[] zeros = new byte[(int) Math.min (newLength - oldLength, SEGMENT_SIZE)];
+            for (long position = oldLength; position < newLength; position += zeros.length) {
+                write (position, zeros, 0, (int) Math.min (zeros.length, newLength - position));
+            }
+        }
+        length = newLength;
+        synchronized (dirtyBlocks) {
+            resized = true;
+        }
+    }
+
+    public void read (long position, byte[] buffer, int offset, int count) throws IOException {
+        if (position + count > length) {
+            throw new EOFException();
+        }
+        ByteBuffer[] allocated = segments;
+        while (count > 0) {
+            ByteBuffer segment = allocated[(int) (position / SEGMENT_SIZE)].duplicate();
+            int start = (int) (position % SEGMENT_SIZE);
+            int n = Math.min (count, SEGMENT_SIZE - start);
+            segment.position (start);
+            segment.get (buffer, offset, n);
+            position += n;
+            offset += n;
+            count -= n;
+        }
+    }
+
+    public void write (long position, byte[] buffer, int offset, int count) throws IOException {
+        long end = position + count;
+        ensureAllocated (end);
+        if (count > 0) {
+            synchronized (dirtyBlocks) {
+                dirtyBlocks.set ((int) (position / DIRTY_BLOCK), (int) ((end - 1) / DIRTY_BLOCK) + 1);
+            }
+        }
+        ByteBuffer[] allocated = segments;
+        while (count > 0) {
+            ByteBuffer segment = allocated[(int) (position / SEGMENT_SIZE)].duplicate();
+            int start = (int) (position % SEGMENT_SIZE);
+            int n = Math.min (count, SEGMENT_SIZE - start);
+            segment.position (start);
+            segment.put (buffer, offset, n);
+            position += n;
+            offset += n;
+            count -= n;
+        }
+        length = Math.max (length, end);
+    }
+
+    /**
+     * Escriu al fitxer de dades els blocs que han canviat i el força a disc.
+     * @throws IOException
+     */
+    public void force() throws IOException {
+        BitSet blocks;
+        boolean truncate;
+        synchronized (dirtyBlocks) {
+            if (dirtyBlocks.isEmpty() && !resized) {
+                return;
+            }
+            blocks = (BitSet) dirtyBlocks.clone();
+            dirtyBlocks.clear();
+            truncate = resized;
+            resized = false;
+        }
+        try {
+            long size = length;
+            ByteBuffer[] allocated = segments;
+            for (int block = blocks.nextSetBit (0); block >= 0; block = blocks.nextSetBit (block + 1)) {
+                long position = (long) block * DIRTY_BLOCK;
+                if (position >= size) {
+                    break;
+                }
+                //Els blocs no travessen mai el límit d'un segment.
+                ByteBuffer segment = allocated[(int) (position / SEGMENT_SIZE)].duplicate();
+                segment.position ((int) (position % SEGMENT_SIZE));
+                segment.limit ((int) Math.min (segment.position() + DIRTY_BLOCK, size - position + segment.position()));
+                while (segment.hasRemaining()) {
+                    position += channel.write (segment, position);
+                }
+            }
+            if (truncate && channel.size() > size) {
+                channel.truncate (size);
+            }
+            channel.force (false);
+        } catch (IOException | RuntimeException ex) {
+            //Es tornaran a escriure al pròxim force.
+            synchronized (dirtyBlocks) {
+                dirtyBlocks.or (blocks);
+                resized |= truncate;
+            }
+            throw ex;
+        }
+    }
+
+    public void close() throws IOException {
+        try {
+            force();
+        } finally {
+            segments = new ByteBuffer[0];
+            file.close();
+        }
+    }
+
+}
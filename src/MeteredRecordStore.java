@@ -0,0 +1,59 @@
+/*
+ * Autors:
+ * -Xiaolong Ji
+ * -Aticor
+ */
+
+import java.io.IOException;
+
+/**
+ * Emmagatzematge que compta els accessos a un altre (lectures, escriptures,
+ * bytes i forçats a disc) a les mètriques d'una base de dades.
+ * <br>
+ * ReadBooksDB el posa sota el registre d'escriptura anticipada, de manera
+ * que compta els accessos reals al fitxer de dades i no les lectures que
+ * es resolen amb les pàgines modificades en memòria.
+ */
+public class MeteredRecordStore implements RecordStore {
+
+    private final RecordStore store;
+    private final DBMetrics metrics;
+
+    /**
+     * Crea l'emmagatzematge.
+     * @param store Emmagatzematge real.
+     * @param metrics Mètriques on es compten els accessos.
+     */
+    public MeteredRecordStore (RecordStore store, DBMetrics metrics) {
+        this.store = store;
+        this.metrics = metrics;
+    }
+
+    public long length() throws IOException {
+        return store.length();
+    }
+
+    public void setLength (long length) throws IOException {
+        store.setLength (length);
+    }
+
+    public void read (long position, byte[] buffer, int offset, int length) throws IOException {
+        metrics.storeRead (length);
+        store.read (position, buffer, offset, length);
+    }
+
+    public void write (long position, byte[] buffer, int offset, int length) throws IOException {
+        metrics.storeWrite (length);
+        store.write (position, buffer, offset, length);
+    }
+
+    public void force() throws IOException {
+        metrics.force();
+        store.force();
+    }
+
+    public void close() throws IOException {
+        store.close();
+    }
+
+}
@@ -0,0 +1,87 @@
+/*
+ * Autors:
+ * -Xiaolong Ji
+ * -Aticor
+ */
+
+/**
+ * Mètriques d'una operació de ReadBooksDB: nombre de crides i histograma
+ * de latències (en nanosegons).
+ * <br>
+ * Cada operació es mesura amb DBMetrics.start i stop; si les mètriques
+ * estan desactivades, start no llegeix el rellotge i stop no fa res.
+ */
+public class OperationMetrics implements OperationMetricsMBean {
+
+    private final String name;
+    private final Histogram latency = new Histogram();
+
+    /**
+     * Crea les mètriques d'una operació.
+     * @param name Nom de l'operació (per al bolcat de text i JMX).
+     */
+    public OperationMetrics (String name) {
+        this.name = name;
+    }
+
+    /**
+     * Obtenir el nom de l'operació.
+     * @return Nom.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Acaba de mesurar una crida.
+     * @param start Valor retornat per DBMetrics.start (NOT_TIMED si no es mesura).
+     */
+    public void stop (long start) {
+        if (start != DBMetrics.NOT_TIMED) {
+            latency.record (System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Obtenir l'histograma de latències.
+     * @return Histograma, en nanosegons.
+     */
+    public Histogram getLatency() {
+        return latency;
+    }
+
+    public long getCount() {
+        return latency.getCount();
+    }
+
+    public double getMeanMicros() {
+        return latency.getMean() / 1000;
+    }
+
+    public double getP50Micros() {
+        return latency.getPercentile (50) / 1000.0;
+    }
+
+    public double getP99Micros() {
+        return latency.getPercentile (99) / 1000.0;
+    }
+
+    public double getP999Micros() {
+        return latency.getPercentile (99.9) / 1000.0;
+    }
+
+    public double getMaxMicros() {
+        return latency.getMax() / 1000.0;
+    }
+
+    public void reset() {
+        latency.reset();
+    }
+
+    public String toString() {
+        return String.format ("%-8s %10d ops  mean %9.1f  p50 %9.1f  p99 %9.1f  p99.9 %9.1f  max %9.1f us",
+                              name, getCount(), getMeanMicros(), getP50Micros(), getP99Micros(),
+                              getP999Micros(), getMaxMicros());
+    }
+
+}
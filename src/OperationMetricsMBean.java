@@ -0,0 +1,27 @@
+/*
+ * Autors:
+ * -Xiaolong Ji
+ * -Aticor
+ */
+
+/**
+ * Interfície JMX de les mètriques d'una operació de ReadBooksDB (vegeu
+ * OperationMetrics). Les latències són en microsegons.
+ */
+public interface OperationMetricsMBean {
+
+    long getCount();
+
+    double getMeanMicros();
+
+    double getP50Micros();
+
+    double getP99Micros();
+
+    double getP999Micros();
+
+    double getMaxMicros();
+
+    void reset();
+
+}
@@ -22,6 +22,8 @@
  * tingui mida suficient i qui ha d'anar modificant el desplaçament.
  */
 
+import java.util.Arrays;
+
 public class PackUtils {
 
 	// Tipus de nombres enters:
@@ -265,14 +267,52 @@ public class PackUtils {
 	 */
 	public static void packString (String s, int maxLength,
 	                               byte[] buffer, int offset) {
+		int n = Math.min (s.length(), maxLength);
+		for (int i = 0; i < n; i++) {
+			char c = s.charAt (i);
+			buffer[offset + 2 * i    ] = (byte) (c >> 8);
+			buffer[offset + 2 * i + 1] = (byte)  c;
+		}
+		// Omple amb zeros
+		Arrays.fill (buffer, offset + 2 * n, offset + 2 * maxLength, (byte) 0);
+	}
+
+	/**
+	 * Empaqueta una seqüència de chars com a String.
+	 * @param chars Array amb els caràcters
+	 * @param from Posició del primer caràcter dintre de l'array
+	 * @param count Nombre de caràcters a empaquetar
+	 * @param maxLength Longitud màxima del String
+	 * @param buffer Registre on es guardarà el String
+	 * @param offset Desplaçament dintre del registre
+	 */
+	public static void packChars (char[] chars, int from, int count, int maxLength,
+	                              byte[] buffer, int offset) {
+		int n = Math.min (count, maxLength);
+		for (int i = 0; i < n; i++) {
+			char c = chars[from + i];
+			buffer[offset + 2 * i    ] = (byte) (c >> 8);
+			buffer[offset + 2 * i + 1] = (byte)  c;
+		}
+		// Omple amb zeros
+		Arrays.fill (buffer, offset + 2 * n, offset + 2 * maxLength, (byte) 0);
+	}
+
+	/**
+	 * Calcula la llargada d'un String empaquetat (posició del primer '\0').
+	 * @param maxLength Longitud màxima del String
+	 * @param buffer Registre on es troba el String
+	 * @param offset Desplaçament dintre del registre
+	 * @return Nombre de caràcters del String
+	 */
+	public static int unpackStringLength (int maxLength,
+	                                      byte[] buffer, int offset) {
 		for (int i = 0; i < maxLength; i++) {
-			if (i < s.length()) {
-				packChar (s.charAt (i), buffer, offset + 2 * i);
-			} else {
-				// Omple amb zeros
-				packChar ('\0', buffer, offset + 2 * i);
+			if (buffer[offset + 2 * i] == 0 && buffer[offset + 2 * i + 1] == 0) {
+				return i;
 			}
 		}
+		return maxLength;
 	}
 
 	/**
@@ -284,16 +324,36 @@ public class PackUtils {
 	 */
 	public static String unpackString (int maxLength,
 	                                   byte[] buffer, int offset) {
-		String s = "";
-		for (int i = 0; i < maxLength; i++) {
-			char c = unpackChar (buffer, offset + 2 * i);
-			if (c != '\0') {
-				s += c;
-			} else {
+		int n = unpackStringLength (maxLength, buffer, offset);
+		if (n == 0) {
+			return "";
+		}
+		char[] chars = new char[n];
+		unpackChars (n, buffer, offset, chars, 0);
+		return new String (chars);
+	}
+
+	/**
+	 * Desempaqueta un String dins d'un array de chars.
+	 * @param maxLength Longitud màxima del String
+	 * @param buffer Registre del qual es recuperarà el String
+	 * @param offset Desplaçament dintre del registre
+	 * @param chars Array on es guardaran els caràcters (almenys maxLength)
+	 * @param from Posició dintre de l'array del primer caràcter
+	 * @return Nombre de caràcters desempaquetats
+	 */
+	public static int unpackChars (int maxLength, byte[] buffer, int offset,
+	                               char[] chars, int from) {
+		int i = 0;
+		for (; i < maxLength; i++) {
+			char c = (char) ((buffer[offset + 2 * i    ] << 8) |
+			                 (buffer[offset + 2 * i + 1] & 0xFF));
+			if (c == '\0') {
 				break;
 			}
+			chars[from + i] = c;
 		}
-		return s;
+		return i;
 	}
 
 }
@@ -4,38 +4,422 @@
  * -Aticor
  */
 
-import java.io.RandomAccessFile;
+import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import java.util.concurrent.locks.StampedLock;
 
+/**
+ * Base de dades de llibres llegits, guardada en un fitxer de registres.
+ * <br>
+ * Es pot compartir entre fils. Les lectures de registres (readBookInfo,
+ * readRecord) no bloquegen: fan una lectura posicional amb un segell
+ * optimista i només si un escriptor hi ha intervingut es repeteixen amb el
+ * bloqueig de lectura. Les cerques comparteixen el bloqueig de lectura i les
+ * modificacions agafen el bloqueig d'escriptura. El nombre de llibres es
+ * publica quan les dades ja estan escrites.
+ * <br>
+ * Cada modificació és atòmica i duradora: els canvis passen per un registre
+ * d'escriptura anticipada (<em>fileName</em>.wal, vegeu LoggedRecordStore)
+ * i el mètode no retorna fins que la transacció és a disc. Les esperes de
+ * diversos fils escriptors comparteixen el mateix forçat a disc.
+ * <br>
+ * Els canvis dels registres es poden seguir amb addListener (per exemple,
+ * per mantenir estadístiques materialitzades, vegeu BookStatistics).
+ * <br>
+ * Els llibres es poden esborrar movent-hi el darrer o amb una làpida
+ * (vegeu DeleteMode). Amb làpides els números dels llibres no canvien i
+ * els registres lliures es reaprofiten en afegir-ne; quan n'hi ha massa, el
+ * fitxer es compacta en segon pla (compact).
+ * <br>
+ * Les operacions principals es poden mesurar (latències, accessos al
+ * fitxer i longitud de les cerques) activant les mètriques (getMetrics).
+ */
 public class ReadBooksDB {
 
-    private RandomAccessFile booksDB;
-    private int numBooks;
+    /**
+     * Nombre de registres que s'empaqueten junts en una escriptura en bloc.
+     */
+    public static final int BATCH_SIZE = 512;
+
+    /**
+     * Format dels fitxers nous (o buidats amb reset) si no se n'indica cap altre.
+     */
+    public static final RecordFormat DEFAULT_FORMAT = RecordFormat.V2;
+
+    /**
+     * Nombre mínim de làpides perquè el fitxer es compacti automàticament.
+     */
+    public static final int MIN_COMPACTION = 1024;
+
+    /** Fil on es compacten els fitxers en segon pla. */
+    private static final ExecutorService COMPACTOR = Executors.newSingleThreadExecutor (new ThreadFactory() {
+        public Thread newThread (Runnable r) {
+            Thread thread = new Thread (r, "ReadBooksDB-compactor");
+            thread.setDaemon (true);
+            return thread;
+        }
+    });
+
+    /**
+     * Registre de cada fil per llegir i escriure llibres sense crear cap array
+     * per operació (el contingut es copia o es desempaqueta abans de tornar).
+     */
+    private static final ThreadLocal<byte[]> RECORD = new ThreadLocal<byte[]>() {
+        protected byte[] initialValue() {
+            return new byte[RecordFormat.MAX_SIZE];
+        }
+    };
+
+    private final StampedLock lock = new StampedLock();
+    private final String fileName;
+    private final StorageMode mode;
+    private final LoggedRecordStore booksDB;
+    private volatile RecordFormat format;
+    private final RecordFormat newFormat;
+    private volatile int numRecords; // registres, inclosos els esborrats
+    private volatile int numDeleted;
+    private int freeHead = -1;
+    private volatile DeleteMode deleteMode = DeleteMode.MOVE_LAST;
+    private volatile double compactionThreshold = 0.25;
+    private final AtomicBoolean compacting = new AtomicBoolean();
+    private long modifications;
+    private boolean closed;
+    private final TitleIndex titleIndex;
+    private final TrigramIndex textIndex;
+    private final FieldIndex authorIndex;
+    private final FieldIndex seriesIndex;
+    private volatile BookCache cache;
+    private volatile ColumnStore columns;
+    private byte[] batch;
+    private final List<BookListener> listeners = new CopyOnWriteArrayList<BookListener>();
+    /** Vista per avisar els listeners (amb el bloqueig d'escriptura agafat). */
+    private final BookRecord event = new BookRecord();
+    private final DBMetrics metrics = new DBMetrics();
 
     /**
      * Conté els mètodes propis de la base de dades.
+     * <br>
+     * Al costat del fitxer de dades es mantenen un índex de títols
+     * (<em>fileName</em>.idx), un índex de trigrames dels títols
+     * (<em>fileName</em>.trigram.idx), índexs ordenats d'autors i sèries
+     * (<em>fileName</em>.author.idx, <em>fileName</em>.series.idx), que es
+     * reconstrueixen si falten o no estan al dia, i el registre d'escriptura anticipada (<em>fileName</em>.wal), del qual
+     * es recuperen les transaccions d'una execució interrompuda.
      * @param fileName Nombre del fitxer de base de dades (.dat).
      * @throws IOException
      */
     public ReadBooksDB (String fileName) throws IOException {
-        booksDB = new RandomAccessFile (fileName, "rw");
-        numBooks = (int)booksDB.length() / BookInfo.SIZE;
+        this (fileName, StorageMode.FILE);
+    }
+
+    /**
+     * Obre la base de dades amb el tipus d'emmagatzematge indicat.
+     * @param fileName Nombre del fitxer de base de dades (.dat).
+     * @param mode Tipus d'emmagatzematge (fitxer, projectat a memòria o en memòria).
+     * @throws IOException
+     */
+    public ReadBooksDB (String fileName, StorageMode mode) throws IOException {
+        this (fileName, mode, DEFAULT_FORMAT);
+    }
+
+    /**
+     * Obre la base de dades indicant el format dels registres.
+     * <br>
+     * Si el fitxer ja té dades se'n detecta el format (V1 sense capçalera,
+     * o el de la capçalera); si és buit, es crea amb el format indicat.
+     * @param fileName Nombre del fitxer de base de dades (.dat).
+     * @param mode Tipus d'emmagatzematge (fitxer, projectat a memòria o en memòria).
+     * @param newFormat Format per al fitxer si és nou o quan es buidi amb reset.
+     * @throws IOException
+     */
+    public ReadBooksDB (String fileName, StorageMode mode, RecordFormat newFormat) throws IOException {
+        this.fileName = fileName;
+        this.mode = mode;
+        this.newFormat = newFormat;
+        //Còpia d'una compactació interrompuda.
+        new File (fileName + ".compact").delete();
+        booksDB = new LoggedRecordStore (new MeteredRecordStore (mode.open (fileName), metrics), fileName + ".wal");
+        if (booksDB.length() == 0) {
+            writeHeader (newFormat);
+            booksDB.sync (booksDB.commit());
+        } else {
+            format = RecordFormat.detect (booksDB);
+        }
+        numRecords = (int)((booksDB.length() - format.headerSize()) / format.size());
+        loadFreeList();
+        titleIndex = new TitleIndex (fileName + ".idx", new File (fileName), this);
+        textIndex = new TrigramIndex (fileName + ".trigram.idx", RecordFormat.Field.TITLE, new File (fileName), this);
+        authorIndex = new FieldIndex (fileName + ".author.idx", RecordFormat.Field.AUTHOR, new File (fileName), this);
+        seriesIndex = new FieldIndex (fileName + ".series.idx", RecordFormat.Field.SERIES, new File (fileName), this);
+    }
+
+    /**
+     * Llegeix de la capçalera el primer registre lliure i, d'aquest, el
+     * nombre de registres lliures.
+     * @throws IOException
+     */
+    private void loadFreeList() throws IOException {
+        freeHead = -1;
+        numDeleted = 0;
+        if (format.supportsTombstones()) {
+            byte[] word = new byte[4];
+            booksDB.read (RecordFormat.FREE_LIST_OFFSET, word, 0, word.length);
+            int head = PackUtils.unpackInt (word, 0) - 1;
+            if (head >= 0) {
+                BookRecord tombstone = loadRecord (head, event);
+                freeHead = head;
+                numDeleted = format.unpackFreeCount (tombstone.buffer(), tombstone.offset());
+            }
+        }
     }
 
     /**
      * Obtenir nombres de llibres.
-     * @return Nombres de llibres.
+     * @return Nombres de llibres (sense comptar els esborrats amb làpida).
      */
     public int getNumBooks() {
-        return numBooks;
+        return numRecords - numDeleted;
+    }
+
+    /**
+     * Obtenir el nombre de registres del fitxer, inclosos els esborrats amb
+     * làpida: els números de registre vàlids són 0..getNumRecords()-1.
+     * @return Nombre de registres.
+     */
+    public int getNumRecords() {
+        return numRecords;
+    }
+
+    /**
+     * Obtenir el nombre de registres esborrats amb làpida que encara ocupen lloc.
+     * @return Nombre de làpides.
+     */
+    public int getNumDeleted() {
+        return numDeleted;
+    }
+
+    /**
+     * Obtenir com s'esborren els llibres.
+     * @return Manera d'esborrar.
+     */
+    public DeleteMode getDeleteMode() {
+        return deleteMode;
+    }
+
+    /**
+     * Tria com s'esborren els llibres. Mentre el fitxer tingui làpides, els
+     * llibres s'esborren amb làpida encara que s'hagi triat MOVE_LAST; en
+     * triar MOVE_LAST el fitxer es compacta.
+     * @param deleteMode Manera d'esborrar.
+     * @throws UnsupportedOperationException Si el format del fitxer no admet làpides.
+     * @throws IOException
+     */
+    public void setDeleteMode (DeleteMode deleteMode) throws IOException {
+        if (deleteMode == DeleteMode.TOMBSTONE && !format.supportsTombstones()) {
+            throw new UnsupportedOperationException ("Format V" + format.version() + " has no tombstones");
+        }
+        this.deleteMode = deleteMode;
+        if (deleteMode == DeleteMode.MOVE_LAST) {
+            compact();
+        }
+    }
+
+    /**
+     * Fixa a partir de quina proporció de làpides es compacta el fitxer en
+     * segon pla després d'un esborrat (com a mínim MIN_COMPACTION làpides).
+     * @param fraction Proporció de registres esborrats (0.25 per defecte); 0 ho desactiva.
+     */
+    public void setCompactionThreshold (double fraction) {
+        compactionThreshold = fraction;
+    }
+
+    /**
+     * Obtenir el format dels registres del fitxer.
+     * @return Format dels registres.
+     */
+    public RecordFormat getFormat() {
+        return format;
+    }
+
+    /**
+     * Activa (o desactiva) la memòria cau de llibres desempaquetats.
+     * @param capacity Nombre màxim de llibres a la memòria cau; 0 la desactiva.
+     */
+    public void setCacheCapacity (int capacity) {
+        long stamp = lock.writeLock();
+        try {
+            cache = capacity > 0 ? new BookCache (capacity) : null;
+        } finally {
+            lock.unlockWrite (stamp);
+        }
+    }
+
+    /**
+     * Obtenir la memòria cau, per consultar-ne els comptadors.
+     * @return Memòria cau, o null si no està activada.
+     */
+    public BookCache getCache() {
+        return cache;
+    }
+
+    /**
+     * Obtenir les mètriques de la base de dades (latències de les
+     * operacions, accessos al fitxer i longitud de les cerques).
+     * <br>
+     * Estan desactivades per defecte; s'activen amb setEnabled i es poden
+     * publicar per JMX amb register (close les retira).
+     * @return Mètriques.
+     */
+    public DBMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Activa o desactiva la còpia per columnes dels registres (vegeu
+     * ColumnStore), que fa que els recorreguts d'alguns camps (readRecords
+     * i stream amb camps) només llegeixin aquests camps.
+     * <br>
+     * En activar-la, les columnes d'una execució anterior es fan servir si
+     * encara corresponen al fitxer de dades; si no, es reconstrueixen. En
+     * desactivar-la, els fitxers de les columnes s'esborren.
+     * @param enabled Cert per mantenir les columnes.
+     * @throws IOException
+     */
+    public void setColumnsEnabled (boolean enabled) throws IOException {
+        long stamp = lock.writeLock();
+        try {
+            if (enabled && columns == null) {
+                columns = new ColumnStore (fileName, new File (fileName), this);
+            } else if (!enabled && columns != null) {
+                ColumnStore old = columns;
+                columns = null;
+                old.delete();
+            }
+        } finally {
+            lock.unlockWrite (stamp);
+        }
+    }
+
+    /**
+     * Indica si es mantenen les columnes (setColumnsEnabled).
+     * @return Cert si els recorreguts d'alguns camps llegeixen només les columnes.
+     */
+    public boolean isColumnsEnabled() {
+        return columns != null;
+    }
+
+    /**
+     * Registra un listener que rep tots els canvis dels registres.
+     * <br>
+     * Abans de tornar, el listener rep bookAdded de tots els llibres que
+     * ja hi ha, de manera que queda al dia sense perdre cap canvi.
+     * @param listener Listener.
+     * @throws IOException
+     */
+    public void addListener (BookListener listener) throws IOException {
+        long stamp = lock.writeLock();
+        try {
+            byte[] block = new byte[RecordSpliterator.BLOCK_RECORDS * format.size()];
+            for (int n = 0; n < numRecords; ) {
+                int count = loadRecords (n, block, Math.min (RecordSpliterator.BLOCK_RECORDS, numRecords - n));
+                for (int i = 0; i < count; i++) {
+                    if (!event.wrap (format, block, i * format.size()).isDeleted()) {
+                        listener.bookAdded (n + i, event);
+                    }
+                }
+                n += count;
+            }
+            listeners.add (listener);
+        } finally {
+            lock.unlockWrite (stamp);
+        }
+    }
+
+    /**
+     * Deixa d'avisar un listener.
+     * @param listener Listener.
+     */
+    public void removeListener (BookListener listener) {
+        listeners.remove (listener);
+    }
+
+    private void fireAdded (int n, byte[] records, int offset) {
+        for (BookListener listener : listeners) {
+            listener.bookAdded (n, event.wrap (format, records, offset));
+        }
+    }
+
+    /**
+     * Avisa que un registre deixa de ser-hi (abans de sobreescriure'l o truncar-lo).
+     */
+    private void fireRemoved (int n) throws IOException {
+        if (!listeners.isEmpty() && !loadRecord (n, event).isDeleted()) {
+            for (BookListener listener : listeners) {
+                listener.bookRemoved (n, event);
+            }
+        }
+    }
+
+    /**
+     * Posició d'un registre dins del fitxer.
+     * @param n Número de registre.
+     * @return Posició en bytes.
+     */
+    private long position (int n) {
+        return format.headerSize() + (long) n * format.size();
+    }
+
+    /**
+     * Escriu la capçalera d'un fitxer buit i en fixa el format.
+     * @param newFormat Format del fitxer.
+     * @throws IOException
+     */
+    private void writeHeader (RecordFormat newFormat) throws IOException {
+        byte[] header = newFormat.header();
+        booksDB.write (0, header, 0, header.length);
+        format = newFormat;
     }
 
     /**
-     * Tancar la lectura del fitxer (RAF).
+     * Tancar la lectura del fitxer.
      * @throws IOException
      */
     public void close() throws IOException {
-        booksDB.close();
+        long stamp = lock.writeLock();
+        try {
+            closed = true;
+            metrics.unregister();
+            booksDB.close();
+            titleIndex.close();
+            textIndex.close();
+            if (columns != null) {
+                columns.close();
+            }
+            authorIndex.close();
+            seriesIndex.close();
+        } finally {
+            lock.unlockWrite (stamp);
+        }
     }
 
     /**
@@ -43,42 +427,529 @@ public class ReadBooksDB {
      * @throws IOException
      */
     public void reset() throws IOException {
-        booksDB.setLength (0);
-        numBooks = 0;
+        long lsn;
+        long stamp = lock.writeLock();
+        try {
+            numRecords = 0;
+            numDeleted = 0;
+            freeHead = -1;
+            booksDB.setLength (0);
+            writeHeader (newFormat);
+            lsn = commit();
+            titleIndex.clear();
+            textIndex.clear();
+            if (columns != null) {
+                columns.clear();
+            }
+            authorIndex.clear();
+            seriesIndex.clear();
+            if (cache != null) {
+                cache.clear();
+            }
+            for (BookListener listener : listeners) {
+                listener.booksCleared();
+            }
+        } finally {
+            lock.unlockWrite (stamp);
+        }
+        booksDB.sync (lsn);
     }
 
     /**
      * Escriu la informació d'un llibre en un fitxer binari.
      * @param n Posició del registre en el fitxer binari.
      * @param book Llibre a llegir
+     * @throws IllegalArgumentException Si el llibre no es pot representar en el format del fitxer,
+     * o si el registre està esborrat.
      */
     public void writeBookInfo (int n, BookInfo book) throws IOException {
-        booksDB.seek (n * BookInfo.SIZE);
-        byte[] record = book.toBytes();
-        booksDB.write (record);
+        long start = metrics.start();
+        try {
+            long lsn;
+            long stamp = lock.writeLock();
+            try {
+                if (numDeleted > 0 && n < numRecords && loadRecord (n, event).isDeleted()) {
+                    throw new IllegalArgumentException ("Record " + n + " is deleted");
+                }
+                write (n, book);
+                lsn = commit();
+            } finally {
+                lock.unlockWrite (stamp);
+            }
+            booksDB.sync (lsn);
+        } finally {
+            metrics.stop (DBMetrics.Operation.WRITE, start);
+        }
+    }
+
+    /**
+     * Escriu un llibre (amb el bloqueig d'escriptura ja agafat).
+     */
+    private void write (int n, BookInfo book) throws IOException {
+        byte[] record = RECORD.get();
+        format.encode (book, record, 0);
+        put (n, record, book);
+    }
+
+    /**
+     * Escriu un registre empaquetat i n'actualitza els índexs (amb el
+     * bloqueig d'escriptura ja agafat).
+     * @param book Llibre desempaquetat per a la memòria cau, o null si no es té.
+     */
+    private void put (int n, byte[] record, BookInfo book) throws IOException {
+        if (n < numRecords) {
+            //El llibre que hi havia en aquesta posició deixa de ser-hi.
+            titleIndex.remove (n);
+            textIndex.remove (n);
+            authorIndex.remove (n);
+            seriesIndex.remove (n);
+            fireRemoved (n);
+        }
+        booksDB.write (position (n), record, 0, format.size());
+        if (columns != null) {
+            columns.write (n, record, 1);
+        }
+        //Els índexs es calculen sobre el registre empaquetat (amb els textos ja retallats).
+        titleIndex.addAll (record, 1, n);
+        textIndex.addAll (record, 1, n);
+        authorIndex.addAll (record, 1, n);
+        seriesIndex.addAll (record, 1, n);
+        fireAdded (n, record, 0);
+        if (cache != null) {
+            if (book != null) {
+                cache.put (n, book);
+            } else {
+                cache.remove (n);
+            }
+        }
+    }
+
+    /**
+     * Escriu un registre empaquetat al primer registre lliure i el treu de
+     * la llista de registres lliures. La llista només canvia quan el
+     * registre ja s'ha escrit: si falla, la làpida continua a la llista.
+     * @param book Llibre desempaquetat per a la memòria cau, o null si no es té.
+     */
+    private void putFree (byte[] record, BookInfo book) throws IOException {
+        int n = freeHead;
+        BookRecord tombstone = loadRecord (n, event);
+        int next = format.unpackNextFree (tombstone.buffer(), tombstone.offset());
+        put (n, record, book);
+        setFreeHead (next);
+        numDeleted--;
+    }
+
+    private void setFreeHead (int head) throws IOException {
+        byte[] word = new byte[4];
+        PackUtils.packInt (head + 1, word, 0);
+        booksDB.write (RecordFormat.FREE_LIST_OFFSET, word, 0, word.length);
+        freeHead = head;
+    }
+
+    /**
+     * Esborra un registre amb una làpida i l'afegeix a la llista de registres lliures.
+     */
+    private void bury (int n) throws IOException {
+        titleIndex.remove (n);
+        textIndex.remove (n);
+        authorIndex.remove (n);
+        seriesIndex.remove (n);
+        fireRemoved (n);
+        if (cache != null) {
+            cache.remove (n);
+        }
+        byte[] record = RECORD.get();
+        format.packTombstone (freeHead, numDeleted + 1, record, 0);
+        booksDB.write (position (n), record, 0, format.size());
+        if (columns != null) {
+            columns.write (n, record, 1);
+        }
+        setFreeHead (n);
+        numDeleted++;
     }
 
     /**
      * Llegeix la informació d'un llibre des del fitxer binari.
      * @param n Posició del registre en el fitxer binari.
-     * @return BookInfo
+     * @return BookInfo, o null si el registre està esborrat.
      * @throws IOException
      */
     public BookInfo readBookInfo (int n) throws IOException {
-        booksDB.seek (n * BookInfo.SIZE);
-        byte[] record = new byte[BookInfo.SIZE];
-        booksDB.read (record);
-        return BookInfo.fromBytes (record);
+        long start = metrics.start();
+        try {
+            BookCache cache = this.cache;
+            if (cache != null) {
+                BookInfo book = cache.get (n);
+                if (book != null) {
+                    return book;
+                }
+            } else {
+                //Lectura optimista, sense bloquejar.
+                long stamp = lock.tryOptimisticRead();
+                if (stamp != 0) {
+                    try {
+                        BookInfo book = read (n);
+                        if (lock.validate (stamp)) {
+                            return book;
+                        }
+                    } catch (IOException | RuntimeException ex) {
+                        //Si un escriptor hi ha intervingut, es torna a llegir amb bloqueig.
+                        if (lock.validate (stamp)) {
+                            throw ex;
+                        }
+                    }
+                }
+            }
+            long stamp = lock.readLock();
+            try {
+                BookInfo book = read (n);
+                //Amb el bloqueig de lectura cap escriptor pot deixar la memòria cau antiga.
+                if (this.cache != null && book != null) {
+                    this.cache.put (n, book);
+                }
+                return book;
+            } finally {
+                lock.unlockRead (stamp);
+            }
+        } finally {
+            metrics.stop (DBMetrics.Operation.READ, start);
+        }
+    }
+
+    private BookInfo read (int n) throws IOException {
+        RecordFormat format = this.format;
+        byte[] record = RECORD.get();
+        booksDB.read (format.headerSize() + (long) n * format.size(), record, 0, format.size());
+        if (format.unpackDeleted (record, 0)) {
+            return null;
+        }
+        metrics.decoded();
+        return format.decode (record, 0);
+    }
+
+    /**
+     * Llegeix un registre sense desempaquetar-lo, sobre el buffer propi de la vista.
+     * @param n Posició del registre en el fitxer binari.
+     * @param record Vista on es llegeix el registre.
+     * @return La mateixa vista, situada sobre el registre llegit.
+     * @throws IOException
+     */
+    public BookRecord readRecord (int n, BookRecord record) throws IOException {
+        long stamp = lock.tryOptimisticRead();
+        if (stamp != 0) {
+            try {
+                loadRecord (n, record);
+                if (lock.validate (stamp)) {
+                    return record;
+                }
+            } catch (IOException | RuntimeException ex) {
+                if (lock.validate (stamp)) {
+                    throw ex;
+                }
+            }
+        }
+        stamp = lock.readLock();
+        try {
+            return loadRecord (n, record);
+        } finally {
+            lock.unlockRead (stamp);
+        }
+    }
+
+    /**
+     * Llegeix un registre sense cap bloqueig; l'ha de fer servir qui ja
+     * té el bloqueig de lectura o d'escriptura (com l'índex de títols).
+     * @param n Posició del registre en el fitxer binari.
+     * @param record Vista on es llegeix el registre.
+     * @return La mateixa vista, situada sobre el registre llegit.
+     * @throws IOException
+     */
+    BookRecord loadRecord (int n, BookRecord record) throws IOException {
+        RecordFormat format = this.format;
+        byte[] buffer = record.ownBuffer (format.size());
+        booksDB.read (format.headerSize() + (long) n * format.size(), buffer, 0, format.size());
+        return record.wrap (format, buffer, 0);
+    }
+
+    /**
+     * Llegeix registres consecutius sense desempaquetar-los, amb una sola lectura.
+     * @param first Primer registre.
+     * @param buffer Array on es guarden els registres, en el format del fitxer (getFormat).
+     * @param count Nombre màxim de registres a llegir.
+     * @return Nombre de registres llegits (menys de count si s'arriba al final).
+     * @throws IOException
+     */
+    public int readRecords (int first, byte[] buffer, int count) throws IOException {
+        long stamp = lock.tryOptimisticRead();
+        if (stamp != 0) {
+            try {
+                int n = loadRecords (first, buffer, count);
+                if (lock.validate (stamp)) {
+                    return n;
+                }
+            } catch (IOException | RuntimeException ex) {
+                if (lock.validate (stamp)) {
+                    throw ex;
+                }
+            }
+        }
+        stamp = lock.readLock();
+        try {
+            return loadRecords (first, buffer, count);
+        } finally {
+            lock.unlockRead (stamp);
+        }
+    }
+
+    /**
+     * Llegeix alguns camps de registres consecutius. Amb les columnes
+     * activades (setColumnsEnabled) només es llegeixen aquests camps i els
+     * indicadors; si no, es llegeixen els registres sencers.
+     * @param fields Camps que es faran servir; la resta de bytes dels registres poden quedar indefinits.
+     * @param first Primer registre.
+     * @param buffer Array on es guarden els registres, en el format del fitxer (getFormat).
+     * @param count Nombre màxim de registres a llegir.
+     * @return Nombre de registres llegits (menys de count si s'arriba al final).
+     * @throws IOException
+     */
+    public int readRecords (Set<RecordFormat.Field> fields, int first, byte[] buffer, int count) throws IOException {
+        long stamp = lock.tryOptimisticRead();
+        if (stamp != 0) {
+            try {
+                int n = loadRecords (fields, first, buffer, count);
+                if (lock.validate (stamp)) {
+                    return n;
+                }
+            } catch (IOException | RuntimeException ex) {
+                if (lock.validate (stamp)) {
+                    throw ex;
+                }
+            }
+        }
+        stamp = lock.readLock();
+        try {
+            return loadRecords (fields, first, buffer, count);
+        } finally {
+            lock.unlockRead (stamp);
+        }
+    }
+
+    private int loadRecords (Set<RecordFormat.Field> fields, int first, byte[] buffer, int count) throws IOException {
+        ColumnStore columns = this.columns;
+        if (columns == null) {
+            return loadRecords (first, buffer, count);
+        }
+        return columns.read (fields, first, buffer, Math.max (0, Math.min (count, numRecords - first)));
+    }
+
+    /**
+     * Llegeix registres consecutius sense cap bloqueig; l'ha de fer servir
+     * qui ja té el bloqueig de lectura o d'escriptura (com ColumnStore).
+     * @param first Primer registre.
+     * @param buffer Array on es guarden els registres.
+     * @param count Nombre màxim de registres a llegir.
+     * @return Nombre de registres llegits.
+     * @throws IOException
+     */
+    int loadRecords (int first, byte[] buffer, int count) throws IOException {
+        RecordFormat format = this.format;
+        int n = Math.max (0, Math.min (count, numRecords - first));
+        if (n > 0) {
+            booksDB.read (format.headerSize() + (long) first * format.size(), buffer, 0, n * format.size());
+        }
+        return n;
+    }
+
+    /**
+     * Recorregut de tots els llibres, llegits en blocs (vegeu RecordSpliterator).
+     * @return Spliterator dels llibres.
+     */
+    public Spliterator<BookInfo> spliterator() {
+        return new RecordSpliterator<BookInfo> (this, TO_BOOK_INFO, 0, numRecords);
+    }
+
+    /**
+     * Stream de tots els llibres, llegits en blocs.
+     * @param parallel Si és cert, el Stream reparteix els registres entre diversos fils.
+     * @return Stream dels llibres.
+     */
+    public Stream<BookInfo> stream (boolean parallel) {
+        return StreamSupport.stream (spliterator(), parallel);
+    }
+
+    /**
+     * Stream d'un valor de cada registre, sense desempaquetar el llibre
+     * sencer; per exemple, stream (BookRecord::getTitle, false).
+     * @param mapper Funció que obté el valor d'un registre. La vista que rep
+     * només és vàlida durant la crida.
+     * @param parallel Si és cert, el Stream reparteix els registres entre diversos fils.
+     * @return Stream dels valors.
+     */
+    public <T> Stream<T> stream (Function<BookRecord, ? extends T> mapper, boolean parallel) {
+        return StreamSupport.stream (new RecordSpliterator<T> (this, mapper, 0, numRecords), parallel);
+    }
+
+    /**
+     * Stream d'un valor de cada registre que només fa servir alguns camps;
+     * per exemple, stream (EnumSet.of (Field.TITLE), BookRecord::getTitle, false).
+     * Amb les columnes activades només es llegeixen aquests camps.
+     * @param fields Camps que fa servir la funció.
+     * @param mapper Funció que obté el valor d'un registre. La vista que rep
+     * només és vàlida durant la crida, i els altres camps són indefinits.
+     * @param parallel Si és cert, el Stream reparteix els registres entre diversos fils.
+     * @return Stream dels valors.
+     */
+    public <T> Stream<T> stream (Set<RecordFormat.Field> fields, Function<BookRecord, ? extends T> mapper, boolean parallel) {
+        return StreamSupport.stream (new RecordSpliterator<T> (this, fields, mapper, 0, numRecords), parallel);
     }
 
+    private static final Function<BookRecord, BookInfo> TO_BOOK_INFO = new Function<BookRecord, BookInfo>() {
+        public BookInfo apply (BookRecord record) {
+            return record.toBookInfo();
+        }
+    };
+
     /**
      * Genera informació del llibre en la base de dades (document.dat).
      * @param book Títol del llibre a escriure la informació sobre BBDD.
      * @throws IOException
      */
     public void appendBookInfo (BookInfo book) throws IOException {
-        writeBookInfo (numBooks, book);
-        numBooks++;
+        long start = metrics.start();
+        try {
+            long lsn;
+            long stamp = lock.writeLock();
+            try {
+                if (freeHead >= 0) {
+                    //S'empaqueta abans de treure el registre de la llista de lliures.
+                    byte[] record = RECORD.get();
+                    format.encode (book, record, 0);
+                    putFree (record, book);
+                } else {
+                    write (numRecords, book);
+                    numRecords++;
+                }
+                lsn = commit();
+            } finally {
+                lock.unlockWrite (stamp);
+            }
+            booksDB.sync (lsn);
+        } finally {
+            metrics.stop (DBMetrics.Operation.APPEND, start);
+        }
+    }
+
+    /**
+     * Afegeix una llista de llibres al final de la base de dades.
+     * <br>
+     * Els llibres s'empaqueten en un buffer reutilitzat de BATCH_SIZE registres
+     * i cada bloc s'escriu amb una sola escriptura i és una transacció.
+     * @param books Llibres a afegir, en ordre.
+     * @throws IOException
+     */
+    public void appendBookInfos (List<BookInfo> books) throws IOException {
+        long start = metrics.start();
+        try {
+            long lsn;
+            long stamp = lock.writeLock();
+            try {
+                if (batch == null || batch.length != BATCH_SIZE * format.size()) {
+                    batch = new byte[BATCH_SIZE * format.size()];
+                }
+                int count = 0;
+                for (BookInfo book : books) {
+                    format.encode (book, batch, count * format.size());
+                    count++;
+                    if (count == BATCH_SIZE) {
+                        append (batch, count);
+                        commit();
+                        count = 0;
+                    }
+                }
+                if (count > 0) {
+                    append (batch, count);
+                }
+                lsn = commit();
+            } finally {
+                lock.unlockWrite (stamp);
+            }
+            booksDB.sync (lsn);
+        } finally {
+            metrics.stop (DBMetrics.Operation.APPEND, start);
+        }
+    }
+
+    /**
+     * Afegeix registres ja empaquetats al final de la base de dades,
+     * amb una sola escriptura i en una sola transacció.
+     * @param records Array amb els registres empaquetats en el format del fitxer (getFormat).
+     * @param count Nombre de registres de l'array a afegir.
+     * @throws IOException
+     */
+    public void appendRecords (byte[] records, int count) throws IOException {
+        long start = metrics.start();
+        try {
+            long lsn;
+            long stamp = lock.writeLock();
+            try {
+                append (records, count);
+                lsn = commit();
+            } finally {
+                lock.unlockWrite (stamp);
+            }
+            booksDB.sync (lsn);
+        } finally {
+            metrics.stop (DBMetrics.Operation.APPEND, start);
+        }
+    }
+
+    /**
+     * Tanca la transacció en curs (amb el bloqueig d'escriptura ja agafat).
+     * @return Número de seqüència per esperar que sigui a disc.
+     * @throws IOException
+     */
+    private long commit() throws IOException {
+        modifications++;
+        textIndex.compact();
+        authorIndex.compact();
+        seriesIndex.compact();
+        return booksDB.commit();
+    }
+
+    private void append (byte[] records, int count) throws IOException {
+        if (freeHead >= 0) {
+            //Primer es reaprofiten els registres lliures.
+            int i = 0;
+            for (; i < count && freeHead >= 0; i++) {
+                byte[] record = RECORD.get();
+                System.arraycopy (records, i * format.size(), record, 0, format.size());
+                putFree (record, null);
+            }
+            if (i == count) {
+                return;
+            }
+            records = Arrays.copyOfRange (records, i * format.size(), count * format.size());
+            count -= i;
+        }
+        booksDB.write (position (numRecords), records, 0, count * format.size());
+        if (columns != null) {
+            columns.write (numRecords, records, count);
+        }
+        titleIndex.addAll (records, count, numRecords);
+        textIndex.addAll (records, count, numRecords);
+        authorIndex.addAll (records, count, numRecords);
+        seriesIndex.addAll (records, count, numRecords);
+        if (!listeners.isEmpty()) {
+            for (int i = 0; i < count; i++) {
+                fireAdded (numRecords + i, records, i * format.size());
+            }
+        }
+        if (cache != null) {
+            for (int i = 0; i < count; i++) {
+                cache.remove (numRecords + i);
+            }
+        }
+        numRecords += count;
     }
 
     /**
@@ -88,33 +959,365 @@ public class ReadBooksDB {
      * @throws IOException
      */
     public int searchBookByTitle (String title) throws IOException {
-        for (int i = 0; i < numBooks; i++) {
-            BookInfo book = readBookInfo(i);
-            //equalsIgnoreCase per no diferenciar majúscules i minúscules.
-            if (book.getTitle().equalsIgnoreCase(title)) {
-                return i;
+        long start = metrics.start();
+        try {
+            long stamp = lock.readLock();
+            try {
+                //L'índex no diferencia majúscules i minúscules (equalsIgnoreCase).
+                return titleIndex.search (title);
+            } finally {
+                lock.unlockRead (stamp);
             }
+        } finally {
+            metrics.stop (DBMetrics.Operation.SEARCH, start);
+        }
+    }
+
+    /**
+     * Cerca els llibres que tenen al títol tots els termes d'una consulta,
+     * encara que siguin fragments de paraula: "wise man" troba
+     * "The Wise Man's Fear" (vegeu TrigramIndex).
+     * @param query Termes separats per espais (sense diferenciar majúscules i minúscules).
+     * @return Posicions dins del fitxer, ordenades per rellevància.
+     * @throws IOException
+     */
+    public int[] searchBooksByTitleText (String query) throws IOException {
+        long stamp = lock.readLock();
+        try {
+            return textIndex.search (query);
+        } finally {
+            lock.unlockRead (stamp);
+        }
+    }
+
+    /**
+     * Cerca els llibres d'un autor.
+     * @param author Autor (sense diferenciar majúscules i minúscules).
+     * @return Posicions dins del fitxer, en ordre creixent.
+     * @throws IOException
+     */
+    public int[] searchBooksByAuthor (String author) throws IOException {
+        long stamp = lock.readLock();
+        try {
+            return authorIndex.search (author);
+        } finally {
+            lock.unlockRead (stamp);
+        }
+    }
+
+    /**
+     * Cerca els llibres d'una sèrie.
+     * @param series Sèrie (sense diferenciar majúscules i minúscules).
+     * @return Posicions dins del fitxer, en ordre creixent.
+     * @throws IOException
+     */
+    public int[] searchBooksBySeries (String series) throws IOException {
+        long stamp = lock.readLock();
+        try {
+            return seriesIndex.search (series);
+        } finally {
+            lock.unlockRead (stamp);
+        }
+    }
+
+    /**
+     * Cerca els llibres de totes les sèries que comencen per un prefix;
+     * per exemple, "Cosmere / " troba "Cosmere / Elantris" i "Cosmere / Mistborn".
+     * @param prefix Prefix de la sèrie (sense diferenciar majúscules i minúscules).
+     * @return Posicions dins del fitxer, ordenades per sèrie i després per posició.
+     * @throws IOException
+     */
+    public int[] searchBooksBySeriesPrefix (String prefix) throws IOException {
+        long stamp = lock.readLock();
+        try {
+            return seriesIndex.searchPrefix (prefix);
+        } finally {
+            lock.unlockRead (stamp);
         }
-        return -1;
+    }
+
+    /**
+     * Recorre uns quants llibres, llegint cadascun només quan es demana.
+     * <br>
+     * Els errors de lectura es llancen com a UncheckedIOException.
+     * @param records Posicions dins del fitxer (per exemple, el resultat d'una cerca).
+     * @return Iterador sobre els llibres.
+     */
+    public Iterator<BookInfo> readBookInfos (final int[] records) {
+        return new Iterator<BookInfo>() {
+            private int i = 0;
+
+            public boolean hasNext() {
+                return i < records.length;
+            }
+
+            public BookInfo next() {
+                if (i >= records.length) {
+                    throw new NoSuchElementException();
+                }
+                try {
+                    return readBookInfo (records[i++]);
+                } catch (IOException ex) {
+                    throw new UncheckedIOException (ex);
+                }
+            }
+        };
     }
 
     /**
      * Cerca i esborra un llibre a partir del seu nom.
+     * <br>
+     * Amb DeleteMode.MOVE_LAST el darrer llibre es mou a la posició de
+     * l'esborrat i el fitxer es trunca; amb DeleteMode.TOMBSTONE (o si el
+     * fitxer ja té làpides) el registre es marca com a esborrat. En tots dos
+     * casos és una sola transacció.
      * @param title Nom del llibre a cercar i a eliminar.
      * @return Booleà indicant si ha estat esborrat (true) o no (false).
      * @throws IOException
      */
     public boolean deleteByTitle (String title) throws IOException {
-        int bookIndex = searchBookByTitle(title);
-        if (bookIndex != -1) {
-            int lastBookIndex = numBooks - 1;
-            BookInfo lastBook = readBookInfo(lastBookIndex);
-            //Moure darrer llibre cap a la posició del llibre esborrat.
-            writeBookInfo(bookIndex, lastBook);
-            numBooks--;
+        long start = metrics.start();
+        try {
+            long lsn;
+            long stamp = lock.writeLock();
+            try {
+                int bookIndex = titleIndex.search(title);
+                if (bookIndex == -1) {
+                    return false;
+                }
+                if ((deleteMode == DeleteMode.TOMBSTONE && format.supportsTombstones()) || numDeleted > 0) {
+                    bury (bookIndex);
+                } else {
+                    int lastBookIndex = numRecords - 1;
+                    BookInfo lastBook = read(lastBookIndex);
+                    //Moure darrer llibre cap a la posició del llibre esborrat.
+                    write(bookIndex, lastBook);
+                    titleIndex.remove(lastBookIndex);
+                    textIndex.remove(lastBookIndex);
+                    authorIndex.remove(lastBookIndex);
+                    seriesIndex.remove(lastBookIndex);
+                    fireRemoved (lastBookIndex);
+                    if (cache != null) {
+                        cache.remove(lastBookIndex);
+                    }
+                    numRecords--;
+                    booksDB.setLength (position (lastBookIndex));
+                    if (columns != null) {
+                        columns.truncate (numRecords);
+                    }
+                }
+                lsn = commit();
+            } finally {
+                lock.unlockWrite (stamp);
+            }
+            booksDB.sync (lsn);
+            scheduleCompaction();
             return true;
+        } finally {
+            metrics.stop (DBMetrics.Operation.DELETE, start);
+        }
+    }
+
+    /**
+     * Compacta el fitxer: els llibres no esborrats s'escriuen, en ordre, en
+     * un fitxer nou (<em>fileName</em>.compact) que després substitueix
+     * l'actual amb un canvi de nom atòmic.
+     * <br>
+     * La còpia es fa amb el bloqueig de lectura: les lectures i les cerques
+     * continuen mentre dura i només les modificacions esperen. El canvi de
+     * fitxer i la renumeració dels índexs es fan amb el bloqueig
+     * d'escriptura. Els llibres que hi havia després d'una làpida canvien de
+     * número; els listeners reben la correspondència (booksMoved).
+     * @return Cert si s'ha compactat; fals si no hi havia cap làpida.
+     * @throws IOException
+     */
+    public boolean compact() throws IOException {
+        File copy = new File (fileName + ".compact");
+        long stamp = lock.readLock();
+        try {
+            if (closed || numDeleted == 0) {
+                return false;
+            }
+            long version = modifications;
+            int[] mapping = copyLive (copy);
+            long writeStamp = lock.tryConvertToWriteLock (stamp);
+            if (writeStamp != 0) {
+                stamp = writeStamp;
+            } else {
+                lock.unlockRead (stamp);
+                stamp = lock.writeLock();
+                if (closed || numDeleted == 0) {
+                    copy.delete();
+                    return false;
+                }
+                if (modifications != version) {
+                    //Algú ha modificat les dades entre els dos bloquejos: es torna a copiar.
+                    mapping = copyLive (copy);
+                }
+            }
+            swap (copy, mapping);
+        } finally {
+            lock.unlock (stamp);
+        }
+        return true;
+    }
+
+    /**
+     * Copia els registres no esborrats a un fitxer nou (amb el bloqueig de
+     * lectura o d'escriptura ja agafat).
+     * @return Número nou de cada registre (-1 per a les làpides).
+     */
+    private int[] copyLive (File copy) throws IOException {
+        int size = format.size();
+        int[] mapping = new int[numRecords];
+        byte[] in = new byte[RecordSpliterator.BLOCK_RECORDS * size];
+        byte[] out = new byte[RecordSpliterator.BLOCK_RECORDS * size];
+        FileChannel channel = FileChannel.open (copy.toPath(), StandardOpenOption.CREATE,
+                                                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        try {
+            writeFully (channel, format.header(), format.headerSize());
+            int live = 0;
+            for (int first = 0; first < numRecords; ) {
+                int count = loadRecords (first, in, Math.min (RecordSpliterator.BLOCK_RECORDS, numRecords - first));
+                int kept = 0;
+                for (int i = 0; i < count; i++) {
+                    if (format.unpackDeleted (in, i * size)) {
+                        mapping[first + i] = -1;
+                    } else {
+                        System.arraycopy (in, i * size, out, kept * size, size);
+                        kept++;
+                        mapping[first + i] = live++;
+                    }
+                }
+                writeFully (channel, out, kept * size);
+                first += count;
+            }
+            channel.force (true);
+        } finally {
+            channel.close();
+        }
+        return mapping;
+    }
+
+    private static void writeFully (FileChannel channel, byte[] buffer, int length) throws IOException {
+        ByteBuffer bytes = ByteBuffer.wrap (buffer, 0, length);
+        while (bytes.hasRemaining()) {
+            channel.write (bytes);
+        }
+    }
+
+    /**
+     * Posa una còpia en lloc del fitxer de dades (amb el bloqueig
+     * d'escriptura ja agafat).
+     */
+    private void replaceFile (File copy) throws IOException {
+        //Després del checkpoint el registre és buit: la còpia ja té totes les dades.
+        booksDB.closeStore();
+        try {
+            Files.move (copy.toPath(), new File (fileName).toPath(),
+                        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            booksDB.openStore (new MeteredRecordStore (mode.open (fileName), metrics));
+        }
+    }
+
+    /**
+     * Reescriu el fitxer de dades amb els llibres ordenats per un camp
+     * (vegeu ExternalSort), de manera que un recorregut en ordre de registre
+     * els retorna en aquest ordre. Com compact, treu les làpides; després
+     * es reconstrueixen els índexs, perquè els llibres canvien de número.
+     * <br>
+     * Agafa el bloqueig d'escriptura fins al final: mentrestant no es pot
+     * llegir ni modificar la base de dades.
+     * @param field Camp pel qual s'ordena (qualsevol excepte FLAGS).
+     * @throws IOException També si la base de dades ja està tancada.
+     */
+    public void cluster (RecordFormat.Field field) throws IOException {
+        ExternalSort sort = new ExternalSort (this, field);
+        File copy = new File (fileName + ".compact");
+        long stamp = lock.writeLock();
+        try {
+            if (closed) {
+                throw new IOException ("Database is closed");
+            }
+            int[] mapping = new int[numRecords];
+            FileChannel channel = FileChannel.open (copy.toPath(), StandardOpenOption.CREATE,
+                                                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            int live;
+            try {
+                writeFully (channel, format.header(), format.headerSize());
+                live = sort.writeTo (channel, mapping);
+                channel.force (true);
+            } finally {
+                channel.close();
+            }
+            replaceFile (copy);
+            numRecords = live;
+            numDeleted = 0;
+            freeHead = -1;
+            titleIndex.remap (mapping);
+            textIndex.rebuild();
+            if (columns != null) {
+                columns.rebuild();
+            }
+            authorIndex.rebuild();
+            seriesIndex.rebuild();
+            if (cache != null) {
+                cache.clear();
+            }
+            for (BookListener listener : listeners) {
+                listener.booksMoved (mapping);
+            }
+            modifications++;
+        } finally {
+            lock.unlockWrite (stamp);
+        }
+    }
+
+    /**
+     * Posa la còpia compactada en lloc del fitxer de dades i renumera els
+     * índexs (amb el bloqueig d'escriptura ja agafat).
+     */
+    private void swap (File copy, int[] mapping) throws IOException {
+        replaceFile (copy);
+        numRecords -= numDeleted;
+        numDeleted = 0;
+        freeHead = -1;
+        titleIndex.remap (mapping);
+        textIndex.remap (mapping);
+        if (columns != null) {
+            columns.remap (mapping);
+        }
+        authorIndex.remap (mapping);
+        seriesIndex.remap (mapping);
+        if (cache != null) {
+            cache.clear();
+        }
+        for (BookListener listener : listeners) {
+            listener.booksMoved (mapping);
+        }
+        modifications++;
+    }
+
+    /**
+     * Compacta el fitxer en segon pla si hi ha massa làpides.
+     */
+    private void scheduleCompaction() {
+        double threshold = compactionThreshold;
+        if (threshold > 0 && numDeleted >= MIN_COMPACTION && numDeleted > threshold * numRecords
+                && compacting.compareAndSet (false, true)) {
+            COMPACTOR.execute (new Runnable() {
+                public void run() {
+                    try {
+                        compact();
+                    } catch (IOException ex) {
+                        //Les dades no canvien si falla: es tornarà a provar en el proper esborrat.
+                    } finally {
+                        compacting.set (false);
+                    }
+                }
+            });
         }
-        return false;
     }
 
 }
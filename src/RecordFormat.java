@@ -0,0 +1,316 @@
+/*
+ * Autors:
+ * -Xiaolong Ji
+ * -Aticor
+ */
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Format dels registres d'un fitxer de base de dades.
+ * <br>
+ * Hi ha dos formats:
+ * <ul>
+ * <li>V1: el format original, sense capçalera, amb registres de
+ * BookInfo.SIZE bytes (textos en UTF-16 i dates com a text).</li>
+ * <li>V2: fitxer amb capçalera (MAGIC, versió, mida de registre i
+ * primer registre lliure) i registres compactes (textos en Latin-1 o
+ * UTF-8, dates com a dia des de 1970-01-01 i booleans com a bits). Els
+ * registres es poden esborrar amb una làpida (vegeu DeleteMode).</li>
+ * </ul>
+ * Tots els registres d'un format tenen la mateixa mida, de manera que
+ * la posició d'un registre es pot calcular directament.
+ */
+public abstract class RecordFormat {
+
+    /**
+     * Camps d'un registre, en l'ordre en què es guarden.
+     */
+    public enum Field { TITLE, AUTHOR, SERIES, PAGES, FLAGS, START_DATE, END_DATE }
+
+    /**
+     * Primer enter de la capçalera. Els dos primers bytes (0xFFFF) no poden
+     * ser el primer caràcter d'un títol en un fitxer V1.
+     */
+    public static final int MAGIC = 0xFFFF5242;
+
+    /**
+     * Mida de la capçalera dels fitxers amb versió (V2 o posterior).
+     */
+    public static final int HEADER_SIZE = 16;
+
+    /**
+     * Posició a la capçalera del primer registre de la llista de registres
+     * esborrats amb làpida, més 1 (0 si no n'hi ha cap).
+     */
+    public static final int FREE_LIST_OFFSET = 12;
+
+    /**
+     * Valor d'una data buida (com a dia des de 1970-01-01).
+     */
+    public static final int NO_DATE = Integer.MIN_VALUE;
+
+    public static final RecordFormat V1 = new LegacyRecordFormat();
+    public static final RecordFormat V2 = new CompactRecordFormat();
+
+    /**
+     * Mida del registre més gran de tots els formats.
+     */
+    public static final int MAX_SIZE = Math.max (V1.size(), V2.size());
+
+    /** Registre auxiliar de cada fil, per als ByteBuffer sense array. */
+    private static final ThreadLocal<byte[]> SCRATCH = new ThreadLocal<byte[]>() {
+        protected byte[] initialValue() {
+            return new byte[MAX_SIZE];
+        }
+    };
+
+    /**
+     * Obtenir la versió del format.
+     * @return Número de versió.
+     */
+    public abstract int version();
+
+    /**
+     * Obtenir la mida de cada registre.
+     * @return Nombre de bytes per registre.
+     */
+    public abstract int size();
+
+    /**
+     * Obtenir la mida de la capçalera del fitxer.
+     * @return Nombre de bytes abans del primer registre.
+     */
+    public abstract int headerSize();
+
+    /**
+     * Obtenir el desplaçament d'un camp dins del registre.
+     * @param field Camp.
+     * @return Desplaçament en bytes.
+     */
+    public abstract int offset (Field field);
+
+    /**
+     * Obtenir la mida d'un camp dins del registre.
+     * @param field Camp.
+     * @return Nombre de bytes del camp.
+     */
+    public abstract int width (Field field);
+
+    /**
+     * Empaqueta un llibre.
+     * @param book Llibre a empaquetar.
+     * @param buffer Array on es guarda el registre.
+     * @param offset Desplaçament del registre dins de l'array.
+     * @throws IllegalArgumentException Si el llibre no es pot representar en aquest format.
+     */
+    public abstract void encode (BookInfo book, byte[] buffer, int offset);
+
+    /**
+     * Desempaqueta un llibre.
+     * @param buffer Array on es troba el registre.
+     * @param offset Desplaçament del registre dins de l'array.
+     * @return Informació del llibre.
+     */
+    public abstract BookInfo decode (byte[] buffer, int offset);
+
+    /**
+     * Empaqueta un llibre dins d'un ByteBuffer (pot ser directe), sense
+     * canviar-ne la posició.
+     * @param book Llibre a empaquetar.
+     * @param buffer Buffer on es guarda el registre.
+     * @param index Posició del registre dins del buffer.
+     * @throws IllegalArgumentException Si el llibre no es pot representar en aquest format.
+     */
+    public void encode (BookInfo book, ByteBuffer buffer, int index) {
+        if (buffer.hasArray()) {
+            encode (book, buffer.array(), buffer.arrayOffset() + index);
+        } else {
+            byte[] scratch = SCRATCH.get();
+            encode (book, scratch, 0);
+            ByteBuffer target = buffer.duplicate();
+            target.position (index);
+            target.put (scratch, 0, size());
+        }
+    }
+
+    /**
+     * Desempaqueta un llibre d'un ByteBuffer (pot ser directe), sense
+     * canviar-ne la posició.
+     * @param buffer Buffer on es troba el registre.
+     * @param index Posició del registre dins del buffer.
+     * @return Informació del llibre.
+     */
+    public BookInfo decode (ByteBuffer buffer, int index) {
+        if (buffer.hasArray()) {
+            return decode (buffer.array(), buffer.arrayOffset() + index);
+        }
+        byte[] scratch = SCRATCH.get();
+        ByteBuffer source = buffer.duplicate();
+        source.position (index);
+        source.get (scratch, 0, size());
+        return decode (scratch, 0);
+    }
+
+    /**
+     * Títol tal com queda guardat en un registre d'aquest format, retallat
+     * a l'amplada del camp. Les cerques per títol comparen amb aquest text,
+     * de manera que un títol massa llarg només es troba en aquesta forma.
+     * @param title Títol.
+     * @return Títol guardat.
+     */
+    public String storedTitle (String title) {
+        byte[] scratch = SCRATCH.get();
+        encode (new BookInfo (title, "", "", (short) 0, false, false, "", ""), scratch, 0);
+        return decode (scratch, 0).getTitle();
+    }
+
+    /**
+     * Desempaqueta un camp de text (o una data, en format aaaa-mm-dd)
+     * dins d'un array de chars, sense crear cap String.
+     * @param field Camp de text o de data.
+     * @param buffer Array on es troba el registre.
+     * @param offset Desplaçament del registre dins de l'array.
+     * @param chars Array on es guarden els caràcters (almenys maxLength(field)).
+     * @return Nombre de caràcters del camp.
+     */
+    public abstract int unpackText (Field field, byte[] buffer, int offset, char[] chars);
+
+    /**
+     * Desempaqueta les pàgines d'un registre.
+     * @param buffer Array on es troba el registre.
+     * @param offset Desplaçament del registre dins de l'array.
+     * @return Pàgina total.
+     */
+    public abstract short unpackPages (byte[] buffer, int offset);
+
+    /**
+     * Desempaqueta si el llibre està començat.
+     * @param buffer Array on es troba el registre.
+     * @param offset Desplaçament del registre dins de l'array.
+     * @return Començat o no.
+     */
+    public abstract boolean unpackStarted (byte[] buffer, int offset);
+
+    /**
+     * Desempaqueta si el llibre està acabat.
+     * @param buffer Array on es troba el registre.
+     * @param offset Desplaçament del registre dins de l'array.
+     * @return Acabat o no.
+     */
+    public abstract boolean unpackFinished (byte[] buffer, int offset);
+
+    /**
+     * Desempaqueta una data com a dia des de 1970-01-01, sense crear cap String.
+     * @param field START_DATE o END_DATE.
+     * @param buffer Array on es troba el registre.
+     * @param offset Desplaçament del registre dins de l'array.
+     * @return Dia, o NO_DATE si no hi ha data (o no és vàlida).
+     */
+    public abstract int unpackDay (Field field, byte[] buffer, int offset);
+
+    /**
+     * Indica si el format admet esborrar registres amb una làpida.
+     * @return Cert si els registres es poden marcar com a esborrats.
+     */
+    public boolean supportsTombstones() {
+        return false;
+    }
+
+    /**
+     * Indica si un registre és una làpida (un registre esborrat).
+     * @param buffer Array on es troba el registre.
+     * @param offset Desplaçament del registre dins de l'array.
+     * @return Cert si el registre està esborrat.
+     */
+    public boolean unpackDeleted (byte[] buffer, int offset) {
+        return false;
+    }
+
+    /**
+     * Empaqueta una làpida, que és alhora un element de la llista de
+     * registres lliures.
+     * @param next Següent registre lliure, o -1 si és l'últim.
+     * @param count Nombre de registres lliures de la llista a partir d'aquest.
+     * @param buffer Array on s'empaqueta el registre.
+     * @param offset Desplaçament del registre dins de l'array.
+     * @throws UnsupportedOperationException Si el format no admet làpides.
+     */
+    public void packTombstone (int next, int count, byte[] buffer, int offset) {
+        throw new UnsupportedOperationException ("Format V" + version() + " has no tombstones");
+    }
+
+    /**
+     * Desempaqueta el següent registre lliure d'una làpida.
+     * @param buffer Array on es troba la làpida.
+     * @param offset Desplaçament de la làpida dins de l'array.
+     * @return Següent registre lliure, o -1 si és l'últim.
+     */
+    public int unpackNextFree (byte[] buffer, int offset) {
+        throw new UnsupportedOperationException ("Format V" + version() + " has no tombstones");
+    }
+
+    /**
+     * Desempaqueta el nombre de registres lliures a partir d'una làpida.
+     * @param buffer Array on es troba la làpida.
+     * @param offset Desplaçament de la làpida dins de l'array.
+     * @return Nombre de registres lliures (inclosa aquesta làpida).
+     */
+    public int unpackFreeCount (byte[] buffer, int offset) {
+        throw new UnsupportedOperationException ("Format V" + version() + " has no tombstones");
+    }
+
+    /**
+     * Nombre màxim de caràcters d'un camp de text o de data.
+     * @param field Camp.
+     * @return Nombre màxim de caràcters.
+     */
+    public static int maxLength (Field field) {
+        switch (field) {
+            case TITLE:      return BookInfo.TITLE_LENGTH;
+            case AUTHOR:     return BookInfo.AUTHOR_LENGTH;
+            case SERIES:     return BookInfo.SERIES_LENGTH;
+            case START_DATE:
+            case END_DATE:   return BookInfo.DATE_LENGTH;
+            default:         return 0;
+        }
+    }
+
+    /**
+     * Empaqueta la capçalera d'un fitxer d'aquest format.
+     * @return Array de bytes de la capçalera (buit per a V1).
+     */
+    public byte[] header() {
+        byte[] header = new byte[headerSize()];
+        if (header.length > 0) {
+            PackUtils.packInt (MAGIC, header, 0);
+            PackUtils.packInt (version(), header, 4);
+            PackUtils.packInt (size(), header, 8);
+        }
+        return header;
+    }
+
+    /**
+     * Detecta el format d'un fitxer existent a partir de la capçalera.
+     * @param store Dades del fitxer (no buit).
+     * @return Format del fitxer; V1 si no té capçalera.
+     * @throws IOException Si la capçalera és d'una versió desconeguda.
+     */
+    public static RecordFormat detect (RecordStore store) throws IOException {
+        if (store.length() < HEADER_SIZE) {
+            return V1;
+        }
+        byte[] header = new byte[HEADER_SIZE];
+        store.read (0, header, 0, HEADER_SIZE);
+        if (PackUtils.unpackInt (header, 0) != MAGIC) {
+            return V1;
+        }
+        int version = PackUtils.unpackInt (header, 4);
+        if (version == V2.version() && PackUtils.unpackInt (header, 8) == V2.size()) {
+            return V2;
+        }
+        throw new IOException ("Unsupported database format version " + version);
+    }
+
+}
@@ -0,0 +1,230 @@
+/*
+ * Autors:
+ * -Xiaolong Ji
+ * -Aticor
+ */
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Recorregut d'un interval de registres de la base de dades per a Stream.
+ * <br>
+ * Els registres es llegeixen en blocs de BLOCK_RECORDS amb una sola lectura
+ * (ReadBooksDB.readRecords) i, mentre es processa un bloc, el següent ja
+ * es va llegint en un altre fil. Per a cada registre es crida una funció
+ * sobre una vista (BookRecord) que només és vàlida durant la crida.
+ * <br>
+ * L'interval es pot partir per la meitat (trySplit), de manera que un
+ * Stream paral·lel reparteix els registres entre diversos fils.
+ * <br>
+ * La mida es fixa en crear-lo: si mentre es recorre s'esborren llibres,
+ * el recorregut s'acaba abans. Els registres esborrats amb làpida se
+ * salten; si n'hi ha, la mida és només una estimació.
+ * <br>
+ * Si s'indiquen els camps que fa servir la funció, els blocs es llegeixen
+ * amb ReadBooksDB.readRecords (fields, ...), que amb les columnes activades
+ * només llegeix aquests camps.
+ */
+public class RecordSpliterator<T> implements Spliterator<T> {
+
+    /** Nombre de registres de cada lectura. */
+    public static final int BLOCK_RECORDS = 4096;
+
+    /** Fils que llegeixen el bloc següent per avançat. */
+    private static final ExecutorService READ_AHEAD = Executors.newCachedThreadPool (new ThreadFactory() {
+        public Thread newThread (Runnable r) {
+            Thread thread = new Thread (r, "RecordSpliterator-read-ahead");
+            thread.setDaemon (true);
+            return thread;
+        }
+    });
+
+    private final ReadBooksDB booksDB;
+    private final Set<RecordFormat.Field> fields;
+    private final Function<BookRecord, ? extends T> mapper;
+    private final RecordFormat format;
+    private int next;
+    private final int end;
+    private final boolean exact;
+
+    // Bloc actual (per a tryAdvance)
+    private final BookRecord view = new BookRecord();
+    private byte[] block;
+    private int blockFirst;
+    private int blockCount;
+
+    /**
+     * Crea un recorregut d'un interval de registres.
+     * @param booksDB Base de dades.
+     * @param mapper Funció que obté el valor de cada registre.
+     * @param first Primer registre.
+     * @param end Registre següent a l'últim.
+     */
+    public RecordSpliterator (ReadBooksDB booksDB, Function<BookRecord, ? extends T> mapper, int first, int end) {
+        this (booksDB, null, mapper, first, end);
+    }
+
+    /**
+     * Crea un recorregut d'un interval de registres que només llegeix alguns camps.
+     * @param booksDB Base de dades.
+     * @param fields Camps que fa servir la funció, o null per llegir els registres sencers.
+     * @param mapper Funció que obté el valor de cada registre.
+     * @param first Primer registre.
+     * @param end Registre següent a l'últim.
+     */
+    public RecordSpliterator (ReadBooksDB booksDB, Set<RecordFormat.Field> fields,
+                              Function<BookRecord, ? extends T> mapper, int first, int end) {
+        this.booksDB = booksDB;
+        this.fields = fields;
+        this.mapper = mapper;
+        this.format = booksDB.getFormat();
+        this.next = first;
+        this.end = end;
+        this.exact = booksDB.getNumDeleted() == 0;
+    }
+
+    public boolean tryAdvance (Consumer<? super T> action) {
+        for (;;) {
+            if (next >= end) {
+                return false;
+            }
+            if (block == null || next >= blockFirst + blockCount) {
+                if (block == null) {
+                    block = new byte[BLOCK_RECORDS * format.size()];
+                }
+                blockFirst = next;
+                blockCount = read (next, block);
+                if (blockCount == 0) {
+                    //La base de dades s'ha escurçat mentre es recorria.
+                    next = end;
+                    return false;
+                }
+            }
+            view.wrap (format, block, (next - blockFirst) * format.size());
+            next++;
+            if (!view.isDeleted()) {
+                action.accept (mapper.apply (view));
+                return true;
+            }
+        }
+    }
+
+    public void forEachRemaining (Consumer<? super T> action) {
+        //Primer s'acaba el bloc actual, si n'hi ha.
+        while (block != null && next < Math.min (end, blockFirst + blockCount)) {
+            tryAdvance (action);
+        }
+        if (next >= end) {
+            return;
+        }
+        byte[] current = new byte[BLOCK_RECORDS * format.size()];
+        byte[] spare = new byte[BLOCK_RECORDS * format.size()];
+        int count = read (next, current);
+        while (count > 0) {
+            next += count;
+            Future<Integer> ahead = null;
+            if (next < end) {
+                ahead = readAhead (next, spare);
+            }
+            for (int i = 0; i < count; i++) {
+                if (!view.wrap (format, current, i * format.size()).isDeleted()) {
+                    action.accept (mapper.apply (view));
+                }
+            }
+            if (ahead == null) {
+                break;
+            }
+            count = await (ahead);
+            byte[] swap = current;
+            current = spare;
+            spare = swap;
+        }
+        next = end;
+    }
+
+    /**
+     * Llegeix un bloc de registres a partir d'un registre.
+     * @return Nombre de registres llegits (0 si ja no n'hi ha).
+     */
+    private int read (int first, byte[] buffer) {
+        try {
+            int count = Math.min (BLOCK_RECORDS, end - first);
+            if (fields != null) {
+                return booksDB.readRecords (fields, first, buffer, count);
+            }
+            return booksDB.readRecords (first, buffer, count);
+        } catch (IOException ex) {
+            throw new UncheckedIOException (ex);
+        }
+    }
+
+    private Future<Integer> readAhead (final int first, final byte[] buffer) {
+        return READ_AHEAD.submit (new Callable<Integer>() {
+            public Integer call() {
+                return read (first, buffer);
+            }
+        });
+    }
+
+    private static int await (Future<Integer> future) {
+        boolean interrupted = false;
+        try {
+            for (;;) {
+                try {
+                    return future.get();
+                } catch (InterruptedException ex) {
+                    interrupted = true;
+                } catch (ExecutionException ex) {
+                    if (ex.getCause() instanceof RuntimeException) {
+                        throw (RuntimeException) ex.getCause();
+                    }
+                    throw new UncheckedIOException (new IOException (ex.getCause()));
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    public Spliterator<T> trySplit() {
+        int start = block != null ? Math.max (next, blockFirst + blockCount) : next;
+        int remaining = end - start;
+        if (remaining < 2 * BLOCK_RECORDS) {
+            return null;
+        }
+        //Es parteix per un múltiple de BLOCK_RECORDS.
+        int mid = start + (remaining / 2 / BLOCK_RECORDS) * BLOCK_RECORDS;
+        RecordSpliterator<T> prefix = new RecordSpliterator<T> (booksDB, fields, mapper, next, mid);
+        if (block != null && next < blockFirst + blockCount) {
+            //La part ja llegida del bloc actual passa a la primera meitat.
+            prefix.block = block;
+            prefix.blockFirst = blockFirst;
+            prefix.blockCount = blockCount;
+            block = null;
+        }
+        next = mid;
+        return prefix;
+    }
+
+    public long estimateSize() {
+        return end - next;
+    }
+
+    public int characteristics() {
+        return exact ? ORDERED | SIZED | SUBSIZED : ORDERED;
+    }
+
+}
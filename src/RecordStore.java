@@ -0,0 +1,63 @@
+/*
+ * Autors:
+ * -Xiaolong Ji
+ * -Aticor
+ */
+
+import java.io.IOException;
+
+/**
+ * Emmagatzematge de bytes on la base de dades guarda els registres.
+ * <br>
+ * Les posicions són absolutes dins del fitxer; cap d'aquests mètodes
+ * depèn d'un punter de fitxer compartit.
+ */
+public interface RecordStore {
+
+    /**
+     * Obtenir la mida de les dades.
+     * @return Nombre de bytes guardats.
+     * @throws IOException
+     */
+    long length() throws IOException;
+
+    /**
+     * Canvia la mida de les dades (truncant o ampliant amb zeros).
+     * @param length Nova mida en bytes.
+     * @throws IOException
+     */
+    void setLength (long length) throws IOException;
+
+    /**
+     * Llegeix bytes a partir d'una posició.
+     * @param position Posició inicial dins de les dades.
+     * @param buffer Array on es guardaran els bytes llegits.
+     * @param offset Desplaçament dintre de l'array.
+     * @param length Nombre de bytes a llegir.
+     * @throws IOException Si no hi ha prou bytes o hi ha un error d'E/S.
+     */
+    void read (long position, byte[] buffer, int offset, int length) throws IOException;
+
+    /**
+     * Escriu bytes a partir d'una posició, ampliant les dades si cal.
+     * @param position Posició inicial dins de les dades.
+     * @param buffer Array amb els bytes a escriure.
+     * @param offset Desplaçament dintre de l'array.
+     * @param length Nombre de bytes a escriure.
+     * @throws IOException
+     */
+    void write (long position, byte[] buffer, int offset, int length) throws IOException;
+
+    /**
+     * Força a disc totes les dades escrites.
+     * @throws IOException
+     */
+    void force() throws IOException;
+
+    /**
+     * Tanca l'emmagatzematge.
+     * @throws IOException
+     */
+    void close() throws IOException;
+
+}
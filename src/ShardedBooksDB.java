@@ -0,0 +1,553 @@
+/*
+ * Autors:
+ * -Xiaolong Ji
+ * -Aticor
+ */
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.function.BiConsumer;
+import java.util.function.BinaryOperator;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+/**
+ * Base de dades de llibres repartida entre diversos fitxers (particions),
+ * cadascun amb la seva ReadBooksDB (<em>fileName</em>.shard0,
+ * <em>fileName</em>.shard1, ..., amb els seus índexs i registres).
+ * <br>
+ * Cada llibre va a la partició que indica el valor de dispersió del seu
+ * títol tal com es guarda (retallat a l'amplada del camp) i sense distingir
+ * majúscules i minúscules, el mateix de l'índex de títols. Així les
+ * operacions per títol (searchBookByTitle, deleteByTitle) només fan servir
+ * una partició, i troben el llibre tant pel títol original com pel guardat. Els recorreguts, les
+ * cerques per autor o per fragments del títol i els comptes es fan a totes
+ * les particions alhora, i els resultats s'ajunten en ordre de partició.
+ * <br>
+ * El nombre de particions es guarda a <em>fileName</em>.shards; per
+ * canviar-lo cal repartir de nou els llibres (reshard).
+ */
+public class ShardedBooksDB {
+
+    /** Nombre de particions d'una base de dades nova, si no se n'indica cap. */
+    public static final int DEFAULT_SHARDS = 4;
+
+    private static final int MAGIC = 0x53484431; // "SHD1"
+
+    /** Llibres que es copien junts en repartir una base de dades. */
+    private static final int RESHARD_BATCH = 4096;
+
+    /** Fils on es fan les operacions de cada partició. */
+    private static final ExecutorService WORKERS = Executors.newCachedThreadPool (new ThreadFactory() {
+        public Thread newThread (Runnable r) {
+            Thread thread = new Thread (r, "ShardedBooksDB-worker");
+            thread.setDaemon (true);
+            return thread;
+        }
+    });
+
+    private final ReadBooksDB[] shards;
+
+    /**
+     * Obre una base de dades repartida amb el nombre de particions que té
+     * guardat, o en crea una de DEFAULT_SHARDS particions.
+     * @param fileName Nom base dels fitxers.
+     * @param mode Tipus d'emmagatzematge de les particions.
+     * @throws IOException
+     */
+    public ShardedBooksDB (String fileName, StorageMode mode) throws IOException {
+        this (fileName, readShardCount (fileName, DEFAULT_SHARDS), mode);
+    }
+
+    /**
+     * Obre o crea una base de dades repartida.
+     * @param fileName Nom base dels fitxers.
+     * @param count Nombre de particions.
+     * @param mode Tipus d'emmagatzematge de les particions.
+     * @throws IOException
+     * @throws IllegalArgumentException Si la base de dades ja existeix amb
+     * un altre nombre de particions (vegeu reshard).
+     */
+    public ShardedBooksDB (String fileName, int count, StorageMode mode) throws IOException {
+        if (count < 1) {
+            throw new IllegalArgumentException ("Invalid shard count: " + count);
+        }
+        int stored = readShardCount (fileName, count);
+        if (stored != count) {
+            throw new IllegalArgumentException (fileName + " has " + stored + " shards, not " + count);
+        }
+        writeShardCount (fileName, count);
+        shards = new ReadBooksDB[count];
+        try {
+            for (int i = 0; i < count; i++) {
+                shards[i] = new ReadBooksDB (shardFileName (fileName, i), mode);
+            }
+        } catch (IOException ex) {
+            closeShards();
+            throw ex;
+        }
+    }
+
+    private static String shardFileName (String fileName, int shard) {
+        return fileName + ".shard" + shard;
+    }
+
+    /**
+     * Indica si hi ha una base de dades repartida amb aquest nom.
+     * @param fileName Nom base dels fitxers.
+     * @return Cert si existeix el fitxer amb el nombre de particions.
+     */
+    public static boolean exists (String fileName) {
+        return new File (fileName + ".shards").exists();
+    }
+
+    /**
+     * Llegeix el nombre de particions guardat.
+     * @param fileName Nom base dels fitxers.
+     * @param missing Valor si la base de dades encara no existeix.
+     * @return Nombre de particions.
+     * @throws IOException Si el fitxer no és vàlid.
+     */
+    private static int readShardCount (String fileName, int missing) throws IOException {
+        File file = new File (fileName + ".shards");
+        if (!file.exists()) {
+            return missing;
+        }
+        DataInputStream input = new DataInputStream (new FileInputStream (file));
+        try {
+            if (input.readInt() != MAGIC) {
+                throw new IOException ("Not a shard file: " + file);
+            }
+            return input.readInt();
+        } finally {
+            input.close();
+        }
+    }
+
+    /**
+     * Guarda el nombre de particions, reemplaçant el fitxer amb un canvi de nom atòmic.
+     */
+    private static void writeShardCount (String fileName, int count) throws IOException {
+        File file = new File (fileName + ".shards");
+        File temp = new File (fileName + ".shards.tmp");
+        FileOutputStream stream = new FileOutputStream (temp);
+        try {
+            DataOutputStream output = new DataOutputStream (stream);
+            output.writeInt (MAGIC);
+            output.writeInt (count);
+            output.flush();
+            stream.getFD().sync();
+        } finally {
+            stream.close();
+        }
+        Files.move (temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Obtenir el nombre de particions.
+     * @return Nombre de particions.
+     */
+    public int getNumShards() {
+        return shards.length;
+    }
+
+    /**
+     * Obtenir una partició, per fer-hi operacions que no ofereix aquesta classe.
+     * @param shard Número de partició.
+     * @return Base de dades de la partició.
+     */
+    public ReadBooksDB getShard (int shard) {
+        return shards[shard];
+    }
+
+    /**
+     * Partició on va un títol.
+     * @param title Títol del llibre (es retalla com quan es guarda).
+     * @return Número de partició.
+     */
+    public int shardOf (String title) {
+        return shardOfStored (storedTitle (title));
+    }
+
+    private int shardOfStored (String stored) {
+        return Math.floorMod (TitleIndex.hash (stored), shards.length);
+    }
+
+    /**
+     * Títol tal com queda guardat en un registre de les particions.
+     * @param title Títol del llibre.
+     * @return Títol retallat a l'amplada del camp.
+     */
+    private String storedTitle (String title) {
+        RecordFormat format = shards[0].getFormat();
+        byte[] record = new byte[format.size()];
+        format.encode (new BookInfo (title, "", "", (short) 0, false, false, "", ""), record, 0);
+        return new BookRecord().wrap (format, record, 0).getTitle();
+    }
+
+    /**
+     * Obtenir el nombre de llibres de totes les particions.
+     * @return Nombre de llibres (sense comptar els esborrats amb làpida).
+     */
+    public int getNumBooks() {
+        int count = 0;
+        for (ReadBooksDB shard : shards) {
+            count += shard.getNumBooks();
+        }
+        return count;
+    }
+
+    /**
+     * Canvia la manera d'esborrar llibres de totes les particions.
+     * @param deleteMode Manera d'esborrar.
+     * @throws IOException
+     */
+    public void setDeleteMode (DeleteMode deleteMode) throws IOException {
+        for (ReadBooksDB shard : shards) {
+            shard.setDeleteMode (deleteMode);
+        }
+    }
+
+    /**
+     * Afegeix un llibre a la seva partició.
+     * @param book Llibre.
+     * @throws IOException
+     */
+    public void appendBookInfo (BookInfo book) throws IOException {
+        shards[shardOf (book.getTitle())].appendBookInfo (book);
+    }
+
+    /**
+     * Afegeix diversos llibres: es reparteixen per particions i cada
+     * partició escriu els seus en bloc, totes alhora.
+     * @param books Llibres.
+     * @throws IOException
+     */
+    public void appendBookInfos (List<BookInfo> books) throws IOException {
+        final List<List<BookInfo>> parts = new ArrayList<List<BookInfo>>();
+        for (int i = 0; i < shards.length; i++) {
+            parts.add (new ArrayList<BookInfo>());
+        }
+        for (BookInfo book : books) {
+            parts.get (shardOf (book.getTitle())).add (book);
+        }
+        fanOut (new ShardTask<Void>() {
+            public Void call (int i, ReadBooksDB shard) throws IOException {
+                if (!parts.get (i).isEmpty()) {
+                    shard.appendBookInfos (parts.get (i));
+                }
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Cerca un llibre per títol a la seva partició.
+     * @param title Títol (sense distingir majúscules i minúscules).
+     * @return Llibre, o null si no hi és.
+     * @throws IOException
+     */
+    public BookInfo searchBookByTitle (String title) throws IOException {
+        String stored = storedTitle (title);
+        ReadBooksDB shard = shards[shardOfStored (stored)];
+        int n = shard.searchBookByTitle (stored);
+        return n == -1 ? null : shard.readBookInfo (n);
+    }
+
+    /**
+     * Esborra un llibre de la seva partició.
+     * @param title Títol (sense distingir majúscules i minúscules).
+     * @return Cert si s'ha trobat i esborrat.
+     * @throws IOException
+     */
+    public boolean deleteByTitle (String title) throws IOException {
+        String stored = storedTitle (title);
+        return shards[shardOfStored (stored)].deleteByTitle (stored);
+    }
+
+    /**
+     * Cerca els llibres d'un autor a totes les particions.
+     * @param author Autor (sense distingir majúscules i minúscules).
+     * @return Llibres, en ordre de partició i de registre.
+     * @throws IOException
+     */
+    public List<BookInfo> searchBooksByAuthor (final String author) throws IOException {
+        return concat (fanOut (new ShardTask<List<BookInfo>>() {
+            public List<BookInfo> call (int i, ReadBooksDB shard) throws IOException {
+                return toList (shard.readBookInfos (shard.searchBooksByAuthor (author)));
+            }
+        }));
+    }
+
+    /**
+     * Cerca els llibres amb un fragment al títol a totes les particions.
+     * @param query Fragment del títol (vegeu ReadBooksDB.searchBooksByTitleText).
+     * @return Llibres; dins de cada partició, en l'ordre de rellevància de la cerca.
+     * @throws IOException
+     */
+    public List<BookInfo> searchBooksByTitleText (final String query) throws IOException {
+        return concat (fanOut (new ShardTask<List<BookInfo>>() {
+            public List<BookInfo> call (int i, ReadBooksDB shard) throws IOException {
+                return toList (shard.readBookInfos (shard.searchBooksByTitleText (query)));
+            }
+        }));
+    }
+
+    /**
+     * Cerca i desempaqueta els llibres que compleixen una condició,
+     * recorrent totes les particions alhora (vegeu TableScan).
+     * @param condition Condició sobre cada registre.
+     * @return Llibres, en ordre de partició i de registre.
+     * @throws IOException
+     */
+    public List<BookInfo> selectBooks (final Predicate<BookRecord> condition) throws IOException {
+        return concat (fanOut (new ShardTask<List<BookInfo>>() {
+            public List<BookInfo> call (int i, ReadBooksDB shard) throws IOException {
+                return new TableScan (shard).selectBooks (condition);
+            }
+        }));
+    }
+
+    /**
+     * Compta els llibres que compleixen una condició a totes les particions.
+     * @param condition Condició sobre cada registre.
+     * @return Nombre de llibres.
+     * @throws IOException
+     */
+    public int count (final Predicate<BookRecord> condition) throws IOException {
+        int count = 0;
+        for (int n : fanOut (new ShardTask<Integer>() {
+            public Integer call (int i, ReadBooksDB shard) throws IOException {
+                return new TableScan (shard).count (condition);
+            }
+        })) {
+            count += n;
+        }
+        return count;
+    }
+
+    /**
+     * Agrega tots els llibres de totes les particions (vegeu TableScan.reduce):
+     * cada partició fa la seva agregació i els resultats es combinen en
+     * ordre de partició.
+     * @param supplier Crea un acumulador buit.
+     * @param accumulator Afegeix un registre a un acumulador.
+     * @param combiner Combina dos acumuladors.
+     * @return Acumulador amb tots els llibres.
+     * @throws IOException
+     */
+    public <A> A reduce (final Supplier<A> supplier, final BiConsumer<A, BookRecord> accumulator,
+                         final BinaryOperator<A> combiner) throws IOException {
+        List<A> partials = fanOut (new ShardTask<A>() {
+            public A call (int i, ReadBooksDB shard) throws IOException {
+                return new TableScan (shard).reduce (supplier, accumulator, combiner);
+            }
+        });
+        A result = partials.get (0);
+        for (int i = 1; i < partials.size(); i++) {
+            result = combiner.apply (result, partials.get (i));
+        }
+        return result;
+    }
+
+    /**
+     * Buida totes les particions.
+     * @throws IOException
+     */
+    public void reset() throws IOException {
+        fanOut (new ShardTask<Void>() {
+            public Void call (int i, ReadBooksDB shard) throws IOException {
+                shard.reset();
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Tanca totes les particions.
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        closeShards();
+    }
+
+    private void closeShards() throws IOException {
+        IOException failure = null;
+        for (ReadBooksDB shard : shards) {
+            if (shard == null) {
+                continue;
+            }
+            try {
+                shard.close();
+            } catch (IOException ex) {
+                failure = ex;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Reparteix els llibres d'una base de dades (d'un sol fitxer o ja
+     * repartida) en una base de dades repartida nova. Els llibres que
+     * hi hagués al destí s'esborren; l'origen no es modifica.
+     * @param source Nom del fitxer (o nom base) de l'origen.
+     * @param target Nom base del destí (diferent de l'origen).
+     * @param count Nombre de particions del destí.
+     * @param mode Tipus d'emmagatzematge de l'origen i del destí.
+     * @throws IOException
+     */
+    public static void reshard (String source, String target, int count, StorageMode mode) throws IOException {
+        if (new File (source).getCanonicalPath().equals (new File (target).getCanonicalPath())) {
+            throw new IllegalArgumentException ("The target must be a different database");
+        }
+        //Els fitxers del destí es tornen a crear amb el nombre de particions nou.
+        if (exists (target)) {
+            ShardedBooksDB old = new ShardedBooksDB (target, mode);
+            old.reset();
+            old.close();
+            new File (target + ".shards").delete();
+        }
+        ReadBooksDB[] from;
+        ShardedBooksDB sharded = null;
+        if (exists (source)) {
+            sharded = new ShardedBooksDB (source, mode);
+            from = sharded.shards;
+        } else {
+            from = new ReadBooksDB[] { new ReadBooksDB (source, mode) };
+        }
+        ShardedBooksDB to = null;
+        try {
+            to = new ShardedBooksDB (target, count, mode);
+            List<BookInfo> batch = new ArrayList<BookInfo> (RESHARD_BATCH);
+            for (ReadBooksDB shard : from) {
+                Iterator<BookInfo> books = shard.stream (false).iterator();
+                while (books.hasNext()) {
+                    batch.add (books.next());
+                    if (batch.size() == RESHARD_BATCH) {
+                        to.appendBookInfos (batch);
+                        batch.clear();
+                    }
+                }
+            }
+            to.appendBookInfos (batch);
+        } finally {
+            if (to != null) {
+                to.close();
+            }
+            if (sharded != null) {
+                sharded.close();
+            } else {
+                from[0].close();
+            }
+        }
+    }
+
+    /**
+     * Eina per repartir una base de dades des de la línia d'ordres:
+     * <pre>
+     * java ShardedBooksDB origen destí particions
+     * </pre>
+     * @param args Origen, destí i nombre de particions.
+     * @throws IOException
+     */
+    public static void main (String[] args) throws IOException {
+        if (args.length != 3) {
+            System.err.println ("Usage: java ShardedBooksDB <source> <target> <shards>");
+            System.exit (2);
+        }
+        reshard (args[0], args[1], Integer.parseInt (args[2]), StorageMode.FILE);
+        ShardedBooksDB db = new ShardedBooksDB (args[1], StorageMode.FILE);
+        System.out.println (db.getNumBooks() + " books in " + db.getNumShards() + " shards");
+        db.close();
+    }
+
+    /**
+     * Operació sobre una partició.
+     */
+    private interface ShardTask<T> {
+        T call (int i, ReadBooksDB shard) throws IOException;
+    }
+
+    /**
+     * Fa una operació a totes les particions alhora i n'espera els resultats.
+     * @return Resultat de cada partició, en ordre de partició.
+     * @throws IOException La primera excepció d'alguna partició.
+     */
+    private <T> List<T> fanOut (final ShardTask<T> task) throws IOException {
+        List<Future<T>> futures = new ArrayList<Future<T>> (shards.length);
+        //La darrera partició la fa el fil que crida.
+        for (int i = 0; i < shards.length - 1; i++) {
+            final int shard = i;
+            futures.add (WORKERS.submit (new Callable<T>() {
+                public T call() throws IOException {
+                    return task.call (shard, shards[shard]);
+                }
+            }));
+        }
+        T last;
+        try {
+            last = task.call (shards.length - 1, shards[shards.length - 1]);
+        } catch (IOException | RuntimeException ex) {
+            for (Future<T> future : futures) {
+                future.cancel (false);
+            }
+            throw ex;
+        }
+        List<T> results = new ArrayList<T> (shards.length);
+        for (Future<T> future : futures) {
+            results.add (get (future));
+        }
+        results.add (last);
+        return results;
+    }
+
+    private static <T> T get (Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException (ex);
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            } else if (ex.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) ex.getCause();
+            }
+            throw new IOException (ex.getCause());
+        }
+    }
+
+    private static List<BookInfo> toList (Iterator<BookInfo> books) {
+        List<BookInfo> list = new ArrayList<BookInfo>();
+        while (books.hasNext()) {
+            list.add (books.next());
+        }
+        return list;
+    }
+
+    private static List<BookInfo> concat (List<List<BookInfo>> parts) {
+        List<BookInfo> books = new ArrayList<BookInfo>();
+        for (List<BookInfo> part : parts) {
+            books.addAll (part);
+        }
+        return books;
+    }
+
+}
@@ -0,0 +1,46 @@
+/*
+ * Autors:
+ * -Xiaolong Ji
+ * -Aticor
+ */
+
+import java.io.IOException;
+
+/**
+ * Tipus d'emmagatzematge que pot fer servir la base de dades.
+ */
+public enum StorageMode {
+
+    /** Accés amb lectures i escriptures posicionals al fitxer (FileChannel). */
+    FILE,
+
+    /**
+     * Fitxer projectat a memòria amb FileChannel.map. No funciona a Windows
+     * (vegeu MappedRecordStore).
+     */
+    MAPPED,
+
+    /**
+     * Dades carregades senceres en memòria fora del heap; a cada checkpoint
+     * només es desen els blocs modificats (vegeu MemoryRecordStore).
+     */
+    MEMORY;
+
+    /**
+     * Obre l'emmagatzematge corresponent sobre un fitxer.
+     * @param fileName Nom del fitxer de dades.
+     * @return Emmagatzematge obert.
+     * @throws IOException
+     */
+    public RecordStore open (String fileName) throws IOException {
+        switch (this) {
+            case MAPPED:
+                return new MappedRecordStore (fileName);
+            case MEMORY:
+                return new MemoryRecordStore (fileName);
+            default:
+                return new FileRecordStore (fileName);
+        }
+    }
+
+}
@@ -0,0 +1,276 @@
+/*
+ * Autors:
+ * -Xiaolong Ji
+ * -Aticor
+ */
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.BiConsumer;
+import java.util.function.BinaryOperator;
+import java.util.function.ObjIntConsumer;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+/**
+ * Consultes amb una condició qualsevol que recorren tota la base de dades
+ * en paral·lel.
+ * <br>
+ * L'interval de registres es parteix recursivament en un ForkJoinPool fins
+ * a trossos de CHUNK_RECORDS. Cada tros es llegeix en blocs sense
+ * desempaquetar (ReadBooksDB.readRecords) i la condició es comprova sobre
+ * una vista de cada registre (vegeu BookPredicates), de manera que els
+ * registres que no compleixen la condició no es desempaqueten mai. Els
+ * resultats dels trossos es fusionen en ordre de registre. Els registres
+ * esborrats amb làpida se salten.
+ * <br>
+ * Amb reduce es pot fer qualsevol agregació en una sola passada (per
+ * exemple, BookStatistics): cada tros acumula sobre el seu propi
+ * acumulador i després es combinen.
+ * <br>
+ * Si es creen indicant els camps que fan servir les condicions, amb les
+ * columnes activades (ReadBooksDB.setColumnsEnabled) només es llegeixen
+ * aquests camps.
+ */
+public class TableScan {
+
+    /** Nombre màxim de registres que recorre cada tasca sense partir-se. */
+    public static final int CHUNK_RECORDS = 1 << 15;
+
+    private static final int BLOCK_RECORDS = RecordSpliterator.BLOCK_RECORDS;
+
+    private final ReadBooksDB booksDB;
+    private final ForkJoinPool pool;
+    private final Set<RecordFormat.Field> fields;
+
+    /**
+     * Crea un motor de consultes que fa servir el ForkJoinPool comú.
+     * @param booksDB Base de dades.
+     */
+    public TableScan (ReadBooksDB booksDB) {
+        this (booksDB, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Crea un motor de consultes.
+     * @param booksDB Base de dades.
+     * @param pool Grup de fils on es fan les consultes.
+     */
+    public TableScan (ReadBooksDB booksDB, ForkJoinPool pool) {
+        this (booksDB, pool, null);
+    }
+
+    /**
+     * Crea un motor de consultes que només llegeix alguns camps.
+     * @param booksDB Base de dades.
+     * @param pool Grup de fils on es fan les consultes.
+     * @param fields Camps que fan servir les condicions i els acumuladors
+     * (la resta són indefinits), o null per llegir els registres sencers.
+     */
+    public TableScan (ReadBooksDB booksDB, ForkJoinPool pool, Set<RecordFormat.Field> fields) {
+        this.booksDB = booksDB;
+        this.pool = pool;
+        this.fields = fields;
+    }
+
+    /**
+     * Cerca els registres que compleixen una condició.
+     * @param condition Condició sobre cada registre.
+     * @return Posicions dins del fitxer, en ordre creixent.
+     * @throws IOException
+     */
+    public int[] select (final Predicate<BookRecord> condition) throws IOException {
+        return invoke (new Supplier<Found>() {
+            public Found get() {
+                return new Found (condition);
+            }
+        }, new BinaryOperator<Found>() {
+            public Found apply (Found left, Found right) {
+                return left.merge (right);
+            }
+        }).toArray();
+    }
+
+    /**
+     * Agrega tots els registres en una sola passada en paral·lel.
+     * <br>
+     * Cada tasca crea el seu acumulador, hi afegeix els seus registres en
+     * ordre i els acumuladors es combinen en ordre de registre. La vista
+     * només és vàlida durant la crida a accumulator.
+     * @param supplier Crea un acumulador buit.
+     * @param accumulator Afegeix un registre a un acumulador.
+     * @param combiner Combina dos acumuladors (el segon té els registres posteriors).
+     * @return Acumulador amb tots els registres.
+     * @throws IOException
+     */
+    public <A> A reduce (final Supplier<A> supplier, final BiConsumer<A, BookRecord> accumulator,
+                         final BinaryOperator<A> combiner) throws IOException {
+        return invoke (new Supplier<Partial<A>>() {
+            public Partial<A> get() {
+                return new Partial<A> (supplier.get(), accumulator);
+            }
+        }, new BinaryOperator<Partial<A>>() {
+            public Partial<A> apply (Partial<A> left, Partial<A> right) {
+                left.value = combiner.apply (left.value, right.value);
+                return left;
+            }
+        }).value;
+    }
+
+    /**
+     * Recorre tots els registres en el ForkJoinPool amb un acumulador per tros.
+     */
+    private <A extends ObjIntConsumer<BookRecord>> A invoke (Supplier<A> supplier, BinaryOperator<A> combiner)
+            throws IOException {
+        try {
+            return pool.invoke (new Reduce<A> (supplier, combiner, 0, booksDB.getNumRecords()));
+        } catch (UncheckedIOException ex) {
+            throw ex.getCause();
+        }
+    }
+
+    /**
+     * Compta els registres que compleixen una condició.
+     * @param condition Condició sobre cada registre.
+     * @return Nombre de registres.
+     * @throws IOException
+     */
+    public int count (Predicate<BookRecord> condition) throws IOException {
+        return select (condition).length;
+    }
+
+    /**
+     * Cerca i desempaqueta els llibres que compleixen una condició.
+     * @param condition Condició sobre cada registre.
+     * @return Llibres, en ordre de registre.
+     * @throws IOException
+     */
+    public List<BookInfo> selectBooks (Predicate<BookRecord> condition) throws IOException {
+        int[] records = select (condition);
+        List<BookInfo> books = new ArrayList<BookInfo> (records.length);
+        for (int n : records) {
+            books.add (booksDB.readBookInfo (n));
+        }
+        return books;
+    }
+
+    /**
+     * Tasca que agrega un interval de registres.
+     */
+    private class Reduce<A extends ObjIntConsumer<BookRecord>> extends RecursiveTask<A> {
+        private static final long serialVersionUID = 1L;
+
+        private final Supplier<A> supplier;
+        private final BinaryOperator<A> combiner;
+        private final int first;
+        private final int end;
+
+        Reduce (Supplier<A> supplier, BinaryOperator<A> combiner, int first, int end) {
+            this.supplier = supplier;
+            this.combiner = combiner;
+            this.first = first;
+            this.end = end;
+        }
+
+        protected A compute() {
+            if (end - first > CHUNK_RECORDS) {
+                int mid = (first + end) >>> 1;
+                Reduce<A> left = new Reduce<A> (supplier, combiner, first, mid);
+                left.fork();
+                A right = new Reduce<A> (supplier, combiner, mid, end).compute();
+                return combiner.apply (left.join(), right);
+            }
+            A result = supplier.get();
+            try {
+                scan (first, end, result);
+            } catch (IOException ex) {
+                throw new UncheckedIOException (ex);
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Recorre un interval de registres en blocs.
+     * @param action Es crida amb la vista i la posició de cada registre.
+     * @throws IOException
+     */
+    private void scan (int first, int end, ObjIntConsumer<BookRecord> action) throws IOException {
+        RecordFormat format = booksDB.getFormat();
+        byte[] block = new byte[Math.max (1, Math.min (BLOCK_RECORDS, end - first)) * format.size()];
+        BookRecord view = new BookRecord();
+        for (int n = first; n < end; ) {
+            int count = Math.min (BLOCK_RECORDS, end - n);
+            int read = fields != null ? booksDB.readRecords (fields, n, block, count)
+                                      : booksDB.readRecords (n, block, count);
+            if (read == 0) {
+                break;
+            }
+            for (int i = 0; i < read; i++) {
+                if (!view.wrap (format, block, i * format.size()).isDeleted()) {
+                    action.accept (view, n + i);
+                }
+            }
+            n += read;
+        }
+    }
+
+    /**
+     * Acumulador de reduce: el valor de l'usuari i la funció que hi afegeix registres.
+     */
+    private static class Partial<A> implements ObjIntConsumer<BookRecord> {
+        private A value;
+        private final BiConsumer<A, BookRecord> accumulator;
+
+        Partial (A value, BiConsumer<A, BookRecord> accumulator) {
+            this.value = value;
+            this.accumulator = accumulator;
+        }
+
+        public void accept (BookRecord view, int n) {
+            accumulator.accept (value, view);
+        }
+    }
+
+    /**
+     * Acumulador de select: posicions dels registres que compleixen la condició.
+     */
+    private static class Found implements ObjIntConsumer<BookRecord> {
+        private final Predicate<BookRecord> condition;
+        private int[] records = new int[16];
+        private int count;
+
+        Found (Predicate<BookRecord> condition) {
+            this.condition = condition;
+        }
+
+        public void accept (BookRecord view, int n) {
+            if (condition.test (view)) {
+                if (count == records.length) {
+                    records = Arrays.copyOf (records, 2 * count);
+                }
+                records[count++] = n;
+            }
+        }
+
+        Found merge (Found right) {
+            if (right.count > 0) {
+                records = Arrays.copyOf (records, count + right.count);
+                System.arraycopy (right.records, 0, records, count, right.count);
+                count += right.count;
+            }
+            return this;
+        }
+
+        int[] toArray() {
+            return Arrays.copyOf (records, count);
+        }
+    }
+
+}
@@ -0,0 +1,401 @@
+/*
+ * Autors:
+ * -Xiaolong Ji
+ * -Aticor
+ */
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Índex de títols en disc (taula de dispersió amb adreçament obert).
+ * <br>
+ * Cada entrada guarda el valor de dispersió del títol (sense distingir
+ * majúscules i minúscules) i la posició del registre a la base de dades.
+ * El títol no es guarda a l'índex: es comprova llegint-lo del fitxer de dades,
+ * de manera que una cerca costa O(1) lectures esperades.
+ * <br>
+ * Format del fitxer: una capçalera de HEADER_SIZE bytes seguida de
+ * <em>capacity</em> entrades de SLOT_SIZE bytes.
+ * <br>
+ * Diversos fils poden cercar alhora (les lectures són posicionals i fan
+ * servir buffers propis), però les modificacions han d'anar en exclusiva:
+ * ReadBooksDB ho garanteix amb el seu bloqueig.
+ */
+public class TitleIndex {
+
+    private static final int MAGIC = 0x54494432; // "TID2"
+    private static final int HEADER_SIZE = 32;
+    private static final int SLOT_SIZE = 8;
+    private static final int MIN_CAPACITY = 16;
+
+    private static final int EMPTY   = -1;
+    private static final int DELETED = -2;
+
+    private final RandomAccessFile indexFile;
+    private final FileChannel channel;
+    private final File dataFile;
+    private final ReadBooksDB booksDB;
+    private int capacity;
+    private int used; // entrades no buides (vives + esborrades)
+    private final byte[] slot = new byte[SLOT_SIZE];
+    private final BookRecord probe = new BookRecord();
+
+    /**
+     * Obre l'índex associat a una base de dades, i el reconstrueix si no
+     * existeix, està malmès o no correspon al fitxer de dades.
+     * @param fileName Nom del fitxer de l'índex.
+     * @param dataFile Fitxer de dades indexat.
+     * @param booksDB Base de dades d'on es llegeixen els títols.
+     * @throws IOException
+     */
+    public TitleIndex (String fileName, File dataFile, ReadBooksDB booksDB) throws IOException {
+        this.dataFile = dataFile;
+        this.booksDB = booksDB;
+        indexFile = new RandomAccessFile (fileName, "rw");
+        channel = indexFile.getChannel();
+        if (!loadHeader()) {
+            rebuild();
+        }
+        //Mentre està obert, l'índex es marca com a no vàlid al disc.
+        writeHeader (false);
+    }
+
+    /**
+     * Llegeix la capçalera i comprova que l'índex encara sigui vàlid.
+     * @return Cert si l'índex es pot fer servir tal com està.
+     * @throws IOException
+     */
+    private boolean loadHeader() throws IOException {
+        if (indexFile.length() < HEADER_SIZE) {
+            return false;
+        }
+        byte[] header = new byte[HEADER_SIZE];
+        indexFile.seek (0);
+        indexFile.readFully (header);
+        if (PackUtils.unpackInt (header, 0) != MAGIC
+                || !PackUtils.unpackBoolean (header, 4)
+                || PackUtils.unpackInt (header, 8) != booksDB.getNumRecords()
+                || PackUtils.unpackLong (header, 20) != dataFile.lastModified()) {
+            return false;
+        }
+        capacity = PackUtils.unpackInt (header, 12);
+        used = PackUtils.unpackInt (header, 16);
+        return capacity >= MIN_CAPACITY
+                && indexFile.length() == HEADER_SIZE + (long) capacity * SLOT_SIZE;
+    }
+
+    /**
+     * Escriu la capçalera de l'índex.
+     * @param clean Indica si l'índex queda sincronitzat amb les dades.
+     * @throws IOException
+     */
+    private void writeHeader (boolean clean) throws IOException {
+        byte[] header = new byte[HEADER_SIZE];
+        PackUtils.packInt (MAGIC, header, 0);
+        PackUtils.packBoolean (clean, header, 4);
+        PackUtils.packInt (booksDB.getNumRecords(), header, 8);
+        PackUtils.packInt (capacity, header, 12);
+        PackUtils.packInt (used, header, 16);
+        PackUtils.packLong (clean ? dataFile.lastModified() : 0L, header, 20);
+        indexFile.seek (0);
+        indexFile.write (header);
+    }
+
+    /**
+     * Valor de dispersió d'un títol, sense distingir majúscules i minúscules
+     * (amb el mateix criteri que String.equalsIgnoreCase).
+     * @param title Títol.
+     * @return Valor de dispersió.
+     */
+    static int hash (String title) {
+        int h = 0;
+        for (int i = 0; i < title.length(); i++) {
+            h = 31 * h + fold (title.charAt (i));
+        }
+        return mix (h);
+    }
+
+    /**
+     * Valor de dispersió del títol d'un registre, llegit directament dels bytes.
+     * @param record Registre empaquetat.
+     * @return Valor de dispersió (el mateix que hash(record.getTitle())).
+     */
+    static int hash (BookRecord record) {
+        int h = 0;
+        int n = record.titleLength();
+        for (int i = 0; i < n; i++) {
+            h = 31 * h + fold (record.titleCharAt (i));
+        }
+        return mix (h);
+    }
+
+    private static char fold (char c) {
+        return Character.toLowerCase (Character.toUpperCase (c));
+    }
+
+    /**
+     * Barreja els bits del valor de dispersió perquè títols semblants
+     * ("Book 1", "Book 2", ...) no quedin en entrades consecutives.
+     */
+    private static int mix (int h) {
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Reconstrueix l'índex llegint tots els títols de la base de dades
+     * (els registres esborrats no hi entren).
+     * @throws IOException
+     */
+    public void rebuild() throws IOException {
+        int numRecords = booksDB.getNumRecords();
+        int[] table = newTable (capacityFor (booksDB.getNumBooks()));
+        used = 0;
+        for (int i = 0; i < numRecords; i++) {
+            if (!booksDB.loadRecord (i, probe).isDeleted()) {
+                insert (table, hash (probe), i);
+                used++;
+            }
+        }
+        writeTable (table);
+    }
+
+    /**
+     * Canvia els números de registre després de compactar la base de dades.
+     * @param mapping Número nou de cada registre antic (-1 si s'ha esborrat).
+     * @throws IOException
+     */
+    public void remap (int[] mapping) throws IOException {
+        //Els registres esborrats ja no són a l'índex: només cal canviar els números.
+        int[] table = rehash (0);
+        for (int i = 1; i < table.length; i += 2) {
+            if (table[i] >= 0) {
+                table[i] = mapping[table[i]];
+            }
+        }
+        writeTable (table);
+    }
+
+    /**
+     * Buida l'índex.
+     * @throws IOException
+     */
+    public void clear() throws IOException {
+        used = 0;
+        writeTable (newTable (MIN_CAPACITY));
+    }
+
+    /**
+     * Cerca un títol a l'índex.
+     * @param title Títol a cercar.
+     * @return La posició més petita amb aquest títol, o -1 si no hi és.
+     * @throws IOException
+     */
+    public int search (String title) throws IOException {
+        //Buffers locals: la cerca es pot fer des de diversos fils alhora.
+        byte[] slot = new byte[SLOT_SIZE];
+        BookRecord probe = new BookRecord();
+        int h = hash (title);
+        int result = -1;
+        int probes = 0;
+        int comparisons = 0;
+        for (int i = h & (capacity - 1); ; i = (i + 1) & (capacity - 1)) {
+            readSlot (i, slot);
+            probes++;
+            int n = PackUtils.unpackInt (slot, 4);
+            if (n == EMPTY) {
+                booksDB.getMetrics().titleSearch (probes, comparisons);
+                return result;
+            }
+            if (n != DELETED && PackUtils.unpackInt (slot, 0) == h
+                    && (result == -1 || n < result)) {
+                comparisons++;
+                if (booksDB.loadRecord (n, probe).titleEqualsIgnoreCase (title)) {
+                    result = n;
+                }
+            }
+        }
+    }
+
+    /**
+     * Afegeix una entrada a l'índex.
+     * @param title Títol del llibre.
+     * @param n Posició del registre.
+     * @throws IOException
+     */
+    public void add (String title, int n) throws IOException {
+        add (hash (title), n);
+    }
+
+    /**
+     * Afegeix a l'índex un bloc de registres consecutius.
+     * <br>
+     * Si el bloc és gran respecte a la taula, la taula es llegeix, s'omple
+     * en memòria i s'escriu d'una sola vegada en lloc d'entrada per entrada.
+     * @param records Array amb els registres empaquetats.
+     * @param count Nombre de registres de l'array.
+     * @param first Posició a la base de dades del primer registre.
+     * @throws IOException
+     */
+    public void addAll (byte[] records, int count, int first) throws IOException {
+        BookRecord view = new BookRecord();
+        RecordFormat format = booksDB.getFormat();
+        if (count * 4 < capacity) {
+            for (int i = 0; i < count; i++) {
+                add (hash (view.wrap (format, records, i * format.size())), first + i);
+            }
+        } else {
+            int[] table = rehash (count);
+            for (int i = 0; i < count; i++) {
+                insert (table, hash (view.wrap (format, records, i * format.size())), first + i);
+            }
+            used += count;
+            writeTable (table);
+        }
+    }
+
+    private void add (int h, int n) throws IOException {
+        if ((used + 1) * 4 > capacity * 3) {
+            writeTable (rehash (1));
+        }
+        for (int i = h & (capacity - 1); ; i = (i + 1) & (capacity - 1)) {
+            readSlot (i, slot);
+            int m = PackUtils.unpackInt (slot, 4);
+            //Les entrades esborrades es poden reaprofitar.
+            if (m == EMPTY || m == DELETED) {
+                if (m == EMPTY) {
+                    used++;
+                }
+                writeSlot (i, h, n);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Elimina l'entrada d'un registre de l'índex.
+     * @param n Posició del registre (que encara ha de contenir el llibre indexat).
+     * @throws IOException
+     */
+    public void remove (int n) throws IOException {
+        int h = hash (booksDB.loadRecord (n, probe));
+        for (int i = h & (capacity - 1); ; i = (i + 1) & (capacity - 1)) {
+            readSlot (i, slot);
+            int m = PackUtils.unpackInt (slot, 4);
+            if (m == EMPTY) {
+                return;
+            }
+            if (m == n && PackUtils.unpackInt (slot, 0) == h) {
+                writeSlot (i, h, DELETED);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Tanca l'índex deixant-lo marcat com a sincronitzat.
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        writeHeader (true);
+        indexFile.close();
+    }
+
+    /**
+     * Llegeix la taula i la torna a construir en memòria, sense les entrades
+     * esborrades i amb lloc per a més entrades (normalment, el doble de capacitat).
+     * @param extra Nombre d'entrades noves que s'hi afegiran.
+     * @return Taula nova amb les entrades vives.
+     * @throws IOException
+     */
+    private int[] rehash (int extra) throws IOException {
+        byte[] old = new byte[capacity * SLOT_SIZE];
+        indexFile.seek (HEADER_SIZE);
+        indexFile.readFully (old);
+        int live = 0;
+        for (int i = 0; i < capacity; i++) {
+            if (PackUtils.unpackInt (old, i * SLOT_SIZE + 4) >= 0) {
+                live++;
+            }
+        }
+        int[] table = newTable (capacityFor (live + extra));
+        for (int i = 0; i < capacity; i++) {
+            int n = PackUtils.unpackInt (old, i * SLOT_SIZE + 4);
+            if (n >= 0) {
+                insert (table, PackUtils.unpackInt (old, i * SLOT_SIZE), n);
+            }
+        }
+        used = live;
+        return table;
+    }
+
+    private static int capacityFor (int entries) {
+        int c = MIN_CAPACITY;
+        while (c < entries * 2) {
+            c *= 2;
+        }
+        return c;
+    }
+
+    private static int[] newTable (int capacity) {
+        int[] table = new int[2 * capacity];
+        for (int i = 0; i < capacity; i++) {
+            table[2 * i + 1] = EMPTY;
+        }
+        return table;
+    }
+
+    private static void insert (int[] table, int h, int n) {
+        int mask = table.length / 2 - 1;
+        int i = h & mask;
+        while (table[2 * i + 1] != EMPTY) {
+            i = (i + 1) & mask;
+        }
+        table[2 * i] = h;
+        table[2 * i + 1] = n;
+    }
+
+    /**
+     * Escriu tota la taula en memòria al fitxer, d'una sola vegada.
+     * @param table Parelles (dispersió, posició).
+     * @throws IOException
+     */
+    private void writeTable (int[] table) throws IOException {
+        capacity = table.length / 2;
+        byte[] buffer = new byte[capacity * SLOT_SIZE];
+        for (int i = 0; i < capacity; i++) {
+            PackUtils.packInt (table[2 * i], buffer, i * SLOT_SIZE);
+            PackUtils.packInt (table[2 * i + 1], buffer, i * SLOT_SIZE + 4);
+        }
+        indexFile.setLength (HEADER_SIZE + (long) buffer.length);
+        indexFile.seek (HEADER_SIZE);
+        indexFile.write (buffer);
+        writeHeader (false);
+    }
+
+    private void readSlot (int i, byte[] slot) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap (slot);
+        long position = HEADER_SIZE + (long) i * SLOT_SIZE;
+        while (buffer.hasRemaining()) {
+            if (channel.read (buffer, position + buffer.position()) < 0) {
+                throw new EOFException();
+            }
+        }
+    }
+
+    private void writeSlot (int i, int h, int n) throws IOException {
+        PackUtils.packInt (h, slot, 0);
+        PackUtils.packInt (n, slot, 4);
+        indexFile.seek (HEADER_SIZE + (long) i * SLOT_SIZE);
+        indexFile.write (slot);
+    }
+
+}
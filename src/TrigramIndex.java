@@ -0,0 +1,689 @@
+/*
+ * Autors:
+ * -Xiaolong Ji
+ * -Aticor
+ */
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Índex invertit de trigrames en disc d'un camp de text (el títol), per
+ * cercar fragments sense diferenciar majúscules i minúscules: "wise man"
+ * troba "The Wise Man's Fear".
+ * <br>
+ * Cada valor normalitzat (vegeu FieldIndex.fold) es divideix en trigrames
+ * (tres caràcters consecutius) i, per a cada trigrama, l'índex guarda la
+ * llista ordenada dels registres que el contenen. Una cerca interseca les
+ * llistes dels trigrames de cada terme i comprova els candidats llegint-ne
+ * el valor (dos trigrames poden coincidir sense que el terme hi sigui).
+ * <br>
+ * Com a FieldIndex, l'índex té una base al fitxer (registres
+ * 0..baseCount-1) i els canvis en memòria: els registres de la base que han
+ * canviat o s'han esborrat (les seves entrades de la base ja no valen) i els
+ * trigrames dels registres escrits després. Quan hi ha massa canvis, la
+ * base es torna a construir.
+ * <br>
+ * Format del fitxer: capçalera de HEADER_SIZE bytes, gramCount entrades del
+ * diccionari (trigrama i nombre de registres, ordenades per trigrama), les
+ * llistes de registres (un enter per entrada, en l'ordre del diccionari), i
+ * els registres afegits i els canviats (un enter cadascun).
+ */
+public class TrigramIndex {
+
+    private static final int MAGIC = 0x54524931; // "TRI1"
+    private static final int HEADER_SIZE = 40;
+    private static final int DICTIONARY_ENTRY = 12;
+    private static final int MIN_CHANGES = 1024;
+    private static final int BLOCK = 4096;
+
+    /** Entrades de les llistes que es construeixen alhora en memòria. */
+    private static final int BUILD_BUDGET = 16 << 20;
+
+    /**
+     * Candidats a partir dels quals ja no es llegeixen més llistes: és més
+     * barat comprovar-los directament.
+     */
+    private static final int VERIFY_LIMIT = 64;
+
+    private static final long[] NO_GRAMS = new long[0];
+
+    private final RecordFormat.Field field;
+    private final RandomAccessFile indexFile;
+    private final FileChannel channel;
+    private final File dataFile;
+    private final ReadBooksDB booksDB;
+    private int baseCount;
+    private long[] grams = NO_GRAMS;
+    private long[] starts = {0}; // starts[i]: primera entrada de la llista de grams[i]
+    private final BitSet changed = new BitSet();
+    private int changedCount;
+    private final Map<Integer, long[]> addedRecords = new HashMap<Integer, long[]>();
+    private final Map<Long, TreeSet<Integer>> added = new HashMap<Long, TreeSet<Integer>>();
+    private final BookRecord probe = new BookRecord();
+
+    /**
+     * Obre l'índex d'un camp, i el reconstrueix si no existeix, està malmès
+     * o no correspon al fitxer de dades.
+     * @param fileName Nom del fitxer de l'índex.
+     * @param field Camp indexat (TITLE, AUTHOR o SERIES).
+     * @param dataFile Fitxer de dades indexat.
+     * @param booksDB Base de dades d'on es llegeixen els valors.
+     * @throws IOException
+     */
+    public TrigramIndex (String fileName, RecordFormat.Field field, File dataFile, ReadBooksDB booksDB) throws IOException {
+        this.field = field;
+        this.dataFile = dataFile;
+        this.booksDB = booksDB;
+        indexFile = new RandomAccessFile (fileName, "rw");
+        channel = indexFile.getChannel();
+        if (!load()) {
+            rebuild();
+        }
+        //Mentre està obert, l'índex es marca com a no vàlid al disc.
+        writeHeader (false);
+    }
+
+    /**
+     * Llegeix el diccionari i els canvis, i comprova que l'índex encara sigui vàlid.
+     * @return Cert si l'índex es pot fer servir tal com està.
+     * @throws IOException
+     */
+    private boolean load() throws IOException {
+        if (indexFile.length() < HEADER_SIZE) {
+            return false;
+        }
+        byte[] header = new byte[HEADER_SIZE];
+        readFully (0, header, HEADER_SIZE);
+        if (PackUtils.unpackInt (header, 0) != MAGIC
+                || !PackUtils.unpackBoolean (header, 4)
+                || PackUtils.unpackInt (header, 8) != booksDB.getNumRecords()
+                || PackUtils.unpackLong (header, 32) != dataFile.lastModified()) {
+            return false;
+        }
+        int gramCount = PackUtils.unpackInt (header, 16);
+        int addedCount = PackUtils.unpackInt (header, 20);
+        int changes = PackUtils.unpackInt (header, 24);
+        if (indexFile.length() < HEADER_SIZE + (long) DICTIONARY_ENTRY * gramCount) {
+            return false;
+        }
+        byte[] dictionary = new byte[DICTIONARY_ENTRY * gramCount];
+        readFully (HEADER_SIZE, dictionary, dictionary.length);
+        long[] newGrams = new long[gramCount];
+        long[] newStarts = new long[gramCount + 1];
+        for (int i = 0; i < gramCount; i++) {
+            newGrams[i] = PackUtils.unpackLong (dictionary, DICTIONARY_ENTRY * i);
+            newStarts[i + 1] = newStarts[i] + PackUtils.unpackInt (dictionary, DICTIONARY_ENTRY * i + 8);
+        }
+        long tail = postingsOffset (gramCount) + 4 * newStarts[gramCount];
+        if (indexFile.length() != tail + 4L * (addedCount + changes)) {
+            return false;
+        }
+        baseCount = PackUtils.unpackInt (header, 12);
+        grams = newGrams;
+        starts = newStarts;
+        byte[] buffer = new byte[4 * (addedCount + changes)];
+        readFully (tail, buffer, buffer.length);
+        for (int i = 0; i < addedCount; i++) {
+            int n = PackUtils.unpackInt (buffer, 4 * i);
+            addGrams (n, grams (key (booksDB.loadRecord (n, probe))));
+        }
+        for (int i = addedCount; i < addedCount + changes; i++) {
+            changed.set (PackUtils.unpackInt (buffer, 4 * i));
+        }
+        changedCount = changes;
+        return true;
+    }
+
+    /**
+     * Escriu la capçalera de l'índex.
+     * @param clean Indica si l'índex queda sincronitzat amb les dades.
+     * @throws IOException
+     */
+    private void writeHeader (boolean clean) throws IOException {
+        byte[] header = new byte[HEADER_SIZE];
+        PackUtils.packInt (MAGIC, header, 0);
+        PackUtils.packBoolean (clean, header, 4);
+        PackUtils.packInt (booksDB.getNumRecords(), header, 8);
+        PackUtils.packInt (baseCount, header, 12);
+        PackUtils.packInt (grams.length, header, 16);
+        PackUtils.packInt (addedRecords.size(), header, 20);
+        PackUtils.packInt (changedCount, header, 24);
+        PackUtils.packLong (clean ? dataFile.lastModified() : 0L, header, 32);
+        indexFile.seek (0);
+        indexFile.write (header);
+    }
+
+    private static long postingsOffset (int gramCount) {
+        return HEADER_SIZE + (long) DICTIONARY_ENTRY * gramCount;
+    }
+
+    /**
+     * Valor normalitzat del camp d'un registre.
+     * @return Valor, o null si el registre està esborrat.
+     */
+    private String key (BookRecord record) {
+        if (record.isDeleted()) {
+            return null;
+        }
+        switch (field) {
+            case AUTHOR: return FieldIndex.fold (record.getAuthor());
+            case SERIES: return FieldIndex.fold (record.getSeries());
+            default:     return FieldIndex.fold (record.getTitle());
+        }
+    }
+
+    /**
+     * Trigrames diferents d'un valor normalitzat.
+     * @param key Valor (o null).
+     * @return Trigrames, ordenats i sense repetir.
+     */
+    static long[] grams (String key) {
+        int n = key == null ? 0 : key.length() - 2;
+        if (n <= 0) {
+            return NO_GRAMS;
+        }
+        long[] result = new long[n];
+        for (int i = 0; i < n; i++) {
+            result[i] = ((long) key.charAt (i) << 32) | ((long) key.charAt (i + 1) << 16) | key.charAt (i + 2);
+        }
+        Arrays.sort (result);
+        int count = 1;
+        for (int i = 1; i < n; i++) {
+            if (result[i] != result[count - 1]) {
+                result[count++] = result[i];
+            }
+        }
+        return count == n ? result : Arrays.copyOf (result, count);
+    }
+
+    /**
+     * Reconstrueix la base amb tots els registres de la base de dades.
+     * <br>
+     * Primer es compten els registres de cada trigrama i després s'omplen
+     * les llistes, en ordre de registre. Si no caben totes alhora en
+     * BUILD_BUDGET entrades, es fan per trossos del diccionari, amb una
+     * passada pels registres per a cada tros.
+     * @throws IOException
+     */
+    public void rebuild() throws IOException {
+        int numRecords = booksDB.getNumRecords();
+        Map<Long, int[]> counts = new HashMap<Long, int[]>();
+        for (int i = 0; i < numRecords; i++) {
+            for (long gram : grams (key (booksDB.loadRecord (i, probe)))) {
+                int[] count = counts.get (gram);
+                if (count == null) {
+                    count = new int[1];
+                    counts.put (gram, count);
+                }
+                count[0]++;
+            }
+        }
+        long[] newGrams = new long[counts.size()];
+        int gramCount = 0;
+        for (Long gram : counts.keySet()) {
+            newGrams[gramCount++] = gram;
+        }
+        Arrays.sort (newGrams);
+        long[] newStarts = new long[gramCount + 1];
+        byte[] dictionary = new byte[DICTIONARY_ENTRY * gramCount];
+        for (int i = 0; i < gramCount; i++) {
+            int count = counts.get (newGrams[i])[0];
+            newStarts[i + 1] = newStarts[i] + count;
+            PackUtils.packLong (newGrams[i], dictionary, DICTIONARY_ENTRY * i);
+            PackUtils.packInt (count, dictionary, DICTIONARY_ENTRY * i + 8);
+        }
+        counts = null;
+        long postings = postingsOffset (gramCount);
+        indexFile.setLength (postings + 4 * newStarts[gramCount]);
+        indexFile.seek (HEADER_SIZE);
+        indexFile.write (dictionary);
+        for (int lo = 0; lo < gramCount; ) {
+            int hi = lo + 1;
+            while (hi < gramCount && newStarts[hi + 1] - newStarts[lo] <= BUILD_BUDGET) {
+                hi++;
+            }
+            int[] lists = new int[(int) (newStarts[hi] - newStarts[lo])];
+            int[] next = new int[hi - lo];
+            for (int i = lo; i < hi; i++) {
+                next[i - lo] = (int) (newStarts[i] - newStarts[lo]);
+            }
+            for (int n = 0; n < numRecords; n++) {
+                for (long gram : grams (key (booksDB.loadRecord (n, probe)))) {
+                    int i = Arrays.binarySearch (newGrams, gram);
+                    if (i >= lo && i < hi) {
+                        lists[next[i - lo]++] = n;
+                    }
+                }
+            }
+            writeInts (postings + 4 * newStarts[lo], lists, lists.length);
+            lo = hi;
+        }
+        baseCount = numRecords;
+        grams = newGrams;
+        starts = newStarts;
+        changed.clear();
+        changedCount = 0;
+        addedRecords.clear();
+        added.clear();
+        writeHeader (false);
+    }
+
+    /**
+     * Buida l'índex.
+     * @throws IOException
+     */
+    public void clear() throws IOException {
+        baseCount = 0;
+        grams = NO_GRAMS;
+        starts = new long[] {0};
+        changed.clear();
+        changedCount = 0;
+        addedRecords.clear();
+        added.clear();
+        indexFile.setLength (HEADER_SIZE);
+        writeHeader (false);
+    }
+
+    /**
+     * Cerca els registres que contenen tots els termes d'una consulta.
+     * <br>
+     * Els termes són les paraules de la consulta (separades per espais) i
+     * poden ser fragments de paraula. Els termes de menys de tres caràcters
+     * no tenen trigrames: només es comproven sobre els candidats dels
+     * altres termes (o sobre tots els registres, si no n'hi ha cap més llarg).
+     * <br>
+     * Els resultats s'ordenen per rellevància: primer el valor idèntic a la
+     * consulta, després els que comencen pel primer terme, després els que
+     * tenen tots els termes a l'inici d'una paraula i finalment la resta;
+     * dins de cada grup, els valors més curts primer i després per número.
+     * @param query Consulta.
+     * @return Números de registre, ordenats per rellevància.
+     * @throws IOException
+     */
+    public int[] search (String query) throws IOException {
+        String[] terms = FieldIndex.fold (query).trim().split ("\\s+");
+        if (terms[0].isEmpty()) {
+            return new int[0];
+        }
+        //Trigrames de tots els termes, de la llista més curta a la més llarga.
+        TreeSet<Long> queryGrams = new TreeSet<Long>();
+        for (String term : terms) {
+            for (long gram : grams (term)) {
+                queryGrams.add (gram);
+            }
+        }
+        List<long[]> bySize = new ArrayList<long[]>();
+        for (long gram : queryGrams) {
+            bySize.add (new long[] {size (gram), gram});
+        }
+        Collections.sort (bySize, new Comparator<long[]>() {
+            public int compare (long[] a, long[] b) {
+                return Long.compare (a[0], b[0]);
+            }
+        });
+        int[] candidates = null;
+        for (long[] entry : bySize) {
+            if (candidates != null && candidates.length <= VERIFY_LIMIT) {
+                break;
+            }
+            int[] list = postings (entry[1]);
+            candidates = candidates == null ? list : intersect (candidates, list);
+            if (candidates.length == 0) {
+                return candidates;
+            }
+        }
+        return verify (candidates, terms);
+    }
+
+    /**
+     * Nombre aproximat de registres amb un trigrama (inclosos els canviats).
+     */
+    private long size (long gram) {
+        int i = Arrays.binarySearch (grams, gram);
+        TreeSet<Integer> extra = added.get (gram);
+        return (i >= 0 ? starts[i + 1] - starts[i] : 0) + (extra == null ? 0 : extra.size());
+    }
+
+    /**
+     * Registres que contenen un trigrama: els de la base que no han canviat
+     * i els afegits.
+     * @return Números de registre en ordre creixent.
+     */
+    private int[] postings (long gram) throws IOException {
+        int i = Arrays.binarySearch (grams, gram);
+        int[] base = new int[i >= 0 ? (int) (starts[i + 1] - starts[i]) : 0];
+        int count = 0;
+        if (base.length > 0) {
+            byte[] block = new byte[4 * BLOCK];
+            long position = postingsOffset (grams.length) + 4 * starts[i];
+            for (int j = 0; j < base.length; j += BLOCK) {
+                int n = Math.min (BLOCK, base.length - j);
+                readFully (position + 4L * j, block, 4 * n);
+                for (int k = 0; k < n; k++) {
+                    int record = PackUtils.unpackInt (block, 4 * k);
+                    if (!changed.get (record)) {
+                        base[count++] = record;
+                    }
+                }
+            }
+        }
+        TreeSet<Integer> extra = added.get (gram);
+        if (extra == null || extra.isEmpty()) {
+            return count == base.length ? base : Arrays.copyOf (base, count);
+        }
+        //Fusió de les dues llistes ordenades (no tenen cap registre en comú).
+        int[] result = new int[count + extra.size()];
+        Iterator<Integer> it = extra.iterator();
+        int next = it.next();
+        int j = 0;
+        for (int k = 0; k < result.length; k++) {
+            if (next < 0 || (j < count && base[j] < next)) {
+                result[k] = base[j++];
+            } else {
+                result[k] = next;
+                next = it.hasNext() ? it.next() : -1;
+            }
+        }
+        return result;
+    }
+
+    private static int[] intersect (int[] a, int[] b) {
+        int[] result = new int[Math.min (a.length, b.length)];
+        int count = 0;
+        int i = 0;
+        int j = 0;
+        while (i < a.length && j < b.length) {
+            if (a[i] < b[j]) {
+                i++;
+            } else if (a[i] > b[j]) {
+                j++;
+            } else {
+                result[count++] = a[i];
+                i++;
+                j++;
+            }
+        }
+        return Arrays.copyOf (result, count);
+    }
+
+    /**
+     * Comprova els candidats llegint-ne el valor i els ordena per rellevància.
+     * @param candidates Números de registre, o null per comprovar-los tots.
+     */
+    private int[] verify (int[] candidates, String[] terms) throws IOException {
+        //Vista local: la cerca es pot fer des de diversos fils alhora.
+        BookRecord probe = new BookRecord();
+        String query = join (terms);
+        int count = candidates == null ? booksDB.getNumRecords() : candidates.length;
+        List<Match> found = new ArrayList<Match>();
+        for (int i = 0; i < count; i++) {
+            int n = candidates == null ? i : candidates[i];
+            String key = key (booksDB.loadRecord (n, probe));
+            if (key != null) {
+                int rank = rank (key, terms, query);
+                if (rank >= 0) {
+                    found.add (new Match (rank, key.length(), n));
+                }
+            }
+        }
+        Collections.sort (found);
+        int[] result = new int[found.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = found.get (i).n;
+        }
+        return result;
+    }
+
+    private static String join (String[] terms) {
+        StringBuilder sb = new StringBuilder();
+        for (String term : terms) {
+            if (sb.length() > 0) {
+                sb.append (' ');
+            }
+            sb.append (term);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Rellevància d'un valor per a una consulta (més petit, més rellevant).
+     * @return Rellevància, o -1 si algun terme no hi és.
+     */
+    private static int rank (String key, String[] terms, String query) {
+        boolean words = true;
+        for (String term : terms) {
+            int at = key.indexOf (term);
+            if (at < 0) {
+                return -1;
+            }
+            while (at > 0 && Character.isLetterOrDigit (key.charAt (at - 1))) {
+                at = key.indexOf (term, at + 1);
+                if (at < 0) {
+                    words = false;
+                    break;
+                }
+            }
+        }
+        if (key.equals (query)) {
+            return 0;
+        }
+        if (key.startsWith (terms[0])) {
+            return 1;
+        }
+        return words ? 2 : 3;
+    }
+
+    private void addGrams (int n, long[] recordGrams) {
+        addedRecords.put (n, recordGrams);
+        for (long gram : recordGrams) {
+            TreeSet<Integer> records = added.get (gram);
+            if (records == null) {
+                records = new TreeSet<Integer>();
+                added.put (gram, records);
+            }
+            records.add (n);
+        }
+    }
+
+    /**
+     * Afegeix a l'índex un bloc de registres consecutius.
+     * @param records Array amb els registres empaquetats.
+     * @param count Nombre de registres de l'array.
+     * @param first Posició a la base de dades del primer registre.
+     */
+    public void addAll (byte[] records, int count, int first) {
+        BookRecord view = new BookRecord();
+        RecordFormat format = booksDB.getFormat();
+        for (int i = 0; i < count; i++) {
+            addGrams (first + i, grams (key (view.wrap (format, records, i * format.size()))));
+        }
+    }
+
+    /**
+     * Elimina les entrades d'un registre de l'índex.
+     * @param n Posició del registre.
+     */
+    public void remove (int n) {
+        if (n < baseCount && !changed.get (n)) {
+            changed.set (n);
+            changedCount++;
+        }
+        long[] recordGrams = addedRecords.remove (n);
+        if (recordGrams != null) {
+            for (long gram : recordGrams) {
+                TreeSet<Integer> records = added.get (gram);
+                records.remove (n);
+                if (records.isEmpty()) {
+                    added.remove (gram);
+                }
+            }
+        }
+    }
+
+    /**
+     * Torna a construir la base si s'hi han acumulat massa canvis.
+     * S'ha de cridar quan la base de dades ja té el nombre de llibres al dia.
+     * @throws IOException
+     */
+    public void compact() throws IOException {
+        //Els canvis ocupen molta més memòria que a FieldIndex: el límit és més baix.
+        if (addedRecords.size() + changedCount > MIN_CHANGES + baseCount / 8) {
+            rebuild();
+        }
+    }
+
+    /**
+     * Canvia els números de registre després de compactar la base de dades,
+     * sense tornar a llegir cap registre: com que els registres conserven
+     * l'ordre, les llistes continuen ordenades i només s'escurcen, de
+     * manera que es poden reescriure al mateix fitxer.
+     * @param mapping Número nou de cada registre antic (-1 si s'ha esborrat),
+     * creixent per als registres que no s'han esborrat.
+     * @throws IOException
+     */
+    public void remap (int[] mapping) throws IOException {
+        long postings = postingsOffset (grams.length);
+        long[] newStarts = new long[grams.length + 1];
+        byte[] block = new byte[4 * BLOCK];
+        long written = 0;
+        for (int i = 0; i < grams.length; i++) {
+            for (long j = starts[i]; j < starts[i + 1]; j += BLOCK) {
+                int n = (int) Math.min (BLOCK, starts[i + 1] - j);
+                readFully (postings + 4 * j, block, 4 * n);
+                int count = 0;
+                for (int k = 0; k < n; k++) {
+                    int record = mapping[PackUtils.unpackInt (block, 4 * k)];
+                    if (record >= 0) {
+                        PackUtils.packInt (record, block, 4 * count++);
+                    }
+                }
+                //La posició d'escriptura no passa mai de la de lectura.
+                writeFully (postings + 4 * written, block, 4 * count);
+                written += count;
+            }
+            newStarts[i + 1] = written;
+        }
+        byte[] dictionary = new byte[DICTIONARY_ENTRY * grams.length];
+        for (int i = 0; i < grams.length; i++) {
+            PackUtils.packLong (grams[i], dictionary, DICTIONARY_ENTRY * i);
+            PackUtils.packInt ((int) (newStarts[i + 1] - newStarts[i]), dictionary, DICTIONARY_ENTRY * i + 8);
+        }
+        indexFile.seek (HEADER_SIZE);
+        indexFile.write (dictionary);
+        indexFile.setLength (postings + 4 * written);
+        starts = newStarts;
+        int count = 0;
+        for (int i = 0; i < baseCount; i++) {
+            if (mapping[i] >= 0) {
+                count++;
+            }
+        }
+        //Els registres de la base que queden són justament 0..count-1.
+        baseCount = count;
+        BitSet oldChanged = (BitSet) changed.clone();
+        changed.clear();
+        changedCount = 0;
+        for (int n = oldChanged.nextSetBit (0); n >= 0; n = oldChanged.nextSetBit (n + 1)) {
+            if (mapping[n] >= 0) {
+                changed.set (mapping[n]);
+                changedCount++;
+            }
+        }
+        Map<Integer, long[]> oldAdded = new HashMap<Integer, long[]> (addedRecords);
+        addedRecords.clear();
+        added.clear();
+        for (Map.Entry<Integer, long[]> entry : oldAdded.entrySet()) {
+            addGrams (mapping[entry.getKey()], entry.getValue());
+        }
+        writeHeader (false);
+    }
+
+    /**
+     * Tanca l'índex deixant-lo marcat com a sincronitzat.
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        compact();
+        int[] tail = new int[addedRecords.size() + changedCount];
+        int count = 0;
+        for (int n : addedRecords.keySet()) {
+            tail[count++] = n;
+        }
+        for (int n = changed.nextSetBit (0); n >= 0; n = changed.nextSetBit (n + 1)) {
+            tail[count++] = n;
+        }
+        long end = postingsOffset (grams.length) + 4 * starts[grams.length];
+        indexFile.setLength (end + 4L * count);
+        writeInts (end, tail, count);
+        writeHeader (true);
+        indexFile.close();
+    }
+
+    private void writeInts (long position, int[] values, int count) throws IOException {
+        byte[] block = new byte[4 * BLOCK];
+        for (int i = 0; i < count; i += BLOCK) {
+            int n = Math.min (BLOCK, count - i);
+            for (int k = 0; k < n; k++) {
+                PackUtils.packInt (values[i + k], block, 4 * k);
+            }
+            writeFully (position + 4L * i, block, 4 * n);
+        }
+    }
+
+    private void writeFully (long position, byte[] buffer, int length) throws IOException {
+        ByteBuffer bytes = ByteBuffer.wrap (buffer, 0, length);
+        while (bytes.hasRemaining()) {
+            channel.write (bytes, position + bytes.position());
+        }
+    }
+
+    private void readFully (long position, byte[] buffer, int length) throws IOException {
+        ByteBuffer bytes = ByteBuffer.wrap (buffer, 0, length);
+        while (bytes.hasRemaining()) {
+            if (channel.read (bytes, position + bytes.position()) < 0) {
+                throw new EOFException();
+            }
+        }
+    }
+
+    /**
+     * Resultat d'una cerca: rellevància, llargada del valor i número de registre.
+     */
+    private static class Match implements Comparable<Match> {
+        final int rank;
+        final int length;
+        final int n;
+
+        Match (int rank, int length, int n) {
+            this.rank = rank;
+            this.length = length;
+            this.n = n;
+        }
+
+        public int compareTo (Match other) {
+            if (rank != other.rank) {
+                return Integer.compare (rank, other.rank);
+            }
+            if (length != other.length) {
+                return Integer.compare (length, other.length);
+            }
+            return Integer.compare (n, other.n);
+        }
+    }
+
+}
@@ -0,0 +1,249 @@
+/*
+ * Autors:
+ * -Xiaolong Ji
+ * -Aticor
+ */
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * Registre d'escriptura anticipada (<em>write-ahead log</em>) d'un RecordStore.
+ * <br>
+ * Els canvis d'una operació (escriptures i canvis de mida) s'acumulen i
+ * commit els afegeix al final del fitxer com una sola transacció:
+ * <pre>
+ * [llargada (int)] [CRC32 (int)] [entrades...]
+ * entrada: [WRITE (byte)] [posició (long)] [llargada (int)] [bytes...]
+ *        | [SET_LENGTH (byte)] [mida (long)]
+ * </pre>
+ * Una transacció incompleta o amb el CRC incorrecte (per exemple, si el
+ * programa s'ha aturat a mig escriure-la) es descarta en recuperar, i també
+ * totes les posteriors.
+ * <br>
+ * Escriure al registre no el fa durador: cal cridar sync. Diversos fils poden
+ * esperar alhora a sync; el primer força el fitxer a disc (FileChannel.force)
+ * i la resta aprofiten el mateix forçat si ja inclou les seves transaccions
+ * (<em>group commit</em>).
+ */
+public class WriteAheadLog {
+
+    private static final int RECORD_HEADER = 8;
+    private static final byte WRITE = 1;
+    private static final byte SET_LENGTH = 2;
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final CRC32 crc = new CRC32();
+    private byte[] pending = new byte[4096];
+    private int pendingSize = RECORD_HEADER;
+    private long size;
+
+    // Números de seqüència: bytes afegits al registre des que s'ha obert.
+    private volatile long appended;
+    private long synced;
+    private boolean syncing;
+
+    /**
+     * Obre (o crea) el fitxer del registre.
+     * @param fileName Nom del fitxer.
+     * @throws IOException
+     */
+    public WriteAheadLog (String fileName) throws IOException {
+        file = new RandomAccessFile (fileName, "rw");
+        channel = file.getChannel();
+        size = channel.size();
+    }
+
+    /**
+     * Aplica a un emmagatzematge totes les transaccions completes del registre.
+     * <br>
+     * Les transaccions guarden el contingut final dels bytes, de manera que
+     * tornar-les a aplicar és inofensiu.
+     * @param store Emmagatzematge on s'apliquen els canvis.
+     * @return Nombre de transaccions aplicades.
+     * @throws IOException
+     */
+    public int replay (RecordStore store) throws IOException {
+        byte[] header = new byte[RECORD_HEADER];
+        long position = 0;
+        int count = 0;
+        while (position + RECORD_HEADER <= size) {
+            readFully (position, header, RECORD_HEADER);
+            int length = PackUtils.unpackInt (header, 0);
+            if (length < 0 || position + RECORD_HEADER + length > size) {
+                break;
+            }
+            byte[] record = new byte[length];
+            readFully (position + RECORD_HEADER, record, length);
+            crc.reset();
+            crc.update (record, 0, length);
+            if ((int) crc.getValue() != PackUtils.unpackInt (header, 4)) {
+                break;
+            }
+            apply (record, store);
+            position += RECORD_HEADER + length;
+            count++;
+        }
+        return count;
+    }
+
+    private static void apply (byte[] record, RecordStore store) throws IOException {
+        int i = 0;
+        while (i < record.length) {
+            byte type = record[i];
+            long position = PackUtils.unpackLong (record, i + 1);
+            if (type == WRITE) {
+                int length = PackUtils.unpackInt (record, i + 9);
+                store.write (position, record, i + 13, length);
+                i += 13 + length;
+            } else {
+                store.setLength (position);
+                i += 9;
+            }
+        }
+    }
+
+    /**
+     * Afegeix una escriptura a la transacció en curs.
+     * @param position Posició dins de les dades.
+     * @param buffer Array amb els bytes escrits.
+     * @param offset Desplaçament dintre de l'array.
+     * @param length Nombre de bytes.
+     */
+    public void logWrite (long position, byte[] buffer, int offset, int length) {
+        ensurePending (13 + length);
+        pending[pendingSize] = WRITE;
+        PackUtils.packLong (position, pending, pendingSize + 1);
+        PackUtils.packInt (length, pending, pendingSize + 9);
+        System.arraycopy (buffer, offset, pending, pendingSize + 13, length);
+        pendingSize += 13 + length;
+    }
+
+    /**
+     * Afegeix un canvi de mida a la transacció en curs.
+     * @param length Nova mida de les dades.
+     */
+    public void logSetLength (long length) {
+        ensurePending (9);
+        pending[pendingSize] = SET_LENGTH;
+        PackUtils.packLong (length, pending, pendingSize + 1);
+        pendingSize += 9;
+    }
+
+    private void ensurePending (int extra) {
+        if (pendingSize + extra > pending.length) {
+            pending = Arrays.copyOf (pending, Math.max (2 * pending.length, pendingSize + extra));
+        }
+    }
+
+    /**
+     * Escriu la transacció en curs al final del registre (sense forçar-la a disc).
+     * @return Número de seqüència que s'ha de passar a sync per fer-la duradora.
+     * @throws IOException
+     */
+    public long commit() throws IOException {
+        if (pendingSize > RECORD_HEADER) {
+            int length = pendingSize - RECORD_HEADER;
+            crc.reset();
+            crc.update (pending, RECORD_HEADER, length);
+            PackUtils.packInt (length, pending, 0);
+            PackUtils.packInt ((int) crc.getValue(), pending, 4);
+            ByteBuffer bytes = ByteBuffer.wrap (pending, 0, pendingSize);
+            while (bytes.hasRemaining()) {
+                channel.write (bytes, size + bytes.position());
+            }
+            size += pendingSize;
+            appended += pendingSize;
+            pendingSize = RECORD_HEADER;
+            if (pending.length > 1 << 20) {
+                //No es reté un buffer gran després d'una transacció gran.
+                pending = new byte[4096];
+            }
+        }
+        return appended;
+    }
+
+    /**
+     * Espera que les transaccions fins a un número de seqüència siguin a disc.
+     * @param lsn Número de seqüència retornat per commit.
+     * @throws IOException
+     */
+    public void sync (long lsn) throws IOException {
+        synchronized (this) {
+            boolean interrupted = false;
+            while (synced < lsn && syncing) {
+                try {
+                    wait();
+                } catch (InterruptedException ex) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            if (synced >= lsn) {
+                return;
+            }
+            syncing = true;
+        }
+        //Un sol forçat cobreix totes les transaccions escrites fins ara.
+        long target = appended;
+        boolean done = false;
+        try {
+            channel.force (false);
+            done = true;
+        } finally {
+            synchronized (this) {
+                syncing = false;
+                if (done) {
+                    synced = Math.max (synced, target);
+                }
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Obtenir la mida del fitxer del registre.
+     * @return Nombre de bytes.
+     */
+    public long size() {
+        return size;
+    }
+
+    /**
+     * Buida el registre, un cop els canvis ja són a disc a les dades.
+     * @throws IOException
+     */
+    public void truncate() throws IOException {
+        channel.truncate (0);
+        channel.force (false);
+        size = 0;
+        synchronized (this) {
+            synced = Math.max (synced, appended);
+        }
+    }
+
+    /**
+     * Tanca el registre.
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        file.close();
+    }
+
+    private void readFully (long position, byte[] buffer, int length) throws IOException {
+        ByteBuffer bytes = ByteBuffer.wrap (buffer, 0, length);
+        while (bytes.hasRemaining()) {
+            if (channel.read (bytes, position + bytes.position()) < 0) {
+                break;
+            }
+        }
+    }
+
+}